@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import uk.co.marcoratto.util.Config;
+import uk.co.marcoratto.util.ConfigException;
+import uk.co.marcoratto.util.Settings;
+
+/**
+ * Configuration of the application built by the benchmarks, without reading
+ * the properties file of the application.
+ * <BR>The properties of the file named by the system property <b>bench.config</b>,
+ * if set, are the base of every configuration, e.g. to benchmark
+ * <i>target.durability=per-message</i>.
+ * @author Marco Ratto
+ */
+public class BenchConfig extends Config {
+
+    public BenchConfig(Properties prop) {
+        super(prop, null, null);
+    }
+
+    /**
+     * Returns a copy of the properties of <b>bench.config</b>, empty if not set.
+     * @return Properties
+     * @throws IOException
+     */
+    public static Properties loadBase() throws IOException {
+        Properties prop = new Properties();
+        String filename = System.getProperty("bench.config");
+        if (filename != null) {
+            InputStream in = new FileInputStream(filename);
+            try {
+                prop.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return prop;
+    }
+
+    /**
+     * Makes <code>prop</code> the configuration in use by the application.
+     * @param prop
+     * @throws ConfigException if the properties are not valid
+     */
+    public static void apply(Properties prop) throws ConfigException {
+        Settings.set(new Settings(new BenchConfig(prop)));
+    }
+
+    /**
+     * Returns the values of the comma separated list in the system property <code>name</code>.
+     * @param name
+     * @param defaultValue
+     * @return String[]
+     */
+    public static String[] getList(String name, String defaultValue) {
+        String[] values = System.getProperty(name, defaultValue).split(",");
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values[i].trim();
+        }
+        return values;
+    }
+
+    /**
+     * Returns the values of the comma separated list of integers in the system property <code>name</code>.
+     * @param name
+     * @param defaultValue
+     * @return int[]
+     */
+    public static int[] getIntList(String name, String defaultValue) {
+        String[] values = getList(name, defaultValue);
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i]);
+        }
+        return result;
+    }
+}
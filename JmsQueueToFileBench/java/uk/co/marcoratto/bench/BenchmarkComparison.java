@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two result files written by <code>BenchmarkResult.writeCsv</code>,
+ * e.g. the baseline of a release and the results of a change.
+ * <P>
+ * For every benchmark and parameters found in both files it prints the score
+ * and the bytes allocated per operation, with their change. A change is
+ * marked as a regression when the score drops, or the allocation grows, by
+ * more than <b>bench.compare.threshold</b> percent (default 10) and by more
+ * than the error of the two scores together; a drop beyond the threshold but
+ * within the error is not a regression, and is marked with the error that hides it.
+ * <PRE>
+ * java uk.co.marcoratto.bench.BenchmarkComparison baseline.csv current.csv
+ * </PRE>
+ * The exit status is 2 if a regression has been found.
+ * @author Marco Ratto
+ */
+public class BenchmarkComparison {
+
+    private static final int SCORE = 4;
+    private static final int ERROR = 5;
+    private static final int ALLOCATED = 11;
+
+    private final double threshold;
+
+    private int regressions = 0;
+
+    public BenchmarkComparison(double threshold) {
+        this.threshold = threshold;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java " + BenchmarkComparison.class.getName() + " baseline.csv current.csv");
+            System.exit(1);
+        }
+        BenchmarkComparison comparison = new BenchmarkComparison(Double.parseDouble(System.getProperty("bench.compare.threshold", "10")));
+        comparison.compare(read(new File(args[0])), read(new File(args[1])), System.out);
+        System.exit((comparison.getRegressions() > 0) ? 2 : 0);
+    }
+
+    /**
+     * Returns the number of regressions found by <code>compare</code>.
+     * @return int
+     */
+    public int getRegressions() {
+        return regressions;
+    }
+
+    /**
+     * Prints the comparison of <code>current</code> with <code>baseline</code>.
+     * @param baseline the rows of the baseline, by benchmark and parameters
+     * @param current the rows of the results to judge, by benchmark and parameters
+     * @param out
+     */
+    public void compare(Map<String, String[]> baseline, Map<String, String[]> current, PrintStream out) {
+        out.println();
+        out.println("Comparison with the baseline (threshold " + threshold + "%)");
+        out.println(BenchmarkResult.pad("Benchmark", 80) + BenchmarkResult.lpad("Baseline", 14) + BenchmarkResult.lpad("Current", 14) + BenchmarkResult.lpad("Change", 9)
+                + BenchmarkResult.lpad("B/op base", 12) + BenchmarkResult.lpad("B/op now", 12) + BenchmarkResult.lpad("Change", 9));
+        for (Map.Entry<String, String[]> entry : current.entrySet()) {
+            String[] now = entry.getValue();
+            String[] base = baseline.get(entry.getKey());
+            if (base == null) {
+                out.println(BenchmarkResult.pad(entry.getKey(), 80) + BenchmarkResult.lpad("-", 14) + BenchmarkResult.lpad(now[SCORE], 14) + "  (not in the baseline)");
+                continue;
+            }
+            double baseScore = Double.parseDouble(base[SCORE]);
+            double nowScore = Double.parseDouble(now[SCORE]);
+            double error = Double.parseDouble(base[ERROR]) + Double.parseDouble(now[ERROR]);
+            double scoreChange = change(baseScore, nowScore);
+            boolean slower = scoreChange < -threshold && baseScore - nowScore > error;
+            boolean noisy = scoreChange < -threshold && !slower;
+
+            double baseAllocated = (base.length > ALLOCATED) ? Double.parseDouble(base[ALLOCATED]) : -1;
+            double nowAllocated = (now.length > ALLOCATED) ? Double.parseDouble(now[ALLOCATED]) : -1;
+            boolean measured = baseAllocated >= 0 && nowAllocated >= 0;
+            double allocatedChange = measured ? change(baseAllocated, nowAllocated) : 0;
+            boolean heavier = measured && allocatedChange > threshold && nowAllocated - baseAllocated >= 8;
+
+            out.println(BenchmarkResult.pad(entry.getKey(), 80) + BenchmarkResult.lpad(base[SCORE], 14) + BenchmarkResult.lpad(now[SCORE], 14) + BenchmarkResult.lpad(percent(scoreChange), 9)
+                    + BenchmarkResult.lpad(measured ? base[ALLOCATED] : "-", 12) + BenchmarkResult.lpad(measured ? now[ALLOCATED] : "-", 12)
+                    + BenchmarkResult.lpad(measured ? percent(allocatedChange) : "-", 9)
+                    + (slower ? "  SLOWER" : "") + (noisy ? "  within error +/-" + BenchmarkResult.format(error) : "")
+                    + (heavier ? "  MORE ALLOCATION" : ""));
+            if (slower || heavier) {
+                regressions++;
+            }
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                out.println(BenchmarkResult.pad(key, 80) + "  (not in the current results)");
+            }
+        }
+        out.println(regressions + " regressions");
+    }
+
+    private static double change(double base, double now) {
+        if (base == 0) {
+            return (now == 0) ? 0 : 100;
+        }
+        return (now - base) * 100 / base;
+    }
+
+    /**
+     * Reads a result file, by <i>benchmark [params]</i>.
+     * @param file
+     * @return Map
+     * @throws IOException
+     */
+    public static Map<String, String[]> read(File file) throws IOException {
+        Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line = in.readLine();
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                String[] fields = split(line);
+                rows.put(fields[0] + " [" + fields[1] + "]", fields);
+            }
+        } finally {
+            in.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the results as the rows read by <code>read</code>.
+     * @param results
+     * @return Map
+     */
+    public static Map<String, String[]> toRows(List<BenchmarkResult> results) {
+        Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+        for (BenchmarkResult result : results) {
+            String[] fields = split(result.toCsv());
+            rows.put(fields[0] + " [" + fields[1] + "]", fields);
+        }
+        return rows;
+    }
+
+    /**
+     * Splits a line of CSV; the fields between double quotes can contain commas.
+     */
+    private static String[] split(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    private static String percent(double value) {
+        return ((value >= 0) ? "+" : "") + BenchmarkResult.format(value) + "%";
+    }
+}
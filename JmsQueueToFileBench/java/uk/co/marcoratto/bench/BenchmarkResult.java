@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.List;
+import java.util.Locale;
+
+import uk.co.marcoratto.util.LatencyHistogram;
+
+/**
+ * Result of a benchmark run by <code>BenchmarkRunner</code>: the throughput
+ * of every measured iteration and the latencies of all their operations.
+ * <BR>The score is the mean throughput of the iterations in operations per
+ * second, its error the standard deviation between the iterations.
+ * The bytes allocated per operation are -1 where <code>GcProfiler</code> cannot measure them.
+ * @author Marco Ratto
+ */
+public class BenchmarkResult {
+
+    private static final String CSV_HEADER = "benchmark,params,threads,iterations,ops/s,error,MB/s,p50 us,p99 us,p99.9 us,max us,B/op,gc.count,gc.time ms";
+
+    private final String name;
+    private final String params;
+    private final int threads;
+    private final double[] scores;
+    private final LatencyHistogram latency;
+
+    private int count = 0;
+    private long bytes = 0;
+    private long elapsed = 0;
+    private long operations = 0;
+    private long allocated = 0;
+    private long gcCount = 0;
+    private long gcTime = 0;
+
+    BenchmarkResult(String name, String params, int threads, int iterations, LatencyHistogram latency) {
+        this.name = name;
+        this.params = params;
+        this.threads = threads;
+        this.scores = new double[iterations];
+        this.latency = latency;
+    }
+
+    void add(long operations, long bytes, long elapsed, long allocated) {
+        scores[count++] = operations * 1e9 / elapsed;
+        this.bytes += bytes;
+        this.elapsed += elapsed;
+        this.operations += operations;
+        this.allocated = (this.allocated < 0 || allocated < 0) ? -1 : this.allocated + allocated;
+    }
+
+    void setCollections(long gcCount, long gcTime) {
+        this.gcCount = gcCount;
+        this.gcTime = gcTime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getParams() {
+        return params;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns the mean throughput of the iterations, in operations per second.
+     * @return double
+     */
+    public double getScore() {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += scores[i];
+        }
+        return (count == 0) ? 0 : sum / count;
+    }
+
+    /**
+     * Returns the standard deviation of the throughput of the iterations.
+     * @return double
+     */
+    public double getError() {
+        if (count < 2) {
+            return 0;
+        }
+        double mean = getScore();
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += (scores[i] - mean) * (scores[i] - mean);
+        }
+        return Math.sqrt(sum / (count - 1));
+    }
+
+    /**
+     * Returns the bytes processed per second, in MB (2^20 bytes).
+     * @return double
+     */
+    public double getMegabytesPerSecond() {
+        return (elapsed == 0) ? 0 : bytes * 1e9 / elapsed / (1024 * 1024);
+    }
+
+    /**
+     * Returns the mean bytes allocated by an operation, -1 if not measured.
+     * @return double
+     */
+    public double getAllocatedPerOperation() {
+        if (allocated < 0) {
+            return -1;
+        }
+        return (operations == 0) ? 0 : (double) allocated / operations;
+    }
+
+    /**
+     * Returns the garbage collections during the measured iterations.
+     * @return long
+     */
+    public long getCollectionCount() {
+        return gcCount;
+    }
+
+    /**
+     * Returns the milliseconds spent in garbage collection during the measured iterations.
+     * @return long
+     */
+    public long getCollectionTime() {
+        return gcTime;
+    }
+
+    /**
+     * Returns the latencies of the operations of the measured iterations.
+     * @return LatencyHistogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public String toString() {
+        return pad(name, 30) + pad(params, 50) + lpad(format(getScore()), 14) + " +-" + lpad(format(getError()), 12) + " ops/s"
+                + lpad(format(getMegabytesPerSecond()), 10) + " MB/s"
+                + "  p50=" + micros(latency.getPercentile(50)) + " p99=" + micros(latency.getPercentile(99))
+                + " p99.9=" + micros(latency.getPercentile(99.9)) + " max=" + micros(latency.getMax()) + " us"
+                + "  alloc=" + plain(getAllocatedPerOperation()) + " B/op gc=" + gcCount + " (" + gcTime + " ms)";
+    }
+
+    /**
+     * Returns the result as a line of the file written by <code>writeCsv</code>.
+     * @return String
+     */
+    public String toCsv() {
+        return name + ",\"" + params + "\"," + threads + "," + count + "," + plain(getScore()) + "," + plain(getError()) + ","
+                + plain(getMegabytesPerSecond()) + "," + micros(latency.getPercentile(50)) + "," + micros(latency.getPercentile(99)) + ","
+                + micros(latency.getPercentile(99.9)) + "," + micros(latency.getMax()) + "," + plain(getAllocatedPerOperation()) + ","
+                + gcCount + "," + gcTime;
+    }
+
+    /**
+     * Prints the results on <code>System.out</code> and, if the system property
+     * <b>bench.output</b> is set, writes them as CSV to the file it names. If
+     * <b>bench.baseline</b> names a result file, the results are compared with it
+     * (see <code>BenchmarkComparison</code>).
+     * @param results
+     * @throws IOException
+     */
+    public static void report(List<BenchmarkResult> results) throws IOException {
+        System.out.println();
+        System.out.println(pad("Benchmark", 30) + pad("Params", 50) + lpad("Score", 14) + lpad("Error", 14) + "       " + lpad("Bytes", 10) + "      Latency, allocation");
+        for (BenchmarkResult result : results) {
+            System.out.println(result);
+        }
+        String output = System.getProperty("bench.output");
+        if (output != null) {
+            writeCsv(results, new File(output));
+            System.out.println("Results written to " + output);
+        }
+        String baseline = System.getProperty("bench.baseline");
+        if (baseline != null) {
+            BenchmarkComparison comparison = new BenchmarkComparison(Double.parseDouble(System.getProperty("bench.compare.threshold", "10")));
+            comparison.compare(BenchmarkComparison.read(new File(baseline)), BenchmarkComparison.toRows(results), System.out);
+        }
+    }
+
+    /**
+     * Writes the results to <code>file</code>, one line per result after a header.
+     * @param results
+     * @param file
+     * @throws IOException
+     */
+    public static void writeCsv(List<BenchmarkResult> results, File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println(CSV_HEADER);
+            for (BenchmarkResult result : results) {
+                out.println(result.toCsv());
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    static String format(double value) {
+        return new DecimalFormat("#,##0.0", new DecimalFormatSymbols(Locale.ENGLISH)).format(value);
+    }
+
+    private static String plain(double value) {
+        return new DecimalFormat("0.0", new DecimalFormatSymbols(Locale.ENGLISH)).format(value);
+    }
+
+    private static String micros(long nanos) {
+        return plain(nanos / 1000.0);
+    }
+
+    static String pad(String s, int width) {
+        StringBuilder sb = new StringBuilder(s);
+        do {
+            sb.append(' ');
+        } while (sb.length() < width);
+        return sb.toString();
+    }
+
+    static String lpad(String s, int width) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() + s.length() < width) {
+            sb.append(' ');
+        }
+        return sb.append(s).toString();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import uk.co.marcoratto.util.LatencyHistogram;
+
+/**
+ * Measures the throughput and the latency of an <code>Operation</code> run
+ * in a loop by a number of threads, in the way of JMH: a few warm-up
+ * iterations, whose results are discarded, followed by the measured
+ * iterations, each one lasting a fixed time.
+ * <P>
+ * The settings are read from the system properties:
+ * <BR>- <b>bench.warmup.iterations</b> (default 3);
+ * <BR>- <b>bench.iterations</b> (default 5);
+ * <BR>- <b>bench.time</b>: milliseconds of every iteration (default 1000).
+ * <BR>The operations are timed with <code>System.nanoTime()</code> into a
+ * <code>LatencyHistogram</code>, which costs some tens of nanoseconds: an
+ * operation lasting less than a microsecond is run in batches, timed together
+ * and recorded as their mean.
+ * <P>
+ * The bytes allocated per operation and the garbage collections of the
+ * measured iterations are reported as well (see <code>GcProfiler</code>).
+ * @author Marco Ratto
+ */
+public class BenchmarkRunner {
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationTime;
+
+    public BenchmarkRunner(int warmupIterations, int iterations, long iterationTime) {
+        if (warmupIterations < 0 || iterations < 1 || iterationTime < 1) {
+            throw new IllegalArgumentException("warmupIterations=" + warmupIterations + ", iterations=" + iterations + ", iterationTime=" + iterationTime);
+        }
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationTime = iterationTime;
+    }
+
+    /**
+     * Builds the runner from the system properties <b>bench.*</b>.
+     * @return BenchmarkRunner
+     */
+    public static BenchmarkRunner fromSystemProperties() {
+        return new BenchmarkRunner(Integer.getInteger("bench.warmup.iterations", 3).intValue(),
+                Integer.getInteger("bench.iterations", 5).intValue(),
+                Long.getLong("bench.time", 1000).longValue());
+    }
+
+    /**
+     * Runs the benchmark.
+     * @param name the name of the benchmark
+     * @param params the parameters of this run, as <i>name=value</i> separated by commas
+     * @param threads the number of threads running the operation
+     * @param factory the factory of the operation of every thread
+     * @return BenchmarkResult
+     * @throws Exception the first exception thrown by an operation
+     */
+    public BenchmarkResult run(String name, String params, int threads, Operation.Factory factory) throws Exception {
+        return run(name, params, threads, 1, factory);
+    }
+
+    /**
+     * Runs the benchmark, timing the operations in batches.
+     * @param name the name of the benchmark
+     * @param params the parameters of this run, as <i>name=value</i> separated by commas
+     * @param threads the number of threads running the operation
+     * @param batch the number of operations timed together
+     * @param factory the factory of the operation of every thread
+     * @return BenchmarkResult
+     * @throws Exception the first exception thrown by an operation
+     */
+    public BenchmarkResult run(String name, String params, int threads, int batch, Operation.Factory factory) throws Exception {
+        if (batch < 1) {
+            throw new IllegalArgumentException("batch=" + batch);
+        }
+        Operation[] operations = new Operation[threads];
+        for (int i = 0; i < threads; i++) {
+            operations[i] = factory.create(i);
+        }
+        LatencyHistogram latency = new LatencyHistogram();
+        BenchmarkResult result = new BenchmarkResult(name, params, threads, iterations, latency);
+        long gcCount = 0;
+        long gcTime = 0;
+        for (int i = 0; i < warmupIterations + iterations; i++) {
+            boolean warmup = i < warmupIterations;
+            if (i == warmupIterations) {
+                latency.reset();
+                gcCount = GcProfiler.getCollectionCount();
+                gcTime = GcProfiler.getCollectionTime();
+            }
+            Iteration iteration = new Iteration(operations, batch, latency);
+            iteration.run(iterationTime);
+            factory.afterIteration();
+            if (iteration.failure != null) {
+                throw iteration.failure;
+            }
+            if (!warmup) {
+                result.add(iteration.operationsCount, iteration.bytes, iteration.elapsed, iteration.allocated);
+            }
+            System.err.println("# " + name + " [" + params + "] " + (warmup ? "warm-up " : "iteration ")
+                    + (warmup ? i + 1 : i - warmupIterations + 1) + ": "
+                    + BenchmarkResult.format(iteration.operationsCount * 1e9 / iteration.elapsed) + " ops/s");
+        }
+        result.setCollections(GcProfiler.getCollectionCount() - gcCount, GcProfiler.getCollectionTime() - gcTime);
+        return result;
+    }
+
+    /**
+     * One iteration: all the threads start together and run their operation
+     * until the time is up.
+     */
+    private static class Iteration {
+
+        private final Operation[] operations;
+        private final int batch;
+        private final LatencyHistogram latency;
+        private final long[] counts;
+        private final long[] sizes;
+        private final long[] allocations;
+
+        private volatile long deadline;
+        private volatile Exception failure = null;
+
+        long operationsCount;
+        long bytes;
+        long elapsed;
+        long allocated;
+
+        Iteration(Operation[] operations, int batch, LatencyHistogram latency) {
+            this.operations = operations;
+            this.batch = batch;
+            this.latency = latency;
+            this.counts = new long[operations.length];
+            this.sizes = new long[operations.length];
+            this.allocations = new long[operations.length];
+        }
+
+        void run(long time) throws InterruptedException {
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[operations.length];
+            for (int i = 0; i < threads.length; i++) {
+                final int index = i;
+                threads[i] = new Thread("bench-" + i) {
+                    public void run() {
+                        try {
+                            start.await();
+                            loop(index);
+                        } catch (Exception e) {
+                            if (failure == null) {
+                                failure = e;
+                            }
+                            deadline = 0;
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            long begin = System.nanoTime();
+            deadline = begin + time * 1000000L;
+            start.countDown();
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+            }
+            elapsed = System.nanoTime() - begin;
+            for (int i = 0; i < threads.length; i++) {
+                operationsCount += counts[i];
+                bytes += sizes[i];
+                allocated = (allocated < 0 || allocations[i] < 0) ? -1 : allocated + allocations[i];
+            }
+        }
+
+        private void loop(int index) throws Exception {
+            Operation operation = operations[index];
+            long count = 0;
+            long size = 0;
+            long allocatedStart = GcProfiler.getAllocatedBytes();
+            long now = System.nanoTime();
+            while (now < deadline) {
+                for (int i = 0; i < batch; i++) {
+                    size += operation.run();
+                }
+                long end = System.nanoTime();
+                latency.record((end - now) / batch);
+                now = end;
+                count += batch;
+            }
+            long allocatedEnd = GcProfiler.getAllocatedBytes();
+            counts[index] = count;
+            sizes[index] = size;
+            allocations[index] = (allocatedStart < 0) ? -1 : allocatedEnd - allocatedStart;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.Message;
+
+import uk.co.marcoratto.jmsqueuetofile.JmsQueueToFile;
+import uk.co.marcoratto.util.Lifecycle;
+import uk.co.marcoratto.util.MessageSinks;
+import uk.co.marcoratto.util.Metrics;
+
+/**
+ * Benchmarks of the processing of a message, without application server and
+ * queue manager: the messages are built by the in-memory provider
+ * (<code>uk.co.marcoratto.jms.memory</code>) and the configuration by
+ * <code>BenchConfig</code>.
+ * <P>
+ * Benchmarks:
+ * <BR>- <b>consume</b>: <code>JmsQueueToFile.consume</code>, metrics and audit included;
+ * <BR>- <b>save</b>: <code>MessageSink.write</code> of the sink selected by <b>target.mode</b>.
+ * <P>
+ * Every combination of the parameters is run, each one a list separated by commas
+ * in a system property:
+ * <BR>- <b>bench.methods</b>: the benchmarks (default <i>consume,save</i>);
+ * <BR>- <b>bench.message.types</b>: <i>bytes</i> and/or <i>text</i> (default both);
+ * <BR>- <b>bench.payload.sizes</b>: bytes of the body, or characters of the text (default <i>1024,65536,1048576</i>);
+ * <BR>- <b>bench.threads</b>: threads consuming concurrently (default <i>1,4</i>);
+ * <BR>- <b>bench.targets</b>: <i>name=directory</i> of the file systems to write to
+ * (default <i>tmpfs=/dev/shm,disk=</i> the directory <i>java.io.tmpdir</i>); a missing directory is skipped.
+ * <BR>The files are written to a new directory in every target and deleted
+ * after every iteration. See <code>BenchmarkRunner</code> for the settings of
+ * the iterations, and <code>BenchmarkResult</code> for the report.
+ * <PRE>
+ * java -cp JmsQueueToFileBench/bin:JmsQueueToFileEJB/java:Libraries/jms.jar:&lt;j2ee.jar&gt; \
+ *     -Dbench.targets=disk=/var/spool/jmsqueuetofile -Dbench.output=consume.csv uk.co.marcoratto.bench.ConsumeBenchmark
+ * </PRE>
+ * The messages are not published by a provider: the benchmarks measure the
+ * application, not the queue manager.
+ * @author Marco Ratto
+ */
+public class ConsumeBenchmark {
+
+    public static final String CONSUME = "consume";
+
+    public static final String SAVE = "save";
+
+    public static void main(String[] args) throws Exception {
+        Logger.getLogger("uk.co.marcoratto").setLevel(Level.parse(System.getProperty("bench.log.level", "WARNING")));
+
+        String[] methods = BenchConfig.getList("bench.methods", CONSUME + "," + SAVE);
+        String[] types = BenchConfig.getList("bench.message.types", Payloads.BYTES + "," + Payloads.TEXT);
+        int[] sizes = BenchConfig.getIntList("bench.payload.sizes", "1024,65536,1048576");
+        int[] threads = BenchConfig.getIntList("bench.threads", "1,4");
+        String[] targets = BenchConfig.getList("bench.targets", "tmpfs=/dev/shm,disk=" + System.getProperty("java.io.tmpdir"));
+
+        BenchmarkRunner runner = BenchmarkRunner.fromSystemProperties();
+        List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        for (int t = 0; t < targets.length; t++) {
+            int eq = targets[t].indexOf('=');
+            String targetName = (eq > 0) ? targets[t].substring(0, eq) : targets[t];
+            File root = new File((eq > 0) ? targets[t].substring(eq + 1) : targets[t]);
+            if (!root.isDirectory()) {
+                System.err.println("# Skipping target " + targetName + ": " + root + " is not a directory");
+                continue;
+            }
+            for (int m = 0; m < methods.length; m++) {
+                for (int y = 0; y < types.length; y++) {
+                    for (int s = 0; s < sizes.length; s++) {
+                        for (int n = 0; n < threads.length; n++) {
+                            String params = "target=" + targetName + ",type=" + types[y] + ",size=" + sizes[s] + ",threads=" + threads[n];
+                            results.add(run(runner, methods[m], params, root, types[y], sizes[s], threads[n]));
+                        }
+                    }
+                }
+            }
+        }
+        BenchmarkResult.report(results);
+        Lifecycle.stop();
+        System.exit(0);
+    }
+
+    private static BenchmarkResult run(BenchmarkRunner runner, String method, String params, File root,
+            String type, int size, int threads) throws Exception {
+        TargetDirectory target = new TargetDirectory(root);
+        try {
+            Properties prop = BenchConfig.loadBase();
+            prop.setProperty("target.pathname", new File(target.getDirectory(), "%u.msg").getPath());
+            BenchConfig.apply(prop);
+            return runner.run(method, params, threads, new Factory(method, type, size, target));
+        } finally {
+            target.delete();
+        }
+    }
+
+    private static class Factory implements Operation.Factory {
+
+        private final String method;
+        private final String type;
+        private final int size;
+        private final TargetDirectory target;
+        private final long errors;
+
+        Factory(String method, String type, int size, TargetDirectory target) {
+            this.method = method;
+            this.type = type;
+            this.size = size;
+            this.target = target;
+            this.errors = Metrics.getInstance().getErrors();
+        }
+
+        public Operation create(int thread) {
+            final Message msg = Payloads.createMessage(type, size, thread);
+            if (CONSUME.equals(method)) {
+                final JmsQueueToFile mdb = new JmsQueueToFile();
+                return new Operation() {
+                    public long run() {
+                        mdb.consume(msg);
+                        return size;
+                    }
+                };
+            } else if (SAVE.equals(method)) {
+                return new Operation() {
+                    public long run() throws Exception {
+                        return MessageSinks.getSink().write(msg).getSize();
+                    }
+                };
+            }
+            throw new IllegalArgumentException("Unknown benchmark " + method);
+        }
+
+        /**
+         * Deletes the files written, and fails if <code>consume</code> could not write a message.
+         */
+        public void afterIteration() throws Exception {
+            target.clean();
+            long failed = Metrics.getInstance().getErrors() - errors;
+            if (failed > 0) {
+                throw new Exception(failed + " messages not written, see the log");
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+
+/**
+ * Measures the memory allocated and the garbage collections of a benchmark,
+ * as the JMH profiler <i>-prof gc</i> does.
+ * <P>
+ * The bytes allocated by a thread are read from
+ * <code>com.sun.management.ThreadMXBean.getThreadAllocatedBytes</code>, called
+ * by reflection since it is not available on every JVM: where it is missing
+ * <code>getAllocatedBytes</code> returns -1 and the allocations are not reported.
+ * @author Marco Ratto
+ */
+public class GcProfiler {
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private static final Method allocatedBytes = lookupAllocatedBytes();
+
+    private GcProfiler() {
+    }
+
+    private static Method lookupAllocatedBytes() {
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(threadBean)) {
+                return null;
+            }
+            Method method = type.getMethod("getThreadAllocatedBytes", new Class<?>[] {long.class});
+            Long value = (Long) method.invoke(threadBean, new Object[] {new Long(Thread.currentThread().getId())});
+            return (value.longValue() >= 0) ? method : null;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the allocations can be measured.
+     * @return boolean
+     */
+    public static boolean isSupported() {
+        return allocatedBytes != null;
+    }
+
+    /**
+     * Returns the bytes allocated so far by the calling thread, -1 if not supported.
+     * @return long
+     */
+    public static long getAllocatedBytes() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+        try {
+            return ((Long) allocatedBytes.invoke(threadBean, new Object[] {new Long(Thread.currentThread().getId())})).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the number of garbage collections since the JVM started, all collectors together.
+     * @return long
+     */
+    public static long getCollectionCount() {
+        long count = 0;
+        for (Iterator<GarbageCollectorMXBean> i = ManagementFactory.getGarbageCollectorMXBeans().iterator(); i.hasNext();) {
+            count += Math.max(0, i.next().getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Returns the milliseconds spent in garbage collection since the JVM started, all collectors together.
+     * @return long
+     */
+    public static long getCollectionTime() {
+        long time = 0;
+        for (Iterator<GarbageCollectorMXBean> i = ManagementFactory.getGarbageCollectorMXBeans().iterator(); i.hasNext();) {
+            time += Math.max(0, i.next().getCollectionTime());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueSender;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+
+import uk.co.marcoratto.jms.memory.MemoryBytesMessage;
+import uk.co.marcoratto.jms.memory.MemoryQueue;
+import uk.co.marcoratto.jms.memory.MemoryQueueConnectionFactory;
+import uk.co.marcoratto.jms.memory.MemoryTextMessage;
+import uk.co.marcoratto.jmsqueuetofile.StandaloneConsumer;
+import uk.co.marcoratto.util.EtmQueueConnection;
+import uk.co.marcoratto.util.EtmQueueLocator;
+import uk.co.marcoratto.util.LatencyHistogram;
+import uk.co.marcoratto.util.Lifecycle;
+import uk.co.marcoratto.util.MessagePublisher;
+import uk.co.marcoratto.util.Metrics;
+
+/**
+ * Generates a synthetic load of messages and measures how the application
+ * writes them: sustained messages and MB per second, and the latency from
+ * the time a message was due to be sent to the end of its processing.
+ * <P>
+ * The messages are sent by <b>bench.load.producers</b> threads (default 1):
+ * <BR>- <b>bench.load.provider=memory</b> (default): to a queue of the in-memory provider,
+ * of <b>bench.load.capacity</b> messages (default 100000);
+ * <BR>- <b>bench.load.provider=jndi</b>: through <code>MessagePublisher</code> to the queue
+ * <b>bench.load.queue.jndi</b> (default <i>jms/JmsQueueToFile</i>), with the JNDI
+ * environment of the JVM.
+ * <BR>They are consumed in the JVM by a <code>StandaloneConsumer</code> of
+ * <b>bench.load.consumers</b> threads (default 4) committing every
+ * <b>bench.load.batch.size</b> messages (default 1); with the jndi provider
+ * and <b>bench.load.consume=false</b> they are left to the deployed MDB and
+ * only the sending is measured.
+ * <P>
+ * The load:
+ * <BR>- <b>bench.load.rate</b>: messages per second, all producers together; 0 sends as fast as possible (default 1000);
+ * <BR>- <b>bench.load.burst</b>: messages sent together at every arrival (default 1);
+ * <BR>- <b>bench.load.arrival</b>: <i>fixed</i> intervals between the arrivals, or <i>poisson</i> (default <i>fixed</i>);
+ * <BR>- <b>bench.load.sizes</b>: sizes of the bodies with their weights, e.g. <i>1024:80,65536:15,1048576:5</i> (default <i>4096</i>);
+ * <BR>- <b>bench.load.types</b>: <i>bytes</i> and <i>text</i> with their weights, e.g. <i>bytes:3,text:1</i> (default <i>bytes</i>);
+ * <BR>- <b>bench.load.property.</b><i>name</i>: values of the string property <i>name</i> of the messages,
+ * separated by <i>|</i>, chosen at random (e.g. for the <i>%{name}</i> tokens of <b>target.pathname</b>);
+ * <BR>- <b>bench.load.duration</b>: milliseconds of the load (default 60000), of which the first
+ * <b>bench.load.warmup</b> (default 5000) are not measured;
+ * <BR>- <b>bench.load.drain</b>: milliseconds to wait for the backlog to be consumed at the end (default 30000).
+ * <P>
+ * The configuration of the application is <b>bench.config</b> (see <code>BenchConfig</code>); if it
+ * does not set <b>target.pathname</b> the files are written to a new directory in
+ * <b>bench.load.dir</b> (default <i>java.io.tmpdir</i>), deleted at the end.
+ * The report is printed on <code>System.out</code>, and written as CSV to <b>bench.output</b> if set.
+ * <PRE>
+ * java -Dbench.load.rate=2000 -Dbench.load.sizes=2048:95,524288:5 -Dbench.load.dir=/data/in \
+ *     -Dbench.load.consumers=10 uk.co.marcoratto.bench.LoadGenerator
+ * </PRE>
+ * @author Marco Ratto
+ */
+public class LoadGenerator {
+
+    public static final String MEMORY = "memory";
+
+    public static final String JNDI = "jndi";
+
+    /**
+     * Property of the messages with the <code>System.nanoTime()</code> they were due to be sent.
+     */
+    public static final String SCHEDULED_PROPERTY = "JmsQueueToFileLoadScheduled";
+
+    /**
+     * Property of the messages with the size of their body.
+     */
+    public static final String SIZE_PROPERTY = "JmsQueueToFileLoadSize";
+
+    private static final String QUEUE_NAME = "JmsQueueToFileLoad";
+
+    private final String provider;
+    private final double rate;
+    private final int burst;
+    private final boolean poisson;
+    private final int producers;
+    private final int consumers;
+    private final int batchSize;
+    private final long duration;
+    private final long warmup;
+    private final long drain;
+    private final Choice<Integer> sizes;
+    private final Choice<String> types;
+    private final Map<String, String[]> properties = new HashMap<String, String[]>();
+    private final Map<String, Object> payloads = new HashMap<String, Object>();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong windowMessages = new AtomicLong();
+    private final AtomicLong windowBytes = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private volatile long measureStart;
+    private volatile long measureEnd;
+    private volatile long end;
+    private volatile boolean producing = false;
+
+    private MemoryQueue memoryQueue = null;
+
+    public LoadGenerator() {
+        provider = System.getProperty("bench.load.provider", MEMORY);
+        if (!MEMORY.equals(provider) && !JNDI.equals(provider)) {
+            throw new IllegalArgumentException("Unsupported bench.load.provider " + provider);
+        }
+        rate = Double.parseDouble(System.getProperty("bench.load.rate", "1000"));
+        burst = Integer.getInteger("bench.load.burst", 1).intValue();
+        String arrival = System.getProperty("bench.load.arrival", "fixed");
+        if (!"fixed".equals(arrival) && !"poisson".equals(arrival)) {
+            throw new IllegalArgumentException("Unsupported bench.load.arrival " + arrival);
+        }
+        poisson = "poisson".equals(arrival);
+        producers = Integer.getInteger("bench.load.producers", 1).intValue();
+        consumers = Integer.getInteger("bench.load.consumers", 4).intValue();
+        batchSize = Integer.getInteger("bench.load.batch.size", 1).intValue();
+        duration = Long.getLong("bench.load.duration", 60000).longValue();
+        warmup = Long.getLong("bench.load.warmup", 5000).longValue();
+        drain = Long.getLong("bench.load.drain", 30000).longValue();
+        if (rate < 0 || burst < 1 || producers < 1 || consumers < 1 || batchSize < 0 || warmup < 0 || duration <= warmup) {
+            throw new IllegalArgumentException("Invalid bench.load.* settings");
+        }
+
+        sizes = new Choice<Integer>();
+        String[] sizeList = BenchConfig.getList("bench.load.sizes", "4096");
+        for (int i = 0; i < sizeList.length; i++) {
+            sizes.add(Integer.valueOf(Choice.value(sizeList[i])), Choice.weight(sizeList[i]));
+        }
+        types = new Choice<String>();
+        String[] typeList = BenchConfig.getList("bench.load.types", Payloads.BYTES);
+        for (int i = 0; i < typeList.length; i++) {
+            String type = Choice.value(typeList[i]);
+            if (!Payloads.BYTES.equals(type) && !Payloads.TEXT.equals(type)) {
+                throw new IllegalArgumentException("Unsupported message type " + type);
+            }
+            types.add(type, Choice.weight(typeList[i]));
+        }
+        Properties system = System.getProperties();
+        for (Enumeration<?> e = system.propertyNames(); e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            if (name.startsWith("bench.load.property.")) {
+                properties.put(name.substring("bench.load.property.".length()), system.getProperty(name).split("\\|"));
+            }
+        }
+
+        // the payloads are generated once and shared by the messages
+        for (int t = 0; t < types.values.size(); t++) {
+            for (int s = 0; s < sizes.values.size(); s++) {
+                String type = types.values.get(t);
+                int size = sizes.values.get(s).intValue();
+                payloads.put(type + size, Payloads.BYTES.equals(type) ? (Object) Payloads.randomBytes(size, size) : Payloads.randomText(size, size));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Logger.getLogger("uk.co.marcoratto").setLevel(Level.parse(System.getProperty("bench.log.level", "WARNING")));
+        LoadGenerator generator = new LoadGenerator();
+        boolean consume = MEMORY.equals(generator.provider) || Boolean.valueOf(System.getProperty("bench.load.consume", "true")).booleanValue();
+
+        TargetDirectory target = null;
+        if (consume) {
+            Properties prop = BenchConfig.loadBase();
+            if (prop.getProperty("target.pathname") == null) {
+                target = new TargetDirectory(new File(System.getProperty("bench.load.dir", System.getProperty("java.io.tmpdir"))));
+                prop.setProperty("target.pathname", new File(target.getDirectory(), "%u.msg").getPath());
+            }
+            BenchConfig.apply(prop);
+        }
+        try {
+            generator.run(consume);
+        } finally {
+            Lifecycle.stop();
+            if (target != null) {
+                target.delete();
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs the load and prints the report.
+     * @param consume <code>true</code> to consume the messages in the JVM
+     * @throws Exception
+     */
+    public void run(boolean consume) throws Exception {
+        ConnectionFactory factory;
+        Queue queue;
+        if (MEMORY.equals(provider)) {
+            MemoryQueueConnectionFactory memoryFactory = new MemoryQueueConnectionFactory();
+            memoryFactory.setCapacity(Integer.getInteger("bench.load.capacity", MemoryQueueConnectionFactory.DEFAULT_CAPACITY).intValue());
+            memoryQueue = memoryFactory.getQueue(QUEUE_NAME);
+            memoryQueue.clear();
+            factory = memoryFactory;
+            queue = memoryQueue;
+        } else {
+            factory = EtmQueueConnection.getQCF();
+            queue = EtmQueueLocator.getQueue(System.getProperty("bench.load.queue.jndi", EtmQueueLocator.QUEUE_INBOUND));
+            if (factory == null || queue == null) {
+                throw new JMSException("Cannot look up the connection factory or the queue, see the log");
+            }
+        }
+
+        Recorder recorder = null;
+        if (consume) {
+            recorder = new Recorder(factory, queue);
+            recorder.start();
+        }
+        long errors = Metrics.getInstance().getErrors();
+
+        long start = System.nanoTime();
+        measureStart = start + warmup * 1000000L;
+        measureEnd = start + duration * 1000000L;
+        end = measureEnd;
+        producing = true;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++) {
+            Thread t = new Thread(new Producer(i, (MEMORY.equals(provider)) ? factory : null, queue), "bench-producer-" + i);
+            threads.add(t);
+            t.start();
+        }
+        Progress progress = new Progress(start);
+        progress.start();
+        for (Thread t : threads) {
+            t.join();
+        }
+        producing = false;
+
+        if (recorder != null) {
+            long drainEnd = System.currentTimeMillis() + drain;
+            while (consumed.get() < sent.get() && System.currentTimeMillis() < drainEnd) {
+                Thread.sleep(100);
+            }
+            recorder.stop();
+        }
+        progress.interrupt();
+        report(consume, Metrics.getInstance().getErrors() - errors);
+    }
+
+    /**
+     * Creates a message due to be sent at <code>scheduled</code>.
+     */
+    private Message createMessage(Random random, long scheduled) throws JMSException {
+        String type = types.next(random);
+        int size = sizes.next(random).intValue();
+        Object payload = payloads.get(type + size);
+        Message msg = (payload instanceof byte[]) ? (Message) new MemoryBytesMessage((byte[]) payload) : new MemoryTextMessage((String) payload);
+        msg.setLongProperty(SCHEDULED_PROPERTY, scheduled);
+        msg.setIntProperty(SIZE_PROPERTY, size);
+        for (Map.Entry<String, String[]> entry : properties.entrySet()) {
+            String[] values = entry.getValue();
+            msg.setStringProperty(entry.getKey(), values[random.nextInt(values.length)]);
+        }
+        return msg;
+    }
+
+    /**
+     * Sends bursts of messages at the times of the rate, whatever the time
+     * taken to send them: a late message is sent at once, and its latency
+     * counts from when it was due.
+     */
+    private class Producer implements Runnable {
+
+        private final int index;
+        private final ConnectionFactory memoryFactory;
+        private final Queue queue;
+
+        Producer(int index, ConnectionFactory memoryFactory, Queue queue) {
+            this.index = index;
+            this.memoryFactory = memoryFactory;
+            this.queue = queue;
+        }
+
+        public void run() {
+            Random random = new Random(index);
+            long interval = (rate > 0) ? (long) (1e9 * burst * producers / rate) : 0;
+            QueueConnection connection = null;
+            try {
+                QueueSender sender = null;
+                MessagePublisher publisher = null;
+                if (memoryFactory != null) {
+                    connection = ((MemoryQueueConnectionFactory) memoryFactory).createQueueConnection();
+                    QueueSession session = connection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+                    sender = session.createSender(queue);
+                } else {
+                    publisher = new MessagePublisher();
+                }
+                long next = System.nanoTime() + (long) (interval * (double) index / producers);
+                while (next < end) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    for (int i = 0; i < burst; i++) {
+                        Message msg = createMessage(random, (interval > 0) ? next : System.nanoTime());
+                        try {
+                            if (sender != null) {
+                                sender.send(msg);
+                            } else {
+                                publisher.publish(queue, msg);
+                            }
+                            sent.incrementAndGet();
+                        } catch (Exception e) {
+                            sendFailures.incrementAndGet();
+                        }
+                    }
+                    if (interval == 0) {
+                        next = System.nanoTime();
+                    } else if (poisson) {
+                        next += (long) (-Math.log(1 - random.nextDouble()) * interval);
+                    } else {
+                        next += interval;
+                    }
+                }
+            } catch (JMSException e) {
+                e.printStackTrace();
+            } finally {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (JMSException e) {
+                        // nothing to do
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Consumes the messages as <code>StandaloneConsumer</code> does, measuring each one.
+     */
+    private class Recorder extends StandaloneConsumer {
+
+        Recorder(ConnectionFactory factory, Queue queue) {
+            super(factory, queue, consumers, batchSize, 100);
+        }
+
+        protected void consumed(Message msg) {
+            long now = System.nanoTime();
+            consumed.incrementAndGet();
+            try {
+                if (!msg.propertyExists(SCHEDULED_PROPERTY)) {
+                    return;
+                }
+                long scheduled = msg.getLongProperty(SCHEDULED_PROPERTY);
+                if (scheduled >= measureStart && scheduled < measureEnd) {
+                    latency.record(now - scheduled);
+                }
+                if (now >= measureStart && now < measureEnd) {
+                    windowMessages.incrementAndGet();
+                    windowBytes.addAndGet(msg.getIntProperty(SIZE_PROPERTY));
+                }
+            } catch (JMSException e) {
+                // not a message of the generator
+            }
+        }
+    }
+
+    /**
+     * Prints every second the messages sent and consumed so far.
+     */
+    private class Progress extends Thread {
+
+        private final long start;
+
+        Progress(long start) {
+            super("bench-progress");
+            this.start = start;
+            setDaemon(true);
+        }
+
+        public void run() {
+            long last = 0;
+            try {
+                while (true) {
+                    Thread.sleep(1000);
+                    long now = consumed.get();
+                    System.err.println("# t=" + (System.nanoTime() - start) / 1000000000L + "s sent=" + sent.get() + " consumed=" + now
+                            + " (" + (now - last) + "/s)" + ((memoryQueue != null) ? " backlog=" + memoryQueue.getDepth() : "")
+                            + (producing ? "" : " draining"));
+                    last = now;
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+    }
+
+    private void report(boolean consume, long failed) throws IOException {
+        double window = (duration - warmup) / 1000.0;
+        double messagesPerSecond = windowMessages.get() / window;
+        double megabytesPerSecond = windowBytes.get() / window / (1024 * 1024);
+
+        System.out.println();
+        System.out.println("Load: provider=" + provider + ", rate=" + ((rate > 0) ? BenchmarkResult.format(rate) + " msgs/s" : "unbounded")
+                + " (" + (poisson ? "poisson" : "fixed") + ", burst " + burst + "), producers=" + producers
+                + (consume ? ", consumers=" + consumers + ", batch.size=" + batchSize : ", not consumed"));
+        System.out.println("Messages: sizes=" + System.getProperty("bench.load.sizes", "4096") + ", types="
+                + System.getProperty("bench.load.types", Payloads.BYTES) + ", properties=" + properties.keySet());
+        System.out.println("Sent " + sent.get() + " (" + BenchmarkResult.format(sent.get() / (duration / 1000.0)) + " msgs/s), send failures "
+                + sendFailures.get() + (consume ? ", consumed " + consumed.get() + ", failed " + failed + ", not consumed " + (sent.get() - consumed.get()) : ""));
+        if (!consume) {
+            return;
+        }
+        System.out.println("Sustained over " + window + " s: " + BenchmarkResult.format(messagesPerSecond) + " msgs/s, "
+                + BenchmarkResult.format(megabytesPerSecond) + " MB/s");
+        System.out.println("End-to-end latency (ms): p50=" + millis(latency.getPercentile(50)) + " p90=" + millis(latency.getPercentile(90))
+                + " p99=" + millis(latency.getPercentile(99)) + " p99.9=" + millis(latency.getPercentile(99.9)) + " max=" + millis(latency.getMax()));
+        Metrics metrics = Metrics.getInstance();
+        System.out.println("Processing p99 (us): consume=" + metrics.getConsumeP99() + " open=" + metrics.getOpenP99() + " write="
+                + metrics.getWriteP99() + " sync=" + metrics.getSyncP99() + " close=" + metrics.getCloseP99());
+
+        String output = System.getProperty("bench.output");
+        if (output != null) {
+            PrintWriter out = new PrintWriter(new FileWriter(output));
+            try {
+                out.println("provider,rate,burst,arrival,producers,consumers,batch.size,sizes,types,sent,consumed,failed,msgs/s,MB/s,p50 ms,p90 ms,p99 ms,p99.9 ms,max ms");
+                out.println(provider + "," + rate + "," + burst + "," + (poisson ? "poisson" : "fixed") + "," + producers + "," + consumers + "," + batchSize
+                        + ",\"" + System.getProperty("bench.load.sizes", "4096") + "\",\"" + System.getProperty("bench.load.types", Payloads.BYTES) + "\","
+                        + sent.get() + "," + consumed.get() + "," + failed + "," + Math.round(messagesPerSecond * 10) / 10.0 + "," + Math.round(megabytesPerSecond * 10) / 10.0 + ","
+                        + millis(latency.getPercentile(50)) + "," + millis(latency.getPercentile(90)) + "," + millis(latency.getPercentile(99)) + ","
+                        + millis(latency.getPercentile(99.9)) + "," + millis(latency.getMax()));
+            } finally {
+                out.close();
+            }
+            System.out.println("Report written to " + output);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return Double.toString(Math.round(nanos / 10000.0) / 100.0);
+    }
+
+    /**
+     * Values chosen at random with their weights.
+     */
+    private static class Choice<T> {
+
+        final List<T> values = new ArrayList<T>();
+        private final List<Double> cumulative = new ArrayList<Double>();
+        private double total = 0;
+
+        void add(T value, double weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Invalid weight " + weight + " of " + value);
+            }
+            total += weight;
+            values.add(value);
+            cumulative.add(new Double(total));
+        }
+
+        T next(Random random) {
+            double r = random.nextDouble() * total;
+            for (int i = 0; i < values.size() - 1; i++) {
+                if (r < cumulative.get(i).doubleValue()) {
+                    return values.get(i);
+                }
+            }
+            return values.get(values.size() - 1);
+        }
+
+        /**
+         * Returns the value of <i>value:weight</i>.
+         */
+        static String value(String s) {
+            int colon = s.indexOf(':');
+            return (colon > 0) ? s.substring(0, colon).trim() : s.trim();
+        }
+
+        /**
+         * Returns the weight of <i>value:weight</i>, 1 if missing.
+         */
+        static double weight(String s) {
+            int colon = s.indexOf(':');
+            return (colon > 0) ? Double.parseDouble(s.substring(colon + 1).trim()) : 1;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+/**
+ * Operation measured by <code>BenchmarkRunner</code>. Every thread of the
+ * benchmark invokes its own instance, so that the state the operation
+ * needs, e.g. its message, does not have to be shared.
+ * @author Marco Ratto
+ */
+public interface Operation {
+
+    /**
+     * Runs the operation once.
+     * @return long the bytes processed, 0 if not meaningful
+     * @throws Exception if the operation fails: the benchmark is aborted
+     */
+    public long run() throws Exception;
+
+    /**
+     * Creates the operation of every thread of the benchmark.
+     */
+    public interface Factory {
+
+        /**
+         * @param thread the index of the thread, from 0
+         * @return Operation
+         * @throws Exception
+         */
+        public Operation create(int thread) throws Exception;
+
+        /**
+         * Called after every iteration, warm-up included, when the threads
+         * have stopped, e.g. to delete the files written.
+         * @throws Exception
+         */
+        public void afterIteration() throws Exception;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.util.Random;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import uk.co.marcoratto.jms.memory.MemoryBytesMessage;
+import uk.co.marcoratto.jms.memory.MemoryTextMessage;
+
+/**
+ * Synthetic messages for the benchmarks. The payloads are generated from a
+ * seed, so that every run writes the same content.
+ * @author Marco Ratto
+ */
+public class Payloads {
+
+    public static final String BYTES = "bytes";
+
+    public static final String TEXT = "text";
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789 <>/=\"\n";
+
+    private Payloads() {
+    }
+
+    /**
+     * Returns <code>size</code> random bytes.
+     * @param size
+     * @param seed
+     * @return byte[]
+     */
+    public static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a text of <code>size</code> characters looking like XML, one
+     * character in 64 outside ASCII so that the encoder cannot take its fast path.
+     * @param size
+     * @param seed
+     * @return String
+     */
+    public static String randomText(int size, long seed) {
+        Random random = new Random(seed);
+        char[] text = new char[size];
+        for (int i = 0; i < size; i++) {
+            text[i] = (i % 64 == 63) ? '\u00E8' : ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(text);
+    }
+
+    /**
+     * Creates a message of the in-memory provider, ready to be consumed.
+     * @param type <code>BYTES</code> or <code>TEXT</code>
+     * @param size the bytes of the body, or the characters of the text
+     * @param seed
+     * @return Message
+     */
+    public static Message createMessage(String type, int size, long seed) {
+        Message msg;
+        if (BYTES.equals(type)) {
+            msg = new MemoryBytesMessage(randomBytes(size, seed));
+        } else if (TEXT.equals(type)) {
+            msg = new MemoryTextMessage(randomText(size, seed));
+        } else {
+            throw new IllegalArgumentException("Unsupported message type " + type);
+        }
+        try {
+            msg.setJMSMessageID("ID:bench-" + seed);
+            msg.setJMSTimestamp(System.currentTimeMillis());
+        } catch (JMSException e) {
+            // not thrown by the in-memory provider
+            throw new IllegalStateException(e.getMessage());
+        }
+        return msg;
+    }
+}
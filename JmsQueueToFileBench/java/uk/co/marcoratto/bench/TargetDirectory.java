@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Directory created for the files written by a benchmark, and deleted at its end.
+ * @author Marco Ratto
+ */
+public class TargetDirectory {
+
+    private final File directory;
+
+    /**
+     * Creates a new directory in <code>root</code>.
+     * @param root
+     * @throws IOException if the directory cannot be created
+     */
+    public TargetDirectory(File root) throws IOException {
+        directory = new File(root, "JmsQueueToFileBench-" + System.currentTimeMillis() + "-" + System.nanoTime() % 1000000);
+        if (!directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Deletes the content of the directory.
+     */
+    public void clean() {
+        clean(directory);
+    }
+
+    /**
+     * Deletes the directory and its content.
+     */
+    public void delete() {
+        clean(directory);
+        directory.delete();
+    }
+
+    private static void clean(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].isDirectory()) {
+                clean(files[i]);
+            }
+            files[i].delete();
+        }
+    }
+}
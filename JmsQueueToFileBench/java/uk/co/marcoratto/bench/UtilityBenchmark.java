@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.Message;
+
+import uk.co.marcoratto.util.Utility;
+
+/**
+ * Microbenchmarks of the helpers of <code>Utility</code> called for every message:
+ * <BR>- <b>parseStringWithPattern</b>: the templates in <b>bench.patterns</b>, separated by
+ * <i>|</i> (default a dated pathname and a unique one);
+ * <BR>- <b>replaceAll</b>: a pathname with two occurrences of the word replaced;
+ * <BR>- <b>copyInputStream</b>: a payload of every size in <b>bench.payload.sizes</b>
+ * (default <i>1024,65536,1048576</i>) to an <code>OutputStream</code> discarding it;
+ * <BR>- <b>getInputStream</b>: a <code>BytesMessage</code> and a <code>TextMessage</code> of every size.
+ * <BR><b>bench.methods</b> selects some of them (default all), <b>bench.threads</b>
+ * the number of threads (default 1).
+ * <P>
+ * The bytes allocated per operation are reported as by the JMH profiler
+ * <i>-prof gc</i> (see <code>GcProfiler</code>); the baseline of the
+ * release is in <i>results/utility-baseline.csv</i>:
+ * <PRE>
+ * java -Dbench.output=utility.csv -Dbench.baseline=JmsQueueToFileBench/results/utility-baseline.csv uk.co.marcoratto.bench.UtilityBenchmark
+ * </PRE>
+ * @author Marco Ratto
+ */
+public class UtilityBenchmark {
+
+    public static final String PARSE = "parseStringWithPattern";
+
+    public static final String REPLACE = "replaceAll";
+
+    public static final String COPY = "copyInputStream";
+
+    public static final String INPUT_STREAM = "getInputStream";
+
+    private static final String DEFAULT_PATTERNS = "/data/in/%Y%M%D/%h%m%s%S.xml|/data/in/%Y%M%D/%u.xml";
+
+    /**
+     * Operations shorter than a microsecond are timed in batches of this size.
+     */
+    private static final int BATCH = 100;
+
+    public static void main(String[] args) throws Exception {
+        Logger.getLogger("uk.co.marcoratto").setLevel(Level.parse(System.getProperty("bench.log.level", "WARNING")));
+
+        String[] methods = BenchConfig.getList("bench.methods", PARSE + "," + REPLACE + "," + COPY + "," + INPUT_STREAM);
+        String[] patterns = System.getProperty("bench.patterns", DEFAULT_PATTERNS).split("\\|");
+        int[] sizes = BenchConfig.getIntList("bench.payload.sizes", "1024,65536,1048576");
+        int threads = Integer.getInteger("bench.threads", 1).intValue();
+
+        Properties prop = BenchConfig.loadBase();
+        if (prop.getProperty("target.pathname") == null) {
+            prop.setProperty("target.pathname", System.getProperty("java.io.tmpdir") + File.separator + "%u.msg");
+        }
+        BenchConfig.apply(prop);
+
+        BenchmarkRunner runner = BenchmarkRunner.fromSystemProperties();
+        List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        for (int m = 0; m < methods.length; m++) {
+            String method = methods[m];
+            if (PARSE.equals(method)) {
+                for (int i = 0; i < patterns.length; i++) {
+                    results.add(runner.run(method, "pattern=" + patterns[i], threads, BATCH, parse(patterns[i])));
+                }
+            } else if (REPLACE.equals(method)) {
+                results.add(runner.run(method, "in=pathname", threads, BATCH, replace()));
+            } else if (COPY.equals(method)) {
+                for (int s = 0; s < sizes.length; s++) {
+                    results.add(runner.run(method, "size=" + sizes[s], threads, batchOf(sizes[s]), copy(sizes[s])));
+                }
+            } else if (INPUT_STREAM.equals(method)) {
+                for (int s = 0; s < sizes.length; s++) {
+                    results.add(runner.run(method, "type=" + Payloads.BYTES + ",size=" + sizes[s], threads, batchOf(sizes[s]),
+                            inputStream(Payloads.BYTES, sizes[s])));
+                    results.add(runner.run(method, "type=" + Payloads.TEXT + ",size=" + sizes[s], threads, batchOf(sizes[s]),
+                            inputStream(Payloads.TEXT, sizes[s])));
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown benchmark " + method);
+            }
+        }
+        BenchmarkResult.report(results);
+        System.exit(0);
+    }
+
+    private static int batchOf(int size) {
+        return (size <= 4096) ? BATCH : 1;
+    }
+
+    private static Operation.Factory parse(final String pattern) {
+        return new SimpleFactory() {
+            public Operation create(int thread) {
+                return new Operation() {
+                    public long run() {
+                        return Utility.parseStringWithPattern(pattern).length();
+                    }
+                };
+            }
+        };
+    }
+
+    private static Operation.Factory replace() {
+        return new SimpleFactory() {
+            public Operation create(int thread) {
+                return new Operation() {
+                    public long run() {
+                        return Utility.replaceAll("/data/in/NODE/2010/NODE-000123.xml", "NODE", "server01").length();
+                    }
+                };
+            }
+        };
+    }
+
+    private static Operation.Factory copy(final int size) {
+        return new SimpleFactory() {
+            public Operation create(int thread) {
+                final byte[] payload = Payloads.randomBytes(size, thread);
+                final NullOutputStream out = new NullOutputStream();
+                return new Operation() {
+                    public long run() throws Exception {
+                        out.count = 0;
+                        Utility.copyInputStream(new ByteArrayInputStream(payload), out, false);
+                        return out.count;
+                    }
+                };
+            }
+        };
+    }
+
+    private static Operation.Factory inputStream(final String type, final int size) {
+        return new SimpleFactory() {
+            public Operation create(int thread) {
+                final Message msg = Payloads.createMessage(type, size, thread);
+                return new Operation() {
+                    public long run() throws Exception {
+                        if (msg instanceof BytesMessage) {
+                            ((BytesMessage) msg).reset();
+                        }
+                        InputStream in = Utility.getInputStream(msg);
+                        return in.available();
+                    }
+                };
+            }
+        };
+    }
+
+    private abstract static class SimpleFactory implements Operation.Factory {
+
+        public void afterIteration() {
+        }
+    }
+
+    /**
+     * Counts and discards the bytes written, so that only the copy is measured.
+     */
+    private static class NullOutputStream extends OutputStream {
+
+        long count = 0;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.jms.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageNotReadableException;
+
+/**
+ * <code>BytesMessage</code> of the in-memory provider, holding its body in an array.
+ * <P>
+ * A message built with <code>MemoryBytesMessage(byte[])</code> wraps the
+ * array without copying it and is ready to be read, so that the same payload
+ * can be consumed many times after <code>reset()</code> without allocating.
+ * The position of the reader is not shared safely between threads.
+ * @author Marco Ratto
+ */
+public class MemoryBytesMessage extends MemoryMessage implements BytesMessage {
+
+    private byte[] body;
+    private int length;
+    private int position = 0;
+
+    /**
+     * Builds an empty message, writable.
+     */
+    public MemoryBytesMessage() {
+        this.body = new byte[256];
+        this.length = 0;
+    }
+
+    /**
+     * Builds a read-only message whose body is <code>body</code>, not copied.
+     * @param body
+     */
+    public MemoryBytesMessage(byte[] body) {
+        this.body = body;
+        this.length = body.length;
+        this.readOnly = true;
+    }
+
+    public long getBodyLength() throws JMSException {
+        checkReadable();
+        return length;
+    }
+
+    public boolean readBoolean() throws JMSException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws JMSException {
+        checkReadable();
+        if (position >= length) {
+            throw new MessageEOFException("End of the body");
+        }
+        return body[position++];
+    }
+
+    public int readUnsignedByte() throws JMSException {
+        return readByte() & 0xFF;
+    }
+
+    public short readShort() throws JMSException {
+        return (short) readUnsignedShort();
+    }
+
+    public int readUnsignedShort() throws JMSException {
+        return (readUnsignedByte() << 8) | readUnsignedByte();
+    }
+
+    public char readChar() throws JMSException {
+        return (char) readUnsignedShort();
+    }
+
+    public int readInt() throws JMSException {
+        return (readUnsignedShort() << 16) | readUnsignedShort();
+    }
+
+    public long readLong() throws JMSException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public float readFloat() throws JMSException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws JMSException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public String readUTF() throws JMSException {
+        checkReadable();
+        ByteArrayInputStream in = new ByteArrayInputStream(body, position, length - position);
+        try {
+            String value = new DataInputStream(in).readUTF();
+            position = length - in.available();
+            return value;
+        } catch (IOException e) {
+            JMSException je = new MessageFormatException(e.getMessage());
+            je.setLinkedException(e);
+            throw je;
+        }
+    }
+
+    public int readBytes(byte[] value) throws JMSException {
+        return readBytes(value, value.length);
+    }
+
+    public int readBytes(byte[] value, int len) throws JMSException {
+        checkReadable();
+        if (len < 0 || len > value.length) {
+            throw new IndexOutOfBoundsException("length=" + len);
+        }
+        if (position >= length) {
+            return -1;
+        }
+        int n = Math.min(len, length - position);
+        System.arraycopy(body, position, value, 0, n);
+        position += n;
+        return n;
+    }
+
+    public void writeBoolean(boolean value) throws JMSException {
+        writeByte((byte) (value ? 1 : 0));
+    }
+
+    public void writeByte(byte value) throws JMSException {
+        checkWritable();
+        ensureCapacity(1);
+        body[length++] = value;
+    }
+
+    public void writeShort(short value) throws JMSException {
+        writeByte((byte) (value >>> 8));
+        writeByte((byte) value);
+    }
+
+    public void writeChar(char value) throws JMSException {
+        writeShort((short) value);
+    }
+
+    public void writeInt(int value) throws JMSException {
+        writeShort((short) (value >>> 16));
+        writeShort((short) value);
+    }
+
+    public void writeLong(long value) throws JMSException {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public void writeFloat(float value) throws JMSException {
+        writeInt(Float.floatToIntBits(value));
+    }
+
+    public void writeDouble(double value) throws JMSException {
+        writeLong(Double.doubleToLongBits(value));
+    }
+
+    public void writeUTF(String value) throws JMSException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(out).writeUTF(value);
+        } catch (IOException e) {
+            JMSException je = new MessageFormatException(e.getMessage());
+            je.setLinkedException(e);
+            throw je;
+        }
+        writeBytes(out.toByteArray());
+    }
+
+    public void writeBytes(byte[] value) throws JMSException {
+        writeBytes(value, 0, value.length);
+    }
+
+    public void writeBytes(byte[] value, int offset, int len) throws JMSException {
+        checkWritable();
+        ensureCapacity(len);
+        System.arraycopy(value, offset, body, length, len);
+        length += len;
+    }
+
+    public void writeObject(Object value) throws JMSException {
+        if (value instanceof Boolean) {
+            writeBoolean(((Boolean) value).booleanValue());
+        } else if (value instanceof Byte) {
+            writeByte(((Byte) value).byteValue());
+        } else if (value instanceof Short) {
+            writeShort(((Short) value).shortValue());
+        } else if (value instanceof Character) {
+            writeChar(((Character) value).charValue());
+        } else if (value instanceof Integer) {
+            writeInt(((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            writeLong(((Long) value).longValue());
+        } else if (value instanceof Float) {
+            writeFloat(((Float) value).floatValue());
+        } else if (value instanceof Double) {
+            writeDouble(((Double) value).doubleValue());
+        } else if (value instanceof String) {
+            writeUTF((String) value);
+        } else if (value instanceof byte[]) {
+            writeBytes((byte[]) value);
+        } else {
+            throw new MessageFormatException("Unsupported type " + ((value != null) ? value.getClass().getName() : null));
+        }
+    }
+
+    public void reset() {
+        readOnly = true;
+        position = 0;
+    }
+
+    public void clearBody() throws JMSException {
+        super.clearBody();
+        body = new byte[256];
+        length = 0;
+        position = 0;
+    }
+
+    void sent() throws JMSException {
+        reset();
+    }
+
+    private void checkReadable() throws MessageNotReadableException {
+        if (!readOnly) {
+            throw new MessageNotReadableException("The body of the message is write-only");
+        }
+    }
+
+    private void ensureCapacity(int more) {
+        if (length + more > body.length) {
+            byte[] larger = new byte[Math.max(body.length * 2, length + more)];
+            System.arraycopy(body, 0, larger, 0, length);
+            body = larger;
+        }
+    }
+}
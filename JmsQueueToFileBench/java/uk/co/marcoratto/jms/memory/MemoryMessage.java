@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.jms.memory;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageNotWriteableException;
+
+/**
+ * Message without body of the in-memory provider, holding its headers and
+ * properties in fields and a map.
+ * <P>
+ * The properties are converted as required by the JMS specification; the
+ * body is read-only once the message has been sent, until <code>clearBody</code>.
+ * @author Marco Ratto
+ */
+public class MemoryMessage implements Message {
+
+    private String messageID = null;
+    private long timestamp = 0;
+    private String correlationID = null;
+    private Destination replyTo = null;
+    private Destination destination = null;
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private boolean redelivered = false;
+    private String type = null;
+    private long expiration = 0;
+    private int priority = Message.DEFAULT_PRIORITY;
+
+    private final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+
+    protected boolean readOnly = false;
+
+    public String getJMSMessageID() {
+        return messageID;
+    }
+
+    public void setJMSMessageID(String id) {
+        this.messageID = id;
+    }
+
+    public long getJMSTimestamp() {
+        return timestamp;
+    }
+
+    public void setJMSTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public byte[] getJMSCorrelationIDAsBytes() {
+        return (correlationID != null) ? correlationID.getBytes() : null;
+    }
+
+    public void setJMSCorrelationIDAsBytes(byte[] correlationID) {
+        this.correlationID = (correlationID != null) ? new String(correlationID) : null;
+    }
+
+    public void setJMSCorrelationID(String correlationID) {
+        this.correlationID = correlationID;
+    }
+
+    public String getJMSCorrelationID() {
+        return correlationID;
+    }
+
+    public Destination getJMSReplyTo() {
+        return replyTo;
+    }
+
+    public void setJMSReplyTo(Destination replyTo) {
+        this.replyTo = replyTo;
+    }
+
+    public Destination getJMSDestination() {
+        return destination;
+    }
+
+    public void setJMSDestination(Destination destination) {
+        this.destination = destination;
+    }
+
+    public int getJMSDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public void setJMSDeliveryMode(int deliveryMode) {
+        this.deliveryMode = deliveryMode;
+    }
+
+    public boolean getJMSRedelivered() {
+        return redelivered;
+    }
+
+    public void setJMSRedelivered(boolean redelivered) {
+        this.redelivered = redelivered;
+    }
+
+    public String getJMSType() {
+        return type;
+    }
+
+    public void setJMSType(String type) {
+        this.type = type;
+    }
+
+    public long getJMSExpiration() {
+        return expiration;
+    }
+
+    public void setJMSExpiration(long expiration) {
+        this.expiration = expiration;
+    }
+
+    public int getJMSPriority() {
+        return priority;
+    }
+
+    public void setJMSPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public void clearProperties() {
+        properties.clear();
+    }
+
+    public boolean propertyExists(String name) {
+        return properties.containsKey(name);
+    }
+
+    public boolean getBooleanProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Boolean.valueOf((String) value).booleanValue();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value).booleanValue();
+        }
+        throw cannotConvert(name, value, "boolean");
+    }
+
+    public byte getByteProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Byte.parseByte((String) value);
+        } else if (value instanceof Byte) {
+            return ((Byte) value).byteValue();
+        }
+        throw cannotConvert(name, value, "byte");
+    }
+
+    public short getShortProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Short.parseShort((String) value);
+        } else if (value instanceof Byte || value instanceof Short) {
+            return ((Number) value).shortValue();
+        }
+        throw cannotConvert(name, value, "short");
+    }
+
+    public int getIntProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Integer.parseInt((String) value);
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer) {
+            return ((Number) value).intValue();
+        }
+        throw cannotConvert(name, value, "int");
+    }
+
+    public long getLongProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Long.parseLong((String) value);
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long) {
+            return ((Number) value).longValue();
+        }
+        throw cannotConvert(name, value, "long");
+    }
+
+    public float getFloatProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null) {
+            throw new NullPointerException("Property " + name + " not set");
+        } else if (value instanceof String) {
+            return Float.parseFloat((String) value);
+        } else if (value instanceof Float) {
+            return ((Float) value).floatValue();
+        }
+        throw cannotConvert(name, value, "float");
+    }
+
+    public double getDoubleProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null) {
+            throw new NullPointerException("Property " + name + " not set");
+        } else if (value instanceof String) {
+            return Double.parseDouble((String) value);
+        } else if (value instanceof Float || value instanceof Double) {
+            return ((Number) value).doubleValue();
+        }
+        throw cannotConvert(name, value, "double");
+    }
+
+    public String getStringProperty(String name) {
+        Object value = properties.get(name);
+        return (value != null) ? value.toString() : null;
+    }
+
+    public Object getObjectProperty(String name) {
+        return properties.get(name);
+    }
+
+    public Enumeration<String> getPropertyNames() {
+        return Collections.enumeration(properties.keySet());
+    }
+
+    public void setBooleanProperty(String name, boolean value) throws JMSException {
+        setProperty(name, Boolean.valueOf(value));
+    }
+
+    public void setByteProperty(String name, byte value) throws JMSException {
+        setProperty(name, new Byte(value));
+    }
+
+    public void setShortProperty(String name, short value) throws JMSException {
+        setProperty(name, new Short(value));
+    }
+
+    public void setIntProperty(String name, int value) throws JMSException {
+        setProperty(name, new Integer(value));
+    }
+
+    public void setLongProperty(String name, long value) throws JMSException {
+        setProperty(name, new Long(value));
+    }
+
+    public void setFloatProperty(String name, float value) throws JMSException {
+        setProperty(name, new Float(value));
+    }
+
+    public void setDoubleProperty(String name, double value) throws JMSException {
+        setProperty(name, new Double(value));
+    }
+
+    public void setStringProperty(String name, String value) throws JMSException {
+        setProperty(name, value);
+    }
+
+    public void setObjectProperty(String name, Object value) throws JMSException {
+        if (value != null && !(value instanceof Boolean || value instanceof Number || value instanceof String)) {
+            throw new MessageFormatException("Unsupported type " + value.getClass().getName() + " of property " + name);
+        }
+        setProperty(name, value);
+    }
+
+    private void setProperty(String name, Object value) throws JMSException {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("Empty property name");
+        }
+        properties.put(name, value);
+    }
+
+    private static MessageFormatException cannotConvert(String name, Object value, String type) {
+        return new MessageFormatException("Property " + name + " of type " + value.getClass().getName() + " cannot be read as " + type);
+    }
+
+    public void acknowledge() {
+    }
+
+    public void clearBody() throws JMSException {
+        readOnly = false;
+    }
+
+    /**
+     * Makes the body read-only, as the provider does when the message is sent.
+     * @throws JMSException
+     */
+    void sent() throws JMSException {
+        readOnly = true;
+    }
+
+    protected void checkWritable() throws MessageNotWriteableException {
+        if (readOnly) {
+            throw new MessageNotWriteableException("The body of the message is read-only");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.jms.memory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Message;
+import javax.jms.Queue;
+
+/**
+ * <code>Queue</code> of the in-memory provider, holding its messages in a
+ * <code>LinkedBlockingQueue</code>, in order of arrival.
+ * <BR>The queues are created by <code>MemoryQueueConnectionFactory.getQueue</code>,
+ * one for every name.
+ * @author Marco Ratto
+ */
+public class MemoryQueue implements Queue {
+
+    private final String name;
+
+    private final BlockingQueue<Message> messages;
+
+    /**
+     * @param name the name of the queue
+     * @param capacity the maximum number of messages, senders wait while the queue is full
+     */
+    MemoryQueue(String name, int capacity) {
+        this.name = name;
+        this.messages = new LinkedBlockingQueue<Message>(capacity);
+    }
+
+    public String getQueueName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of messages waiting in the queue.
+     * @return int
+     */
+    public int getDepth() {
+        return messages.size();
+    }
+
+    /**
+     * Removes all the messages of the queue.
+     */
+    public void clear() {
+        messages.clear();
+    }
+
+    void put(Message msg) throws InterruptedException {
+        messages.put(msg);
+    }
+
+    /**
+     * Puts back a message whose delivery has been rolled back; if the queue
+     * is full it is lost, as it cannot wait holding the session.
+     */
+    boolean putBack(Message msg) {
+        return messages.offer(msg);
+    }
+
+    Message poll(long timeout) throws InterruptedException {
+        if (timeout < 0) {
+            return messages.poll();
+        } else if (timeout == 0) {
+            return messages.take();
+        }
+        return messages.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public String toString() {
+        return "queue://" + name;
+    }
+}
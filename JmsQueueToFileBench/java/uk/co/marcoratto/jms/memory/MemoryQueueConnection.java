@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.jms.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.ConnectionConsumer;
+import javax.jms.ConnectionMetaData;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueSession;
+import javax.jms.ServerSessionPool;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * <code>QueueConnection</code> of the in-memory provider. Its receivers get
+ * messages only while the connection is started.
+ * @author Marco Ratto
+ */
+public class MemoryQueueConnection implements QueueConnection {
+
+    private final MemoryQueueConnectionFactory factory;
+
+    private final List<MemoryQueueSession> sessions = new ArrayList<MemoryQueueSession>();
+
+    private String clientID = null;
+
+    private ExceptionListener exceptionListener = null;
+
+    private volatile boolean started = false;
+
+    private volatile boolean closed = false;
+
+    MemoryQueueConnection(MemoryQueueConnectionFactory factory) {
+        this.factory = factory;
+    }
+
+    MemoryQueueConnectionFactory getFactory() {
+        return factory;
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    void checkOpen() throws IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("The connection is closed");
+        }
+    }
+
+    public synchronized QueueSession createQueueSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        checkOpen();
+        MemoryQueueSession session = new MemoryQueueSession(this, transacted, acknowledgeMode);
+        sessions.add(session);
+        return session;
+    }
+
+    public Session createSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        return createQueueSession(transacted, acknowledgeMode);
+    }
+
+    synchronized void removeSession(MemoryQueueSession session) {
+        sessions.remove(session);
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    public void setClientID(String clientID) {
+        this.clientID = clientID;
+    }
+
+    public ConnectionMetaData getMetaData() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public ExceptionListener getExceptionListener() {
+        return exceptionListener;
+    }
+
+    public void setExceptionListener(ExceptionListener listener) {
+        this.exceptionListener = listener;
+    }
+
+    public void start() throws JMSException {
+        checkOpen();
+        started = true;
+    }
+
+    public void stop() throws JMSException {
+        checkOpen();
+        started = false;
+    }
+
+    /**
+     * Closes the sessions of the connection, rolling back their transactions.
+     */
+    public void close() throws JMSException {
+        List<MemoryQueueSession> closing;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            started = false;
+            closing = new ArrayList<MemoryQueueSession>(sessions);
+        }
+        for (MemoryQueueSession session : closing) {
+            session.close();
+        }
+    }
+
+    public ConnectionConsumer createConnectionConsumer(Queue queue, String selector, ServerSessionPool pool, int maxMessages) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public ConnectionConsumer createConnectionConsumer(Destination destination, String selector, ServerSessionPool pool, int maxMessages) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public ConnectionConsumer createDurableConnectionConsumer(Topic topic, String name, String selector, ServerSessionPool pool, int maxMessages) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.jms.memory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.QueueConnection;
+import javax.jms.QueueConnectionFactory;
+
+/**
+ * <code>QueueConnectionFactory</code> of a JMS provider living in the JVM,
+ * without network, persistence or transactions spanning other resources;
+ * used to run the application and its benchmarks without a queue manager.
+ * <P>
+ * The queues are shared by all the factories of the JVM, as by the clients of
+ * a queue manager, and created the first time they are named. A queue keeps
+ * at most <b>capacity</b> messages (default <code>DEFAULT_CAPACITY</code>),
+ * the senders wait while it is full. The factory can be instantiated by name,
+ * e.g. by <code>StandaloneConsumer</code> with <i>consumer.factory.class</i>.
+ * <P>
+ * Supported: <code>BytesMessage</code>, <code>TextMessage</code> and
+ * <code>Message</code>; senders and synchronous receivers; sessions
+ * transacted or auto-acknowledge. Not supported: topics, selectors, browsers,
+ * temporary queues, message listeners and connection consumers.
+ * @author Marco Ratto
+ */
+public class MemoryQueueConnectionFactory implements QueueConnectionFactory {
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private static final Map<String, MemoryQueue> queues = new ConcurrentHashMap<String, MemoryQueue>();
+
+    private int capacity = DEFAULT_CAPACITY;
+
+    public MemoryQueueConnectionFactory() {
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the capacity of the queues created from now on.
+     * @param capacity
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the queue named <code>name</code>, creating it if it does not exist.
+     * @param name
+     * @return MemoryQueue
+     */
+    public MemoryQueue getQueue(String name) {
+        MemoryQueue queue = queues.get(name);
+        if (queue == null) {
+            synchronized (queues) {
+                queue = queues.get(name);
+                if (queue == null) {
+                    queue = new MemoryQueue(name, capacity);
+                    queues.put(name, queue);
+                }
+            }
+        }
+        return queue;
+    }
+
+    public QueueConnection createQueueConnection() {
+        return new MemoryQueueConnection(this);
+    }
+
+    public QueueConnection createQueueConnection(String user, String password) {
+        return createQueueConnection();
+    }
+
+    public Connection createConnection() throws JMSException {
+        return createQueueConnection();
+    }
+
+    public Connection createConnection(String user, String password) throws JMSException {
+        return createQueueConnection();
+    }
+}
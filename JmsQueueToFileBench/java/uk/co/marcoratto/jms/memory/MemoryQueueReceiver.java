@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.jms.memory;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.QueueReceiver;
+
+/**
+ * <code>QueueReceiver</code> of the in-memory provider, receiving synchronously.
+ * <BR>While the connection is stopped no message is received and
+ * <code>receive</code> waits for the timeout. Expired messages are discarded.
+ * @author Marco Ratto
+ */
+public class MemoryQueueReceiver implements QueueReceiver {
+
+    private static final long STOPPED_POLL = 100;
+
+    private final MemoryQueueSession session;
+
+    private final MemoryQueue queue;
+
+    private volatile boolean closed = false;
+
+    MemoryQueueReceiver(MemoryQueueSession session, MemoryQueue queue) {
+        this.session = session;
+        this.queue = queue;
+    }
+
+    public Queue getQueue() {
+        return queue;
+    }
+
+    public String getMessageSelector() {
+        return null;
+    }
+
+    public MessageListener getMessageListener() {
+        return null;
+    }
+
+    public void setMessageListener(MessageListener listener) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public Message receive() throws JMSException {
+        return receive(0);
+    }
+
+    public Message receiveNoWait() throws JMSException {
+        return receive(-1);
+    }
+
+    /**
+     * @param timeout milliseconds to wait, 0 to wait forever, negative not to wait
+     */
+    public Message receive(long timeout) throws JMSException {
+        long end = (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        try {
+            while (true) {
+                session.checkOpen();
+                if (closed) {
+                    return null;
+                }
+                long wait = (timeout > 0) ? end - System.currentTimeMillis() : timeout;
+                if (timeout > 0 && wait <= 0) {
+                    return null;
+                }
+                Message msg;
+                if (session.getConnection().isStarted()) {
+                    msg = queue.poll((timeout == 0) ? STOPPED_POLL : wait);
+                } else if (timeout < 0) {
+                    return null;
+                } else {
+                    Thread.sleep((timeout == 0) ? STOPPED_POLL : Math.min(wait, STOPPED_POLL));
+                    continue;
+                }
+                if (msg != null) {
+                    long expiration = msg.getJMSExpiration();
+                    if (expiration != 0 && expiration < System.currentTimeMillis()) {
+                        continue;
+                    }
+                    session.received(msg);
+                    return msg;
+                } else if (timeout != 0) {
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.jms.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.QueueSender;
+
+/**
+ * <code>QueueSender</code> of the in-memory provider. The message sent is
+ * queued as it is, not copied: it must not be changed until it has been received.
+ * @author Marco Ratto
+ */
+public class MemoryQueueSender implements QueueSender {
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private final MemoryQueueSession session;
+
+    private final MemoryQueue queue;
+
+    private boolean disableMessageID = false;
+    private boolean disableMessageTimestamp = false;
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private int priority = Message.DEFAULT_PRIORITY;
+    private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+
+    MemoryQueueSender(MemoryQueueSession session, MemoryQueue queue) {
+        this.session = session;
+        this.queue = queue;
+    }
+
+    public Queue getQueue() {
+        return queue;
+    }
+
+    public Destination getDestination() {
+        return queue;
+    }
+
+    public void setDisableMessageID(boolean value) {
+        this.disableMessageID = value;
+    }
+
+    public boolean getDisableMessageID() {
+        return disableMessageID;
+    }
+
+    public void setDisableMessageTimestamp(boolean value) {
+        this.disableMessageTimestamp = value;
+    }
+
+    public boolean getDisableMessageTimestamp() {
+        return disableMessageTimestamp;
+    }
+
+    public void setDeliveryMode(int deliveryMode) {
+        this.deliveryMode = deliveryMode;
+    }
+
+    public int getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public void close() {
+    }
+
+    public void send(Message msg) throws JMSException {
+        send(queue, msg, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Message msg, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send(queue, msg, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Queue queue, Message msg) throws JMSException {
+        send(queue, msg, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Queue queue, Message msg, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send((Destination) queue, msg, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Destination destination, Message msg) throws JMSException {
+        send(destination, msg, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Destination destination, Message msg, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        if (destination == null) {
+            throw new InvalidDestinationException("No destination");
+        }
+        if (queue != null && destination != queue) {
+            throw new UnsupportedOperationException("The sender has the destination " + queue);
+        }
+        MemoryQueue target = session.toMemoryQueue(destination);
+        long now = System.currentTimeMillis();
+        msg.setJMSDestination(target);
+        msg.setJMSDeliveryMode(deliveryMode);
+        msg.setJMSPriority(priority);
+        msg.setJMSExpiration((timeToLive > 0) ? now + timeToLive : 0);
+        msg.setJMSMessageID(disableMessageID ? null : "ID:memory-" + sequence.incrementAndGet());
+        msg.setJMSTimestamp(disableMessageTimestamp ? 0 : now);
+        msg.setJMSRedelivered(false);
+        session.send(target, msg);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.jms.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSender;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+
+/**
+ * <code>QueueSession</code> of the in-memory provider.
+ * <P>
+ * A transacted session keeps the messages sent until <code>commit</code>,
+ * and the messages received until <code>commit</code> or <code>rollback</code>,
+ * which puts them back in their queue marked as redelivered. Any other
+ * session acknowledges every message as soon as it is received.
+ * @author Marco Ratto
+ */
+public class MemoryQueueSession implements QueueSession {
+
+    private final MemoryQueueConnection connection;
+
+    private final boolean transacted;
+
+    private final int acknowledgeMode;
+
+    private final List<Message> sent = new ArrayList<Message>();
+
+    private final List<Message> received = new ArrayList<Message>();
+
+    private volatile boolean closed = false;
+
+    MemoryQueueSession(MemoryQueueConnection connection, boolean transacted, int acknowledgeMode) {
+        this.connection = connection;
+        this.transacted = transacted;
+        this.acknowledgeMode = transacted ? Session.SESSION_TRANSACTED : acknowledgeMode;
+    }
+
+    MemoryQueueConnection getConnection() {
+        return connection;
+    }
+
+    void checkOpen() throws IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("The session is closed");
+        }
+    }
+
+    /**
+     * Delivers <code>msg</code> to <code>queue</code>, at the commit if the session is transacted.
+     */
+    void send(MemoryQueue queue, Message msg) throws JMSException {
+        checkOpen();
+        if (msg instanceof MemoryMessage) {
+            ((MemoryMessage) msg).sent();
+        }
+        if (transacted) {
+            synchronized (this) {
+                sent.add(msg);
+            }
+            return;
+        }
+        put(queue, msg);
+    }
+
+    /**
+     * Takes note of a message received, to put it back at the rollback.
+     */
+    void received(Message msg) {
+        if (transacted) {
+            synchronized (this) {
+                received.add(msg);
+            }
+        }
+    }
+
+    private static void put(MemoryQueue queue, Message msg) throws JMSException {
+        try {
+            queue.put(msg);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted sending to " + queue);
+        }
+    }
+
+    public BytesMessage createBytesMessage() throws JMSException {
+        checkOpen();
+        return new MemoryBytesMessage();
+    }
+
+    public Message createMessage() throws JMSException {
+        checkOpen();
+        return new MemoryMessage();
+    }
+
+    public TextMessage createTextMessage() throws JMSException {
+        return createTextMessage(null);
+    }
+
+    public TextMessage createTextMessage(String text) throws JMSException {
+        checkOpen();
+        return new MemoryTextMessage(text);
+    }
+
+    public MapMessage createMapMessage() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public ObjectMessage createObjectMessage() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public ObjectMessage createObjectMessage(Serializable object) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public StreamMessage createStreamMessage() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public boolean getTransacted() throws JMSException {
+        checkOpen();
+        return transacted;
+    }
+
+    public int getAcknowledgeMode() throws JMSException {
+        checkOpen();
+        return acknowledgeMode;
+    }
+
+    public void commit() throws JMSException {
+        checkOpen();
+        if (!transacted) {
+            throw new IllegalStateException("The session is not transacted");
+        }
+        List<Message> delivering;
+        synchronized (this) {
+            delivering = new ArrayList<Message>(sent);
+            sent.clear();
+            received.clear();
+        }
+        for (Message msg : delivering) {
+            put((MemoryQueue) msg.getJMSDestination(), msg);
+        }
+    }
+
+    public void rollback() throws JMSException {
+        checkOpen();
+        if (!transacted) {
+            throw new IllegalStateException("The session is not transacted");
+        }
+        rollbackReceived();
+    }
+
+    private void rollbackReceived() throws JMSException {
+        List<Message> returning;
+        synchronized (this) {
+            returning = new ArrayList<Message>(received);
+            sent.clear();
+            received.clear();
+        }
+        for (Message msg : returning) {
+            msg.setJMSRedelivered(true);
+            ((MemoryQueue) msg.getJMSDestination()).putBack(msg);
+        }
+    }
+
+    /**
+     * Closes the session, rolling back its transaction.
+     */
+    public void close() throws JMSException {
+        if (closed) {
+            return;
+        }
+        rollbackReceived();
+        closed = true;
+        connection.removeSession(this);
+    }
+
+    public void recover() throws JMSException {
+        checkOpen();
+        if (transacted) {
+            throw new IllegalStateException("The session is transacted");
+        }
+    }
+
+    public MessageListener getMessageListener() throws JMSException {
+        return null;
+    }
+
+    public void setMessageListener(MessageListener listener) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public void run() {
+    }
+
+    public Queue createQueue(String name) throws JMSException {
+        checkOpen();
+        return connection.getFactory().getQueue(name);
+    }
+
+    public QueueReceiver createReceiver(Queue queue) throws JMSException {
+        checkOpen();
+        return new MemoryQueueReceiver(this, toMemoryQueue(queue));
+    }
+
+    public QueueReceiver createReceiver(Queue queue, String selector) throws JMSException {
+        if (selector != null && selector.trim().length() > 0) {
+            throw new JMSException("Selectors not supported");
+        }
+        return createReceiver(queue);
+    }
+
+    public QueueSender createSender(Queue queue) throws JMSException {
+        checkOpen();
+        return new MemoryQueueSender(this, (queue != null) ? toMemoryQueue(queue) : null);
+    }
+
+    public MessageProducer createProducer(Destination destination) throws JMSException {
+        return createSender((Queue) destination);
+    }
+
+    public MessageConsumer createConsumer(Destination destination) throws JMSException {
+        return createReceiver(toMemoryQueue(destination));
+    }
+
+    public MessageConsumer createConsumer(Destination destination, String selector) throws JMSException {
+        return createReceiver(toMemoryQueue(destination), selector);
+    }
+
+    public MessageConsumer createConsumer(Destination destination, String selector, boolean noLocal) throws JMSException {
+        return createReceiver(toMemoryQueue(destination), selector);
+    }
+
+    public Topic createTopic(String name) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name, String selector, boolean noLocal) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public QueueBrowser createBrowser(Queue queue) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public QueueBrowser createBrowser(Queue queue, String selector) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public TemporaryQueue createTemporaryQueue() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public TemporaryTopic createTemporaryTopic() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public void unsubscribe(String name) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    /**
+     * Returns the queue of this provider with the same name as <code>destination</code>,
+     * so that the queues created by another provider, e.g. looked up in JNDI, can be used.
+     */
+    MemoryQueue toMemoryQueue(Destination destination) throws JMSException {
+        if (destination instanceof MemoryQueue) {
+            return (MemoryQueue) destination;
+        } else if (destination instanceof Queue) {
+            return connection.getFactory().getQueue(((Queue) destination).getQueueName());
+        }
+        throw new InvalidDestinationException("Unsupported destination " + destination);
+    }
+}
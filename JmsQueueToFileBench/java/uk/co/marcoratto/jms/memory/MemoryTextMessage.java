@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.jms.memory;
+
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+
+/**
+ * <code>TextMessage</code> of the in-memory provider.
+ * @author Marco Ratto
+ */
+public class MemoryTextMessage extends MemoryMessage implements TextMessage {
+
+    private String text;
+
+    public MemoryTextMessage() {
+        this(null);
+    }
+
+    public MemoryTextMessage(String text) {
+        this.text = text;
+    }
+
+    public void setText(String text) throws JMSException {
+        checkWritable();
+        this.text = text;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void clearBody() throws JMSException {
+        super.clearBody();
+        text = null;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the tests of the utilities, with no other library than the JDK and
+ * the in-memory JMS provider of the benchmarks.
+ * <P>
+ * Every public method of a test class whose name starts with <i>test</i>
+ * is run on a new instance of the class; a test fails by throwing, usually
+ * through the checks of this class. The tests are:
+ * <BR>- <b>GroupCommitTest</b>: the batching of the forces and the failures of a channel;
+ * <BR>- <b>JournalWriterTest</b>: the roll of the segments, the recovery of the ones left by a crash and the group commit of the records;
+ * <BR>- <b>PipelineSinkTest</b>: the drain of the buffer on close and the failures of the sink;
+ * <BR>- <b>InFlightBudgetTest</b>: the order of the large messages and the release of their bytes;
+ * <BR>- <b>ParallelGzipChannelTest</b>: the order of the gzip members and the round trip of the data.
+ * <PRE>
+ * java uk.co.marcoratto.util.AllTests [test class ...]
+ * </PRE>
+ * The exit status is 1 if a test has failed.
+ * @author Marco Ratto
+ */
+public class AllTests {
+
+    private static final Class<?>[] TESTS = {
+        GroupCommitTest.class,
+        JournalWriterTest.class,
+        PipelineSinkTest.class,
+        InFlightBudgetTest.class,
+        ParallelGzipChannelTest.class
+    };
+
+    private int run = 0;
+
+    private int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        Logger.getLogger("uk.co.marcoratto").setLevel(Level.parse(System.getProperty("test.log.level", "SEVERE")));
+        Class<?>[] tests = TESTS;
+        if (args.length > 0) {
+            tests = new Class<?>[args.length];
+            for (int i = 0; i < args.length; i++) {
+                tests[i] = Class.forName((args[i].indexOf('.') < 0) ? AllTests.class.getPackage().getName() + "." + args[i] : args[i]);
+            }
+        }
+        AllTests runner = new AllTests();
+        for (int i = 0; i < tests.length; i++) {
+            runner.run(tests[i], System.out);
+        }
+        System.out.println(runner.run + " tests, " + runner.failed + " failed");
+        System.exit((runner.failed > 0) ? 1 : 0);
+    }
+
+    /**
+     * Runs the tests of <code>test</code>, printing the outcome of each one.
+     * @param test
+     * @param out
+     */
+    public void run(Class<?> test, PrintStream out) throws Exception {
+        Method[] methods = test.getMethods();
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            if (!method.getName().startsWith("test") || method.getParameterTypes().length > 0 || Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+            String name = test.getSimpleName() + "." + method.getName();
+            run++;
+            long start = System.nanoTime();
+            try {
+                method.invoke(test.newInstance());
+                out.println(name + " OK (" + ((System.nanoTime() - start) / 1000000) + " ms)");
+            } catch (InvocationTargetException e) {
+                failed++;
+                out.println(name + " FAILED");
+                e.getCause().printStackTrace(out);
+            }
+        }
+    }
+
+    /**
+     * Fails with <code>message</code> unless <code>condition</code> holds.
+     */
+    public static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Fails unless <code>actual</code> equals <code>expected</code>.
+     */
+    public static void checkEquals(Object expected, Object actual, String message) {
+        if ((expected == null) ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * Sets the <code>Settings</code> of the utilities from <code>prop</code>.
+     * @param prop
+     * @return Settings
+     */
+    public static Settings configure(Properties prop) throws ConfigException {
+        Settings settings = new Settings(new Config(prop, null, null));
+        Settings.set(settings);
+        return settings;
+    }
+
+    /**
+     * Returns a new empty directory, in <i>java.io.tmpdir</i>.
+     * @param name
+     * @return File
+     */
+    public static File createDirectory(String name) {
+        File dir = new File(System.getProperty("java.io.tmpdir"), name + "-" + System.nanoTime());
+        check(dir.mkdirs(), "Unable to create " + dir);
+        return dir;
+    }
+
+    /**
+     * Deletes <code>f</code> and, if it is a directory, its content.
+     * @param f
+     */
+    public static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static uk.co.marcoratto.util.AllTests.check;
+import static uk.co.marcoratto.util.AllTests.checkEquals;
+
+/**
+ * Tests of <code>GroupCommit</code>, on channels that count their forces.
+ * @author Marco Ratto
+ */
+public class GroupCommitTest {
+
+    private static final int THREADS = 16;
+
+    /**
+     * The callers arriving while a force is in progress share the next one,
+     * and every caller returns after a force started after its call.
+     */
+    public void testBatching() throws Exception {
+        final GroupCommit groupCommit = new GroupCommit();
+        final CountingChannel channel = new CountingChannel(50, null);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        int started = channel.started.get();
+                        groupCommit.sync(channel, null);
+                        check(channel.completed.get() > started, "Returned before a force started after the call");
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        join(threads);
+        checkEquals(new ArrayList<Throwable>(), failures, "Failures");
+        check(channel.completed.get() < THREADS, channel.completed.get() + " forces for " + THREADS + " callers");
+        check(channel.concurrent.get() == 0, "Forces of the same channel overlapped");
+    }
+
+    /**
+     * The callers writing each to its own channel, as with <b>target.mode=file</b>,
+     * are forced in rounds by the leaders instead of each by itself.
+     */
+    public void testBatchingAcrossChannels() throws Exception {
+        final GroupCommit groupCommit = new GroupCommit();
+        final Set<Thread> forcing = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        CountingChannel channel = new CountingChannel(20, null, forcing);
+                        start.await();
+                        groupCommit.sync(channel, null);
+                        checkEquals(new Integer(1), new Integer(channel.completed.get()), "Forces of the channel");
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        join(threads);
+        checkEquals(new ArrayList<Throwable>(), failures, "Failures");
+        check(forcing.size() < THREADS, forcing.size() + " threads forcing for " + THREADS + " callers");
+    }
+
+    /**
+     * A failed force is thrown to the callers of its channel only, even
+     * when other channels are forced in the same batch.
+     */
+    public void testFailurePropagation() throws Exception {
+        final GroupCommit groupCommit = new GroupCommit();
+        final CountingChannel slow = new CountingChannel(300, null);
+        final CountingChannel broken = new CountingChannel(0, new IOException("disk failure"));
+        final CountingChannel healthy = new CountingChannel(0, null);
+        final Throwable[] outcomes = new Throwable[3];
+        Thread leader = sync(groupCommit, slow, outcomes, 0);
+        while (slow.started.get() == 0) {
+            Thread.sleep(1);
+        }
+        // both wait for the slow force and are forced in the next batch
+        Thread first = sync(groupCommit, broken, outcomes, 1);
+        Thread second = sync(groupCommit, healthy, outcomes, 2);
+        join(new Thread[] {leader, first, second});
+        checkEquals(null, outcomes[0], "Outcome of the slow channel");
+        check(outcomes[1] instanceof IOException && "disk failure".equals(outcomes[1].getMessage()), "Outcome of the broken channel: " + outcomes[1]);
+        checkEquals(null, outcomes[2], "Outcome of the healthy channel");
+        checkEquals(new Integer(1), new Integer(healthy.completed.get()), "Forces of the healthy channel");
+
+        // the failure is not kept for the next batch
+        broken.failure = null;
+        groupCommit.sync(broken, null);
+    }
+
+    /**
+     * A channel closed before its force is forced by reopening its file,
+     * or fails if the file is not known.
+     */
+    public void testClosedChannel() throws Exception {
+        File dir = AllTests.createDirectory("GroupCommitTest");
+        try {
+            File f = new File(dir, "segment");
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            FileChannel channel = raf.getChannel();
+            channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            raf.close();
+
+            GroupCommit groupCommit = new GroupCommit();
+            groupCommit.sync(channel, f);
+            try {
+                groupCommit.sync(channel, null);
+                check(false, "Closed channel forced without its file");
+            } catch (ClosedChannelException e) {
+                // expected
+            }
+        } finally {
+            AllTests.delete(dir);
+        }
+    }
+
+    private static Thread sync(final GroupCommit groupCommit, final FileChannel channel, final Throwable[] outcomes, final int index) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    groupCommit.sync(channel, null);
+                } catch (Throwable e) {
+                    outcomes[index] = e;
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private static void join(Thread[] threads) throws InterruptedException {
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join(10000);
+            check(!threads[i].isAlive(), threads[i].getName() + " still waiting");
+        }
+    }
+
+    /**
+     * A channel that only counts its forces, each taking <code>delay</code> milliseconds.
+     */
+    private static class CountingChannel extends FileChannel {
+
+        final AtomicInteger started = new AtomicInteger();
+
+        final AtomicInteger completed = new AtomicInteger();
+
+        final AtomicInteger concurrent = new AtomicInteger();
+
+        private final AtomicInteger running = new AtomicInteger();
+
+        private final long delay;
+
+        volatile IOException failure;
+
+        private final Set<Thread> forcing;
+
+        CountingChannel(long delay, IOException failure) {
+            this(delay, failure, null);
+        }
+
+        /**
+         * @param forcing collects the threads forcing the channel, if not <code>null</code>
+         */
+        CountingChannel(long delay, IOException failure, Set<Thread> forcing) {
+            this.delay = delay;
+            this.failure = failure;
+            this.forcing = forcing;
+        }
+
+        public void force(boolean metaData) throws IOException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+            if (running.incrementAndGet() > 1) {
+                concurrent.incrementAndGet();
+            }
+            started.incrementAndGet();
+            if (forcing != null) {
+                forcing.add(Thread.currentThread());
+            }
+            try {
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+                completed.incrementAndGet();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        protected void implCloseChannel() {
+        }
+
+        public int read(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long position() {
+            return 0;
+        }
+
+        public FileChannel position(long newPosition) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long size() {
+            return 0;
+        }
+
+        public FileChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long transferTo(long position, long count, WritableByteChannel target) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int read(ByteBuffer dst, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.co.marcoratto.jms.memory.MemoryBytesMessage;
+
+import static uk.co.marcoratto.util.AllTests.check;
+import static uk.co.marcoratto.util.AllTests.checkEquals;
+
+/**
+ * Tests of <code>InFlightBudget</code>, with messages of the in-memory provider.
+ * @author Marco Ratto
+ */
+public class InFlightBudgetTest {
+
+    private static final long MAX_BYTES = 1000;
+
+    private static final long THRESHOLD = 100;
+
+    private final InFlightBudget budget = new InFlightBudget(MAX_BYTES, THRESHOLD);
+
+    private final List<String> granted = new ArrayList<String>();
+
+    /**
+     * The large messages are served in order of arrival: a message that
+     * would fit waits behind an earlier one that does not, until that one is served.
+     */
+    public void testFifo() throws Exception {
+        long first = budget.acquire(message(800));
+        checkEquals(new Long(800), new Long(first), "Reserved");
+        Acquirer large = start("large", 500);
+        Acquirer small = start("small", 150);
+        Thread.sleep(100);
+        // 150 bytes would fit in the budget, but "large" came first
+        checkEquals(new ArrayList<String>(), granted, "Granted while the budget is used");
+
+        budget.release(first);
+        large.join(5000);
+        small.join(5000);
+        checkEquals(new Integer(2), new Integer(granted.size()), "Granted");
+        checkEquals(new Long(650), new Long(budget.getInFlight()), "In flight");
+
+        budget.release(large.reserved);
+        budget.release(small.reserved);
+        checkEquals(new Long(0), new Long(budget.getInFlight()), "In flight after the release");
+    }
+
+    /**
+     * The small messages are not counted and never wait.
+     */
+    public void testSmallNotCounted() throws Exception {
+        long reserved = budget.acquire(message(MAX_BYTES));
+        checkEquals(new Long(0), new Long(budget.acquire(message(THRESHOLD - 1))), "Reserved for a small message");
+        budget.release(reserved);
+        checkEquals(new Long(0), new Long(budget.getInFlight()), "In flight");
+    }
+
+    /**
+     * A message larger than the budget reserves all of it, once alone.
+     */
+    public void testLargerThanBudget() throws Exception {
+        long first = budget.acquire(message(200));
+        Acquirer huge = start("huge", 5 * MAX_BYTES);
+        Thread.sleep(100);
+        check(huge.isAlive(), "Huge message not waiting");
+        budget.release(first);
+        huge.join(5000);
+        checkEquals(new Long(MAX_BYTES), new Long(huge.reserved), "Reserved");
+        budget.release(huge.reserved);
+        checkEquals(new Long(0), new Long(budget.getInFlight()), "In flight");
+    }
+
+    /**
+     * An interrupted wait leaves its place, so the messages behind it are served.
+     */
+    public void testInterrupted() throws Exception {
+        long first = budget.acquire(message(900));
+        Acquirer interrupted = start("interrupted", 500);
+        Thread.sleep(50);
+        Acquirer next = start("next", 100);
+        Thread.sleep(50);
+        interrupted.interrupt();
+        interrupted.join(5000);
+        check(interrupted.failure instanceof InterruptedIOException, "Failure: " + interrupted.failure);
+        next.join(5000);
+        checkEquals(Arrays.asList(new String[] {"next"}), granted, "Granted");
+        budget.release(first);
+        budget.release(next.reserved);
+        checkEquals(new Long(0), new Long(budget.getInFlight()), "In flight");
+    }
+
+    private static MemoryBytesMessage message(long size) {
+        return new MemoryBytesMessage(new byte[(int) size]);
+    }
+
+    private Acquirer start(String name, long size) throws InterruptedException {
+        Acquirer acquirer = new Acquirer(name, size);
+        acquirer.start();
+        // let it queue before the next one
+        while (acquirer.getState() != Thread.State.WAITING && acquirer.isAlive()) {
+            Thread.sleep(1);
+        }
+        return acquirer;
+    }
+
+    /**
+     * Acquires the bytes of a message and records when they are granted.
+     */
+    private class Acquirer extends Thread {
+
+        private final long size;
+
+        volatile long reserved;
+
+        volatile Throwable failure;
+
+        Acquirer(String name, long size) {
+            super(name);
+            this.size = size;
+        }
+
+        public void run() {
+            try {
+                reserved = budget.acquire(message(size));
+                synchronized (granted) {
+                    granted.add(getName());
+                }
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+    }
+}
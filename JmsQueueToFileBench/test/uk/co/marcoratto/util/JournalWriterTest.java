@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static uk.co.marcoratto.util.AllTests.check;
+import static uk.co.marcoratto.util.AllTests.checkEquals;
+
+/**
+ * Tests of <code>JournalWriter</code> and <code>JournalReader</code>.
+ * @author Marco Ratto
+ */
+public class JournalWriterTest {
+
+    private static final String PREFIX = "test";
+
+    /**
+     * The segments are rolled by number of records and published; every
+     * record is read back at the offset returned when it was appended.
+     */
+    public void testRoll() throws Exception {
+        File dir = AllTests.createDirectory("JournalWriterTest");
+        try {
+            JournalWriter writer = new JournalWriter(dir, PREFIX, 0, 3, 0, null);
+            Map<String, JournalRecord> appended = new HashMap<String, JournalRecord>();
+            for (int i = 0; i < 7; i++) {
+                JournalRecord record = append(writer, "ID:" + i);
+                appended.put(record.getMessageId(), record);
+            }
+            writer.close();
+
+            File[] segments = list(dir, JournalWriter.SUFFIX);
+            checkEquals(new Integer(3), new Integer(segments.length), "Segments");
+            checkEquals(new Integer(0), new Integer(list(dir, JournalWriter.PART_SUFFIX).length), "Segments not published");
+            List<String> read = new ArrayList<String>();
+            for (int i = 0; i < segments.length; i++) {
+                read.addAll(readAll(segments[i], appended));
+            }
+            checkEquals(Arrays.asList(new String[] {"ID:0", "ID:1", "ID:2", "ID:3", "ID:4", "ID:5", "ID:6"}), read, "Records");
+        } finally {
+            AllTests.delete(dir);
+        }
+    }
+
+    /**
+     * A segment left being written by a crash is published without the
+     * record cut short at its end; a segment with no complete record is deleted.
+     */
+    public void testRecovery() throws Exception {
+        File dir = AllTests.createDirectory("JournalWriterTest");
+        try {
+            JournalWriter writer = new JournalWriter(dir, PREFIX, 0, 0, 0, null);
+            for (int i = 0; i < 2; i++) {
+                append(writer, "ID:" + i);
+            }
+            writer.close();
+            File[] segments = list(dir, JournalWriter.SUFFIX);
+            checkEquals(new Integer(1), new Integer(segments.length), "Segments");
+            long complete = segments[0].length();
+
+            // as left by a crash while writing the body of the third record
+            File crashed = new File(dir, PREFIX + "-crashed" + JournalWriter.PART_SUFFIX);
+            check(segments[0].renameTo(crashed), "Unable to rename " + segments[0]);
+            appendPartialRecord(crashed);
+            File empty = new File(dir, PREFIX + "-empty" + JournalWriter.PART_SUFFIX);
+            appendPartialRecord(empty);
+            File other = new File(dir, "other-crashed" + JournalWriter.PART_SUFFIX);
+            appendPartialRecord(other);
+
+            new JournalWriter(dir, PREFIX, 0, 0, 0, null).close();
+
+            File recovered = JournalWriter.getPublished(crashed);
+            check(recovered.exists() && !crashed.exists(), "Segment not published");
+            checkEquals(new Long(complete), new Long(recovered.length()), "Length of the recovered segment");
+            checkEquals(Arrays.asList(new String[] {"ID:0", "ID:1"}), readAll(recovered, null), "Records");
+            check(!empty.exists() && !JournalWriter.getPublished(empty).exists(), "Segment with no complete record not deleted");
+            check(other.exists(), "Segment of another prefix recovered");
+        } finally {
+            AllTests.delete(dir);
+        }
+    }
+
+    /**
+     * The segment being written by a live writer is not recovered by another one.
+     */
+    public void testLiveSegmentNotRecovered() throws Exception {
+        File dir = AllTests.createDirectory("JournalWriterTest");
+        try {
+            JournalWriter writer = new JournalWriter(dir, PREFIX, 0, 0, 0, null);
+            append(writer, "ID:0");
+            File segment = writer.getSegment();
+            new JournalWriter(dir, PREFIX, 0, 0, 0, null).close();
+            check(segment.exists(), "Live segment recovered");
+            append(writer, "ID:1");
+            writer.close();
+            checkEquals(new Integer(2), new Integer(readAll(JournalWriter.getPublished(segment), null).size()), "Records");
+        } finally {
+            AllTests.delete(dir);
+        }
+    }
+
+    /**
+     * The records appended by several threads with <i>group-commit</i> are all complete.
+     */
+    public void testGroupCommit() throws Exception {
+        File dir = AllTests.createDirectory("JournalWriterTest");
+        try {
+            final JournalWriter writer = new JournalWriter(dir, PREFIX, 4096, 0, 0, new Durability(Durability.GROUP_COMMIT, 1000));
+            final List<Throwable> failures = new ArrayList<Throwable>();
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                final int n = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 25; j++) {
+                                append(writer, "ID:" + n + ":" + j);
+                            }
+                        } catch (Throwable t) {
+                            synchronized (failures) {
+                                failures.add(t);
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+            }
+            writer.close();
+            checkEquals(new ArrayList<Throwable>(), failures, "Failures");
+            File[] segments = list(dir, JournalWriter.SUFFIX);
+            check(segments.length > 1, "Segments not rolled");
+            int records = 0;
+            for (int i = 0; i < segments.length; i++) {
+                records += readAll(segments[i], null).size();
+            }
+            checkEquals(new Integer(200), new Integer(records), "Records");
+        } finally {
+            AllTests.delete(dir);
+        }
+    }
+
+    private static JournalRecord append(JournalWriter writer, String id) throws IOException {
+        JournalRecord record = new JournalRecord(id, System.currentTimeMillis());
+        record.setAttribute(JournalSink.ATTRIBUTE_TYPE, JournalSink.TYPE_TEXT);
+        writer.append(record, new ByteArrayInputStream(body(id)));
+        check(record.getOffset() >= 0, "No offset for " + id);
+        return record;
+    }
+
+    private static byte[] body(String id) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            sb.append(id).append(' ');
+        }
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * Returns the IDs of the records of <code>segment</code>, checking their
+     * body and, if <code>appended</code> is not <code>null</code>, their offset.
+     */
+    private static List<String> readAll(File segment, Map<String, JournalRecord> appended) throws IOException {
+        List<String> ids = new ArrayList<String>();
+        JournalReader reader = new JournalReader(segment);
+        try {
+            JournalRecord record;
+            while ((record = reader.next()) != null) {
+                String id = record.getMessageId();
+                checkEquals(new String(body(id)), new String(readFully(reader.getBody())), "Body of " + id);
+                if (appended != null) {
+                    JournalRecord written = appended.get(id);
+                    checkEquals(JournalWriter.getPublished(written.getSegment()), segment, "Segment of " + id);
+                    checkEquals(new Long(written.getOffset()), new Long(record.getOffset()), "Offset of " + id);
+                }
+                ids.add(id);
+            }
+        } finally {
+            reader.close();
+        }
+        return ids;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int len;
+        while ((len = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Appends the start of a record whose body length has not been written yet.
+     */
+    private static void appendPartialRecord(File f) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeUTF("ID:partial");
+        out.writeLong(System.currentTimeMillis());
+        out.writeShort(0);
+        out.close();
+        out = new DataOutputStream(new FileOutputStream(f, true));
+        try {
+            out.writeInt(JournalWriter.MAGIC);
+            out.writeInt(header.size());
+            out.write(header.toByteArray());
+            out.writeLong(-1);
+            out.write(new byte[] {1, 2, 3});
+        } finally {
+            out.close();
+        }
+    }
+
+    private static File[] list(File dir, final String suffix) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+}
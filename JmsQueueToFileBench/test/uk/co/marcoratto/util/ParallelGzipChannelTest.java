@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static uk.co.marcoratto.util.AllTests.check;
+import static uk.co.marcoratto.util.AllTests.checkEquals;
+
+/**
+ * Tests of <code>ParallelGzipChannel</code>: the file written must be read
+ * back by any gzip reader as the data written, in the same order.
+ * @author Marco Ratto
+ */
+public class ParallelGzipChannelTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Blocks compressed at the same time, some slower than the others,
+     * are written in the order of the data; every block is a gzip member.
+     */
+    public void testMemberOrder() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // incompressible blocks take longer than the repetitive ones
+            byte[] data = new byte[BLOCK_SIZE * 20 + 123];
+            Random random = new Random(17);
+            for (int i = 0; i < data.length; i += BLOCK_SIZE) {
+                int end = Math.min(data.length, i + BLOCK_SIZE);
+                if ((i / BLOCK_SIZE) % 2 == 0) {
+                    byte[] block = new byte[end - i];
+                    random.nextBytes(block);
+                    System.arraycopy(block, 0, data, i, block.length);
+                } else {
+                    Arrays.fill(data, i, end, (byte) (i / BLOCK_SIZE));
+                }
+            }
+            byte[] compressed = compress(data, executor, 3, 1000);
+            checkEquals(new Integer(21), new Integer(countMembers(compressed)), "Gzip members");
+            check(Arrays.equals(data, gunzip(compressed)), "Data read back differs");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The data round-trips whatever the size of the writes and the number of blocks pending.
+     */
+    public void testRoundTrip() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Random random = new Random(42);
+            int[] sizes = {0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 10 * BLOCK_SIZE, 100000};
+            int[] writes = {1, 7, 1000, BLOCK_SIZE * 3};
+            for (int s = 0; s < sizes.length; s++) {
+                byte[] data = new byte[sizes[s]];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = (byte) ("JmsQueueToFile".charAt(i % 14) + random.nextInt(3));
+                }
+                for (int w = 0; w < writes.length; w++) {
+                    for (int pending = 1; pending <= 4; pending += 3) {
+                        byte[] compressed = compress(data, executor, pending, writes[w]);
+                        check(Arrays.equals(data, gunzip(compressed)),
+                            "Data read back differs, size=" + sizes[s] + ", write=" + writes[w] + ", pending=" + pending);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A rejected block, as when the threads are stopping, is compressed by the writing thread.
+     */
+    public void testExecutorStopped() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        executor.shutdown();
+        byte[] data = new byte[BLOCK_SIZE * 3];
+        Arrays.fill(data, (byte) 'x');
+        check(Arrays.equals(data, gunzip(compress(data, executor, 2, BLOCK_SIZE))), "Data read back differs");
+    }
+
+    private static byte[] compress(byte[] data, ExecutorService executor, int maxPending, int writeSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelGzipChannel channel = new ParallelGzipChannel(Channels.newChannel(out), executor, 6, BLOCK_SIZE, maxPending);
+        try {
+            for (int i = 0; i < data.length; i += writeSize) {
+                channel.write(ByteBuffer.wrap(data, i, Math.min(writeSize, data.length - i)));
+            }
+            long size = channel.finish();
+            checkEquals(new Long(out.size()), new Long(size), "Compressed size");
+        } finally {
+            channel.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Counts the gzip members, decompressing them one at a time.
+     */
+    private static int countMembers(byte[] compressed) throws IOException {
+        int members = 0;
+        int offset = 0;
+        while (offset < compressed.length) {
+            check((compressed[offset] & 0xff) == 0x1f && (compressed[offset + 1] & 0xff) == 0x8b, "No gzip member at offset " + offset);
+            Inflater inflater = new Inflater(true);
+            int header = DeflaterChannel.GZIP_HEADER.length;
+            inflater.setInput(compressed, offset + header, compressed.length - offset - header);
+            byte[] buffer = new byte[BLOCK_SIZE];
+            try {
+                while (!inflater.finished()) {
+                    inflater.inflate(buffer);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e.getMessage());
+            }
+            offset = compressed.length - inflater.getRemaining() + 8;
+            inflater.end();
+            members++;
+        }
+        return members;
+    }
+}
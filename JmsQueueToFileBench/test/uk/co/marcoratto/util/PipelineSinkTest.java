@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import uk.co.marcoratto.jms.memory.MemoryTextMessage;
+
+import static uk.co.marcoratto.util.AllTests.check;
+import static uk.co.marcoratto.util.AllTests.checkEquals;
+
+/**
+ * Tests of <code>PipelineSink</code>, writing the messages of the in-memory
+ * provider to a sink that records them.
+ * @author Marco Ratto
+ */
+public class PipelineSinkTest {
+
+    private static final int PRODUCERS = 4;
+
+    private static final int MESSAGES = 50;
+
+    public PipelineSinkTest() throws ConfigException {
+        Properties prop = new Properties();
+        prop.setProperty("target.pathname", "%u.msg");
+        AllTests.configure(prop);
+    }
+
+    /**
+     * <code>close()</code> returns once the messages queued have been written;
+     * the ones arriving meanwhile are written by their callers, so every
+     * message is written exactly once and every caller gets its own result.
+     */
+    public void testCloseDrains() throws Exception {
+        final RecordingSink recording = new RecordingSink(2);
+        final PipelineSink pipeline = new PipelineSink(recording, 2, 16, 4);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < producers.length; i++) {
+            final int n = i;
+            producers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < MESSAGES; j++) {
+                            String text = "message " + n + "-" + j;
+                            WriteResult result = pipeline.write(new MemoryTextMessage(text));
+                            checkEquals(text, result.getTarget(), "Result");
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        Thread.sleep(50);
+        pipeline.close();
+        check(recording.closed, "Sink not closed");
+        for (int i = 0; i < producers.length; i++) {
+            producers[i].join();
+        }
+        checkEquals(new ArrayList<Throwable>(), failures, "Failures");
+        checkEquals(new Integer(PRODUCERS * MESSAGES), new Integer(recording.written.size()), "Messages written");
+        checkEquals(new Integer(PRODUCERS * MESSAGES), new Integer(new HashSet<String>(recording.written).size()), "Distinct messages written");
+        boolean byWriters = false;
+        for (String name : recording.threads) {
+            byWriters |= name.startsWith(PipelineSink.class.getName());
+        }
+        check(byWriters, "No message written by the writers");
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            check(!t.getName().startsWith(PipelineSink.class.getName()), t.getName() + " still running");
+        }
+    }
+
+    /**
+     * A message written after <code>close()</code> is written by the calling thread.
+     */
+    public void testWriteAfterClose() throws Exception {
+        RecordingSink recording = new RecordingSink(0);
+        PipelineSink pipeline = new PipelineSink(recording, 1, 4, 1);
+        pipeline.write(new MemoryTextMessage("before"));
+        check(!recording.threads.contains(Thread.currentThread().getName()), "Written by the caller before close()");
+        pipeline.close();
+        recording.threads.clear();
+        checkEquals("after", pipeline.write(new MemoryTextMessage("after")).getTarget(), "Result");
+        check(recording.threads.contains(Thread.currentThread().getName()), "Not written by the caller after close()");
+    }
+
+    /**
+     * The failure of a write is thrown to the caller of that message only.
+     */
+    public void testFailure() throws Exception {
+        RecordingSink recording = new RecordingSink(0);
+        PipelineSink pipeline = new PipelineSink(recording, 1, 4, 4);
+        try {
+            try {
+                pipeline.write(new MemoryTextMessage("fail"));
+                check(false, "Failure not thrown");
+            } catch (UtilityException e) {
+                checkEquals("Unable to write fail", e.getMessage(), "Failure");
+            }
+            checkEquals("next", pipeline.write(new MemoryTextMessage("next")).getTarget(), "Result after a failure");
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * A <code>BatchSink</code> gets one commit for all the messages taken by
+     * a writer, and every caller gets its result only after that commit.
+     */
+    public void testBatchCommit() throws Exception {
+        final RecordingBatchSink recording = new RecordingBatchSink(5);
+        final PipelineSink pipeline = new PipelineSink(recording, 1, 64, 8);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] producers = new Thread[PRODUCERS];
+        try {
+            for (int i = 0; i < producers.length; i++) {
+                final int n = i;
+                producers[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < MESSAGES; j++) {
+                                String text = "message " + n + "-" + j;
+                                checkEquals(text, pipeline.write(new MemoryTextMessage(text)).getTarget(), "Result");
+                            }
+                        } catch (Throwable t) {
+                            synchronized (failures) {
+                                failures.add(t);
+                            }
+                        }
+                    }
+                };
+                producers[i].start();
+            }
+            for (int i = 0; i < producers.length; i++) {
+                producers[i].join();
+            }
+        } finally {
+            pipeline.close();
+        }
+        checkEquals(new ArrayList<Throwable>(), failures, "Failures");
+        checkEquals(new Integer(PRODUCERS * MESSAGES), new Integer(recording.written.size()), "Messages written");
+        check(recording.commits < PRODUCERS * MESSAGES, recording.commits + " commits for " + (PRODUCERS * MESSAGES) + " messages");
+    }
+
+    /**
+     * The files written by the writers through <code>FileSink</code>, forced
+     * together by <i>group-commit</i>, are all renamed into place with their content.
+     */
+    public void testFileSinkBatch() throws Exception {
+        File dir = AllTests.createDirectory("PipelineSinkTest");
+        try {
+            Properties prop = new Properties();
+            prop.setProperty("target.pathname", new File(dir, "%u.msg").getPath());
+            prop.setProperty("target.durability", "group-commit");
+            prop.setProperty("target.atomic.rename", "true");
+            AllTests.configure(prop);
+            final PipelineSink pipeline = new PipelineSink(new FileSink(), 2, 16, 4);
+            final List<Throwable> failures = new ArrayList<Throwable>();
+            final Map<String, String> results = new HashMap<String, String>();
+            Thread[] producers = new Thread[PRODUCERS];
+            try {
+                for (int i = 0; i < producers.length; i++) {
+                    final int n = i;
+                    producers[i] = new Thread() {
+                        public void run() {
+                            try {
+                                for (int j = 0; j < MESSAGES; j++) {
+                                    String text = "message " + n + "-" + j;
+                                    WriteResult result = pipeline.write(new MemoryTextMessage(text));
+                                    synchronized (results) {
+                                        results.put(result.getTarget(), text);
+                                    }
+                                }
+                            } catch (Throwable t) {
+                                synchronized (failures) {
+                                    failures.add(t);
+                                }
+                            }
+                        }
+                    };
+                    producers[i].start();
+                }
+                for (int i = 0; i < producers.length; i++) {
+                    producers[i].join();
+                }
+            } finally {
+                pipeline.close();
+            }
+            checkEquals(new ArrayList<Throwable>(), failures, "Failures");
+            checkEquals(new Integer(PRODUCERS * MESSAGES), new Integer(results.size()), "Files written");
+            checkEquals(new Integer(PRODUCERS * MESSAGES), new Integer(dir.list().length), "Files in the directory");
+            for (Map.Entry<String, String> result : results.entrySet()) {
+                checkEquals(result.getValue(), read(new File(result.getKey())), "Content of " + result.getKey());
+            }
+        } finally {
+            Durability.shutdown();
+            AllTests.delete(dir);
+        }
+    }
+
+    private static String read(File f) throws IOException {
+        byte[] content = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        return new String(content, "ISO-8859-1");
+    }
+
+    /**
+     * Records the text of the messages written, and the threads writing them.
+     */
+    private static class RecordingSink implements MessageSink {
+
+        final List<String> written = new ArrayList<String>();
+
+        final Set<String> threads = new HashSet<String>();
+
+        volatile boolean closed = false;
+
+        private final long delay;
+
+        RecordingSink(long delay) {
+            this.delay = delay;
+        }
+
+        public WriteResult write(Message msg) throws UtilityException {
+            String text;
+            try {
+                text = ((TextMessage) msg).getText();
+            } catch (JMSException e) {
+                throw new UtilityException(e.getMessage(), e);
+            }
+            if ("fail".equals(text)) {
+                throw new UtilityException("Unable to write " + text);
+            }
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                written.add(text);
+                threads.add(Thread.currentThread().getName());
+            }
+            return new WriteResult(text, text.length());
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * Records the text of the messages written in batches, and the number of commits.
+     */
+    private static class RecordingBatchSink implements BatchSink {
+
+        final List<String> written = new ArrayList<String>();
+
+        int commits = 0;
+
+        private final long delay;
+
+        RecordingBatchSink(long delay) {
+            this.delay = delay;
+        }
+
+        public WriteResult write(Message msg) throws UtilityException {
+            PendingWrite pending = writePending(msg);
+            List<PendingWrite> writes = new ArrayList<PendingWrite>();
+            writes.add(pending);
+            commit(writes);
+            return pending.getResult();
+        }
+
+        public PendingWrite writePending(Message msg) throws UtilityException {
+            try {
+                return new RecordedWrite(((TextMessage) msg).getText());
+            } catch (JMSException e) {
+                throw new UtilityException(e.getMessage(), e);
+            }
+        }
+
+        public void commit(List<PendingWrite> writes) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                commits++;
+                for (PendingWrite write : writes) {
+                    String text = ((RecordedWrite) write).text;
+                    written.add(text);
+                    write.complete(new WriteResult(text, text.length()), null);
+                }
+            }
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class RecordedWrite extends PendingWrite {
+
+        final String text;
+
+        RecordedWrite(String text) {
+            this.text = text;
+        }
+    }
+}
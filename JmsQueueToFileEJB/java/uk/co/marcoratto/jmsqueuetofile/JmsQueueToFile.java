@@ -20,19 +20,23 @@
 
 package uk.co.marcoratto.jmsqueuetofile;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.jms.Queue;
 
+import uk.co.marcoratto.util.AuditLog;
+import uk.co.marcoratto.util.ConfigException;
+import uk.co.marcoratto.util.ErrorSpool;
 import uk.co.marcoratto.util.EtmQueueLocator;
+import uk.co.marcoratto.util.InFlightBudget;
+import uk.co.marcoratto.util.Lifecycle;
 import uk.co.marcoratto.util.MessagePublisher;
-import uk.co.marcoratto.util.Utility;
-import uk.co.marcoratto.util.Config;
+import uk.co.marcoratto.util.MessageSinks;
+import uk.co.marcoratto.util.Metrics;
+import uk.co.marcoratto.util.Settings;
+import uk.co.marcoratto.util.WarmUp;
+import uk.co.marcoratto.util.WriteResult;
 
 @SuppressWarnings("serial")
 public class JmsQueueToFile implements javax.ejb.MessageDrivenBean, javax.jms.MessageListener {
@@ -57,13 +61,22 @@ public class JmsQueueToFile implements javax.ejb.MessageDrivenBean, javax.jms.Me
     }
 
     /**
-     * ejbCreate
+     * ejbCreate: prepares the configuration, the JNDI resources and the
+     * target before the first message (see <code>WarmUp</code>).
+     * The instances created by the container, which has set their context,
+     * mark the utilities as running in the container (see <code>Lifecycle</code>);
+     * the ones of <code>StandaloneConsumer</code> do not.
      */
     public void ejbCreate() {
+        if (fMessageDrivenCtx != null) {
+            Lifecycle.start();
+        }
+        WarmUp.run();
     }
 
     /**
-     * ejbRemove
+     * ejbRemove: the utilities are stopped with the application by
+     * <code>JmsQueueToFileStartup</code>, not when the pool shrinks.
      */
     public void ejbRemove() {
     }
@@ -84,84 +97,113 @@ public class JmsQueueToFile implements javax.ejb.MessageDrivenBean, javax.jms.Me
         final String METHOD_NAME = "consume";
         logger.entering(CLASS_NAME, METHOD_NAME);
 
-        long startTime = System.currentTimeMillis();
-                
-        Queue errorQueue = null;
+        long startTime = System.nanoTime();
+        boolean sampled = AuditLog.isSampled(logger, Level.FINE, msg);
+        WriteResult result = null;
+        Metrics metrics = Metrics.getInstance();
+        InFlightBudget budget = null;
+        long reserved = 0;
          
         try {
-        	logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Start at " + new Date());
-
-        	StringBuffer sb = new StringBuffer();
-            sb.append("Received JMS message to destination : " + msg.getJMSMessageID());                
-            sb.append("\nMessage ID : " + msg.getJMSMessageID());
-            sb.append("\nCorrelation ID : " + msg.getJMSCorrelationID());
-            sb.append("\nReplyTo ID : " + msg.getJMSReplyTo());            
-            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, sb.toString());
-            
-            save(msg);               
-        } catch (Exception e) {
-            errorQueue = EtmQueueLocator.getQueueError();
-            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "The received event generated an unexpected exception.", e);
-        }
-
-        // if an error occurred while processing the message, the errorQueue
-        // instance refers the auditing queue where we need to put the error
-        // message.
-        if (errorQueue != null) {
-            MessagePublisher publisher = new MessagePublisher();
             try {
-                publisher.publish(errorQueue, msg);
+                // a large message waits for its bytes in the JVM-wide budget
+                budget = InFlightBudget.getInstance();
+                long waitTime = System.nanoTime();
+                reserved = budget.acquire(msg);
+                if (reserved > 0) {
+                    metrics.getBudgetWait().recordSince(waitTime);
+                }
+                if (sampled) {
+                	StringBuffer sb = new StringBuffer();
+                    sb.append("Received JMS message to destination : " + msg.getJMSMessageID());                
+                    sb.append("\nMessage ID : " + msg.getJMSMessageID());
+                    sb.append("\nCorrelation ID : " + msg.getJMSCorrelationID());
+                    sb.append("\nReplyTo ID : " + msg.getJMSReplyTo());            
+                    logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, sb.toString());
+                }
+                
+                result = save(msg);               
             } catch (Exception e) {
-                logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "The system is not able to publish the event to the error queue.", e);
+                logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "The received event generated an unexpected exception.", e);
+            }
+
+            if (result != null) {
+                metrics.messageWritten(result.getSize());
+            } else {
+                metrics.messageFailed();
+            }
+
+            // the error publish can wait for the provider or the spool: the
+            // other messages must not wait for the bytes of this one meanwhile
+            if (budget != null) {
+                budget.release(reserved);
+                reserved = 0;
+            }
+
+            // if an error occurred while processing the message, it is put in
+            // the error queue, through the spool if configured.
+            if (result == null) {
+                long publishTime = System.nanoTime();
+                publishError(msg, metrics);
+                metrics.getErrorPublish().recordSince(publishTime);
+            }
+        } finally {
+            if (budget != null) {
+                budget.release(reserved);
             }
         }
-        long endTime = System.currentTimeMillis();        
-        long delay = endTime - startTime;
-        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "End at " + new Date());
-        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Delay " + delay + " ms");
+        long delay = System.nanoTime() - startTime;
+        metrics.getConsume().record(delay);
+        audit(msg, result, delay);
+        if (sampled) {
+            logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Delay " + (delay / 1000000) + " ms");
+        }
         
         logger.exiting(CLASS_NAME, METHOD_NAME);
     }
 
-    private void save(javax.jms.Message msg) throws Exception {
-        final String METHOD_NAME = "convertJMSMsgToStringMsg";
-
-        try {                        
-            String pathname = Config.getInstance().getStringProperty("target.pathname", null);
-            String targetFilename = Utility.parseStringWithPattern(pathname);
-
-            File f = new File(targetFilename);
-            
-            boolean targetCreateDir = Config.getInstance().getBooleanProperty("target.create.dir", false);
-        	logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "target.create.dir=" + targetCreateDir);
-
-        	boolean targetOverwriteFile = Config.getInstance().getBooleanProperty("target.overwrite.file", false);
-        	logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "target.overwrite.file=" + targetOverwriteFile);
-            
-        	File parentDir = new File(f.getParent());
-            if (targetCreateDir && !parentDir.exists()) {
-            	try {
-            		parentDir.mkdirs();
-            		logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Create " + parentDir.getAbsolutePath());
-            	} catch (Throwable t) {
-                    logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
-                    throw new Exception(t.getMessage(), t);            		
-            	}
+    private void publishError(javax.jms.Message msg, Metrics metrics) {
+        final String METHOD_NAME = "publishError";
+        try {
+            ErrorSpool spool = ErrorSpool.getInstance();
+            if (spool != null) {
+                spool.append(msg);
+                return;
             }
-            
-            if (targetOverwriteFile) {
-            	f.delete();
-	            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Delete file " + f.getAbsolutePath());
-            }            
-            if (f.exists()) {
-	            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "File " + f.getAbsolutePath() + " already exists.");            	
-            } else {
-	            InputStream in = Utility.getInputStream(msg);            
-	            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Write message to file " + f.getAbsolutePath());
-	            FileOutputStream out = new FileOutputStream(f);	                
-	            Utility.copyInputStream(in, out);
+        } catch (Exception e) {
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "The system is not able to spool the event, publishing it to the error queue.", e);
+        }
+
+        Queue errorQueue = EtmQueueLocator.getQueueError();
+        if (errorQueue == null) {
+            metrics.errorPublishFailed();
+            return;
+        }
+        MessagePublisher publisher = new MessagePublisher();
+        try {
+            publisher.publish(errorQueue, msg);
+        } catch (Exception e) {
+            metrics.errorPublishFailed();
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "The system is not able to publish the event to the error queue.", e);
+        }
+    }
+
+    private void audit(javax.jms.Message msg, WriteResult result, long delay) {
+        final String METHOD_NAME = "audit";
+        try {
+            if (Settings.get().getAuditTemplate() != null) {
+                AuditLog.getInstance().record(msg, result, delay, (result != null) ? AuditLog.OK : AuditLog.ERROR);
             }
-                            
+        } catch (ConfigException e) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+        }
+    }
+
+    private WriteResult save(javax.jms.Message msg) throws Exception {
+        final String METHOD_NAME = "save";
+
+        try {
+            return MessageSinks.getSink().write(msg);
         } catch (Exception e) {
             logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
             throw new Exception(e.getMessage(), e);
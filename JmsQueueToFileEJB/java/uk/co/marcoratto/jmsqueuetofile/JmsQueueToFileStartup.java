@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package uk.co.marcoratto.jmsqueuetofile;
+
+import uk.co.marcoratto.util.Lifecycle;
+
+/**
+ * Startup bean of the application: the startup beans service of WebSphere
+ * calls <code>start()</code> when the application starts and <code>stop()</code>
+ * when it stops, whatever the number of message-driven bean instances pooled
+ * at that moment, so the threads, the timers and the files of the utilities
+ * are released with the application (see <code>Lifecycle</code>).
+ * <P>
+ * Its home and remote interfaces are <code>com.ibm.websphere.startupservice.AppStartUpHome</code>
+ * and <code>AppStartUp</code>, and the service must be enabled on the server
+ * (Application servers &gt; <i>server</i> &gt; Container services &gt; Startup beans service);
+ * otherwise nothing is stopped until the JVM exits.
+ * @author Marco Ratto
+ */
+@SuppressWarnings("serial")
+public class JmsQueueToFileStartup implements javax.ejb.SessionBean {
+
+    private javax.ejb.SessionContext mySessionCtx;
+
+    /**
+     * getSessionContext
+     */
+    public javax.ejb.SessionContext getSessionContext() {
+        return mySessionCtx;
+    }
+
+    /**
+     * setSessionContext
+     */
+    public void setSessionContext(javax.ejb.SessionContext ctx) {
+        mySessionCtx = ctx;
+    }
+
+    /**
+     * ejbCreate
+     */
+    public void ejbCreate() {
+    }
+
+    /**
+     * ejbActivate
+     */
+    public void ejbActivate() {
+    }
+
+    /**
+     * ejbPassivate
+     */
+    public void ejbPassivate() {
+    }
+
+    /**
+     * ejbRemove
+     */
+    public void ejbRemove() {
+    }
+
+    /**
+     * Called when the application starts.
+     * @return <code>true</code>, the application can start
+     */
+    public boolean start() {
+        Lifecycle.start();
+        return true;
+    }
+
+    /**
+     * Called when the application stops: closes the target and stops the
+     * threads of the utilities.
+     */
+    public void stop() {
+        Lifecycle.stop();
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package uk.co.marcoratto.jmsqueuetofile;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+
+import uk.co.marcoratto.util.Config;
+import uk.co.marcoratto.util.ConfigException;
+import uk.co.marcoratto.util.Lifecycle;
+
+/**
+ * Runs the processing of <code>JmsQueueToFile</code> outside the application
+ * server, on plain JMS <code>MessageConsumer</code>s.
+ * <P>
+ * Every consumer thread has its own connection, session and consumer, and
+ * hands the messages to its own <code>JmsQueueToFile</code>, as the EJB
+ * container does with the MDB instances. With <b>consumer.batch.size</b>
+ * greater than 0 the session is transacted and committed every
+ * <b>consumer.batch.size</b> messages, or <b>consumer.batch.timeout</b>
+ * milliseconds after the first message of the batch; a message is therefore
+ * written at least once, and written again if the commit fails. With 0
+ * the messages are acknowledged automatically one by one.
+ * <P>
+ * The <code>ConnectionFactory</code> is passed to the constructor, or built
+ * by <code>main</code> from the properties file of the application:
+ * <BR>- <b>consumer.factory.jndi</b>: JNDI name of the factory, looked up with the environment <b>consumer.jndi.*</b>
+ * (e.g. <i>consumer.jndi.java.naming.factory.initial</i>);
+ * <BR>- otherwise <b>consumer.factory.class</b>: class of the factory, instantiated and configured with the bean properties
+ * <b>consumer.factory.property.*</b> (e.g. <i>consumer.factory.property.queueManager=QM1</i>; nested properties are separated by dots);
+ * <BR>- <b>consumer.queue.jndi</b>: JNDI name of the queue, or <b>consumer.queue</b>: its name for the provider;
+ * <BR>- <b>consumer.user</b> and <b>consumer.password</b>: the credentials, if needed;
+ * <BR>- <b>consumer.threads</b>: number of consumer threads (default 1);
+ * <BR>- <b>consumer.batch.size</b> (default 1) and <b>consumer.batch.timeout</b> (default 1000);
+ * <BR>- <b>consumer.prefetch</b>: messages each consumer receives in advance, set on the factory through the bean
+ * property named by <b>consumer.prefetch.property</b>, since JMS has no standard one
+ * (e.g. <i>prefetchPolicy.queuePrefetch</i> for ActiveMQ);
+ * <BR>- <b>consumer.retry.interval</b>: milliseconds before reconnecting after a failure (default 5000).
+ * <PRE>
+ * java -DJmsQueueToFileConfigFile=/etc/JmsQueueToFile.properties uk.co.marcoratto.jmsqueuetofile.StandaloneConsumer
+ * </PRE>
+ * The error queue is looked up as in the server, so outside it the JNDI
+ * environment of the JVM must provide <i>jms/QueueConnectionFactory</i> and
+ * <i>jms/JmsQueueToFileError</i>, or <b>error.spool.dir</b> must be set.
+ * @author Marco Ratto
+ */
+public class StandaloneConsumer {
+
+    private static final String CLASS_NAME = StandaloneConsumer.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static final long POLL_TIMEOUT = 1000;
+
+    private final ConnectionFactory factory;
+    private final Destination queue;
+    private final int threads;
+    private final int batchSize;
+    private final long batchTimeout;
+
+    private String user = null;
+    private String password = null;
+    private long retryInterval = 5000;
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+
+    private volatile boolean running = false;
+
+    /**
+     * @param factory the factory of the connections to the provider
+     * @param queue the queue to consume
+     * @param threads the number of consumer threads
+     * @param batchSize the messages committed together, 0 for a session not transacted
+     * @param batchTimeout the maximum milliseconds a batch is kept open
+     */
+    public StandaloneConsumer(ConnectionFactory factory, Destination queue, int threads, int batchSize, long batchTimeout) {
+        if (threads < 1 || batchSize < 0 || batchTimeout < 0) {
+            throw new IllegalArgumentException("threads=" + threads + ", batchSize=" + batchSize + ", batchTimeout=" + batchTimeout);
+        }
+        this.factory = factory;
+        this.queue = queue;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.batchTimeout = batchTimeout;
+    }
+
+    public void setCredentials(String user, String password) {
+        this.user = user;
+        this.password = password;
+    }
+
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Starts the consumer threads.
+     */
+    public synchronized void start() {
+        final String METHOD_NAME = "start";
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Worker(), CLASS_NAME + "-" + i);
+            workers.add(t);
+            t.start();
+        }
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Started " + threads + " consumers, batch.size=" + batchSize + ", batch.timeout=" + batchTimeout);
+    }
+
+    /**
+     * Stops the consumer threads, committing the batches in progress, and waits for them to terminate.
+     */
+    public void stop() {
+        final String METHOD_NAME = "stop";
+        List<Thread> stopping;
+        synchronized (this) {
+            running = false;
+            stopping = new ArrayList<Thread>(workers);
+            workers.clear();
+        }
+        for (Thread t : stopping) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Stopped");
+    }
+
+    /**
+     * Called by the consumer threads after every message has been processed,
+     * before its batch is committed. Does nothing; subclasses can measure
+     * the processing, e.g. the load generator of the benchmarks.
+     * @param msg the message processed
+     */
+    protected void consumed(Message msg) {
+    }
+
+    private Connection createConnection() throws JMSException {
+        return (user != null) ? factory.createConnection(user, password) : factory.createConnection();
+    }
+
+    private class Worker implements Runnable {
+
+        public void run() {
+            final String METHOD_NAME = "run";
+            JmsQueueToFile mdb = new JmsQueueToFile();
+            mdb.ejbCreate();
+            while (running) {
+                Connection connection = null;
+                Session session = null;
+                try {
+                    connection = createConnection();
+                    boolean transacted = batchSize > 0;
+                    session = connection.createSession(transacted, transacted ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE);
+                    MessageConsumer consumer = session.createConsumer(queue);
+                    connection.start();
+                    consume(mdb, session, consumer, transacted);
+                } catch (JMSException e) {
+                    logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "Consumer failed, reconnecting in " + retryInterval + " ms: " + e.getMessage(), e);
+                    rollback(session);
+                    sleep();
+                } finally {
+                    close(connection);
+                }
+            }
+        }
+
+        private void consume(JmsQueueToFile mdb, Session session, MessageConsumer consumer, boolean transacted) throws JMSException {
+            int pending = 0;
+            long batchStart = 0;
+            while (running) {
+                long timeout = POLL_TIMEOUT;
+                if (pending > 0) {
+                    timeout = Math.max(1, Math.min(timeout, batchStart + batchTimeout - System.currentTimeMillis()));
+                }
+                Message msg = consumer.receive(timeout);
+                if (msg != null) {
+                    if (pending == 0) {
+                        batchStart = System.currentTimeMillis();
+                    }
+                    mdb.consume(msg);
+                    consumed(msg);
+                    pending++;
+                }
+                if (transacted && pending > 0
+                        && (pending >= batchSize || msg == null || System.currentTimeMillis() - batchStart >= batchTimeout)) {
+                    session.commit();
+                    pending = 0;
+                }
+            }
+            if (transacted && pending > 0) {
+                session.commit();
+            }
+        }
+
+        private void rollback(Session session) {
+            final String METHOD_NAME = "rollback";
+            if (session == null) {
+                return;
+            }
+            try {
+                if (session.getTransacted()) {
+                    session.rollback();
+                }
+            } catch (JMSException e) {
+                logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, e.getMessage());
+            }
+        }
+
+        private void close(Connection connection) {
+            final String METHOD_NAME = "close";
+            if (connection == null) {
+                return;
+            }
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            }
+        }
+
+        private void sleep() {
+            long end = System.currentTimeMillis() + retryInterval;
+            long now;
+            while (running && (now = System.currentTimeMillis()) < end) {
+                try {
+                    Thread.sleep(Math.min(end - now, POLL_TIMEOUT));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the consumer from the properties file of the application and runs it until the JVM is stopped.
+     * @param args the optional path of the properties file, instead of the system property <i>JmsQueueToFileConfigFile</i>
+     */
+    public static void main(String[] args) {
+        final String METHOD_NAME = "main";
+        if (args.length > 0) {
+            System.setProperty(Config.FILENAME_PROPERTYNAME, args[0]);
+        }
+        try {
+            final StandaloneConsumer consumer = create(Config.getInstance());
+            Runtime.getRuntime().addShutdownHook(new Thread(CLASS_NAME) {
+                public void run() {
+                    consumer.stop();
+                    Lifecycle.stop();
+                }
+            });
+            consumer.start();
+        } catch (Exception e) {
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Builds the consumer from the <b>consumer.*</b> properties of <code>config</code>.
+     * @param config
+     * @return StandaloneConsumer
+     * @throws ConfigException if the properties are not valid or the factory or the queue cannot be found
+     */
+    public static StandaloneConsumer create(Config config) throws ConfigException {
+        int threads = config.getIntProperty("consumer.threads", 1);
+        int batchSize = config.getIntProperty("consumer.batch.size", 1);
+        long batchTimeout = config.getLongProperty("consumer.batch.timeout", 1000);
+        try {
+            Context context = null;
+            ConnectionFactory factory;
+            String factoryJndi = config.getStringProperty("consumer.factory.jndi");
+            if (factoryJndi != null) {
+                context = new InitialContext(config.getProperties("consumer.jndi."));
+                factory = (ConnectionFactory) context.lookup(factoryJndi);
+            } else {
+                String factoryClass = config.getStringProperty("consumer.factory.class");
+                if (factoryClass == null) {
+                    throw new ConfigException("Missing property consumer.factory.jndi or consumer.factory.class");
+                }
+                factory = (ConnectionFactory) Class.forName(factoryClass).newInstance();
+                Properties properties = config.getProperties("consumer.factory.property.");
+                for (Enumeration<?> e = properties.propertyNames(); e.hasMoreElements();) {
+                    String name = (String) e.nextElement();
+                    setBeanProperty(factory, name, properties.getProperty(name));
+                }
+            }
+            String prefetch = config.getStringProperty("consumer.prefetch");
+            if (prefetch != null) {
+                String prefetchProperty = config.getStringProperty("consumer.prefetch.property");
+                if (prefetchProperty == null) {
+                    throw new ConfigException("Missing property consumer.prefetch.property for consumer.prefetch");
+                }
+                setBeanProperty(factory, prefetchProperty, prefetch.trim());
+            }
+
+            Destination queue;
+            String queueJndi = config.getStringProperty("consumer.queue.jndi");
+            if (queueJndi != null) {
+                if (context == null) {
+                    context = new InitialContext(config.getProperties("consumer.jndi."));
+                }
+                queue = (Destination) context.lookup(queueJndi);
+            } else {
+                String queueName = config.getStringProperty("consumer.queue");
+                if (queueName == null) {
+                    throw new ConfigException("Missing property consumer.queue.jndi or consumer.queue");
+                }
+                queue = createQueue(factory, config.getStringProperty("consumer.user"), config.getStringProperty("consumer.password"), queueName);
+            }
+
+            StandaloneConsumer consumer = new StandaloneConsumer(factory, queue, threads, batchSize, batchTimeout);
+            consumer.setCredentials(config.getStringProperty("consumer.user"), config.getStringProperty("consumer.password"));
+            consumer.setRetryInterval(config.getLongProperty("consumer.retry.interval", 5000));
+            return consumer;
+        } catch (ConfigException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ConfigException(e.getMessage(), e);
+        }
+    }
+
+    private static Destination createQueue(ConnectionFactory factory, String user, String password, String name) throws JMSException {
+        Connection connection = (user != null) ? factory.createConnection(user, password) : factory.createConnection();
+        try {
+            return connection.createSession(false, Session.AUTO_ACKNOWLEDGE).createQueue(name);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Sets the bean property <code>name</code> of <code>bean</code>, converting
+     * <code>value</code> to the type of the setter; a dotted name sets the property
+     * of the object returned by the getter of the first part.
+     */
+    static void setBeanProperty(Object bean, String name, String value) throws Exception {
+        int dot = name.indexOf('.');
+        if (dot > 0) {
+            Method getter = bean.getClass().getMethod("get" + capitalize(name.substring(0, dot)), new Class<?>[0]);
+            setBeanProperty(getter.invoke(bean, new Object[0]), name.substring(dot + 1), value);
+            return;
+        }
+        String setterName = "set" + capitalize(name);
+        Method[] methods = bean.getClass().getMethods();
+        for (int i = 0; i < methods.length; i++) {
+            Method m = methods[i];
+            if (m.getName().equals(setterName) && m.getParameterTypes().length == 1) {
+                Object arg = convert(m.getParameterTypes()[0], value);
+                if (arg != null) {
+                    m.invoke(bean, new Object[] {arg});
+                    return;
+                }
+            }
+        }
+        throw new ConfigException("No property " + name + " of type String, int, long or boolean in " + bean.getClass().getName());
+    }
+
+    private static Object convert(Class<?> type, String value) {
+        if (type == String.class) {
+            return value;
+        } else if (type == int.class || type == Integer.class) {
+            return Integer.valueOf(value.trim());
+        } else if (type == long.class || type == Long.class) {
+            return Long.valueOf(value.trim());
+        } else if (type == boolean.class || type == Boolean.class) {
+            return Boolean.valueOf(value.trim());
+        }
+        return null;
+    }
+
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
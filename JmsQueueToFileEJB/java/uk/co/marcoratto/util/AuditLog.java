@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Compact audit trail, one line per message, written to its own file by a
+ * background thread.
+ * <P>
+ * The MDB threads only put a record in a bounded buffer and never wait: when
+ * the buffer is full the record is dropped and counted, and the count is
+ * reported in the audit file. Every line holds, separated by tabs: time,
+ * JMSMessageID, JMSCorrelationID, size in bytes, target, latency in
+ * microseconds and outcome (<i>OK</i> or <i>ERROR</i>).
+ * <P>
+ * Properties:
+ * <BR>- <b>audit.pathname</b>: template of the audit file (see <code>FilenameTemplate</code>, only the date tokens apply); the audit is disabled if missing;
+ * <BR>- <b>audit.buffer.size</b>: number of records buffered (default 8192, read once);
+ * <BR>- <b>log.sample.rate</b>: the per-message logs enabled at <i>FINE</i> are written for one message in this number (default 1, all);
+ * the messages are chosen by their JMSMessageID, so all the logs of a sampled message are written, and those of the others none.
+ * @author Marco Ratto
+ */
+public class AuditLog implements Runnable {
+
+    private static final String CLASS_NAME = AuditLog.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    public static final String OK = "OK";
+
+    public static final String ERROR = "ERROR";
+
+    private static final int BATCH = 512;
+
+    private static volatile AuditLog instance = null;
+
+    private final BlockingQueue<Record> buffer;
+
+    private Thread thread;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+    private String currentPathname;
+
+    private Writer out;
+
+    /**
+     * Returns the audit log, started the first time.
+     * @return AuditLog
+     * @throws ConfigException
+     */
+    public static AuditLog getInstance() throws ConfigException {
+        if (instance == null) {
+            synchronized (AuditLog.class) {
+                if (instance == null) {
+                    AuditLog audit = new AuditLog(Settings.get().getAuditBufferSize());
+                    audit.thread = new Thread(audit, CLASS_NAME);
+                    audit.thread.setDaemon(true);
+                    audit.thread.start();
+                    instance = audit;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Returns <code>true</code> if a per-message log at <code>level</code>
+     * has to be written: the level is enabled and <code>msg</code> is one of
+     * the sampled messages (<b>log.sample.rate</b>). The answer depends only
+     * on the message, so every call site agrees on it.
+     * @param log
+     * @param level
+     * @param msg
+     * @return boolean
+     */
+    public static boolean isSampled(Logger log, Level level, Message msg) {
+        if (!log.isLoggable(level)) {
+            return false;
+        }
+        int rate;
+        try {
+            rate = Settings.get().getLogSampleRate();
+        } catch (ConfigException e) {
+            return true;
+        }
+        if (rate <= 1) {
+            return true;
+        }
+        String id = null;
+        try {
+            id = msg.getJMSMessageID();
+        } catch (JMSException e) {
+        }
+        int h = (id != null) ? id.hashCode() : System.identityHashCode(msg);
+        // the IDs often differ in the last characters only: spread them before the modulo
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return (h & 0x7fffffff) % rate == 0;
+    }
+
+    /**
+     * Stops the background thread and closes the audit file; the records
+     * still buffered are dropped. The next <code>getInstance()</code> starts a new one.
+     */
+    public static void shutdown() {
+        final String METHOD_NAME = "shutdown";
+        AuditLog old;
+        synchronized (AuditLog.class) {
+            old = instance;
+            instance = null;
+        }
+        if (old != null) {
+            old.thread.interrupt();
+            try {
+                old.thread.join(MessageSinks.CLOSE_DELAY);
+            } catch (InterruptedException e) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Interrupted while waiting for " + old.thread.getName());
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private AuditLog(int capacity) {
+        this.buffer = new ArrayBlockingQueue<Record>(capacity);
+    }
+
+    /**
+     * Records the outcome of a message; never blocks.
+     * @param msg the message
+     * @param result the outcome of the sink, <code>null</code> if the message has not been stored
+     * @param latencyNanos the time spent on the message
+     * @param outcome <code>OK</code> or <code>ERROR</code>
+     */
+    public void record(Message msg, WriteResult result, long latencyNanos, String outcome) {
+        Record r = new Record();
+        r.time = System.currentTimeMillis();
+        try {
+            r.messageId = msg.getJMSMessageID();
+            r.correlationId = msg.getJMSCorrelationID();
+        } catch (JMSException e) {
+            // the record is written without the IDs
+        }
+        if (result != null) {
+            r.size = result.getSize();
+            r.target = result.getTarget();
+        } else {
+            r.size = -1;
+        }
+        r.latencyMicros = latencyNanos / 1000;
+        r.outcome = outcome;
+        if (!buffer.offer(r)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of records dropped because the buffer was full.
+     * @return long
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void run() {
+        final String METHOD_NAME = "run";
+        List<Record> batch = new ArrayList<Record>(BATCH);
+        StringBuilder sb = new StringBuilder(256);
+        long reportedDropped = 0;
+        while (true) {
+            try {
+                batch.add(buffer.take());
+                buffer.drainTo(batch, BATCH - 1);
+                Writer w = getWriter();
+                if (w == null) {
+                    batch.clear();
+                    continue;
+                }
+                for (Record r : batch) {
+                    sb.setLength(0);
+                    sb.append(dateFormat.format(new Date(r.time))).append('\t');
+                    sb.append(r.messageId).append('\t');
+                    sb.append(r.correlationId).append('\t');
+                    sb.append(r.size).append('\t');
+                    sb.append(r.target).append('\t');
+                    sb.append(r.latencyMicros).append('\t');
+                    sb.append(r.outcome).append('\n');
+                    w.write(sb.toString());
+                }
+                long d = dropped.get();
+                if (d != reportedDropped) {
+                    w.write("# " + (d - reportedDropped) + " records dropped, audit buffer full\n");
+                    reportedDropped = d;
+                }
+                w.flush();
+            } catch (InterruptedException e) {
+                closeWriter();
+                return;
+            } catch (Exception e) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+                closeWriter();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Returns the writer of the audit file for the current time, opening the
+     * next file when the name rendered from <b>audit.pathname</b> changes.
+     */
+    private Writer getWriter() throws ConfigException, IOException, JMSException {
+        FilenameTemplate template = Settings.get().getAuditTemplate();
+        if (template == null) {
+            closeWriter();
+            return null;
+        }
+        String pathname = template.render(null);
+        if (!pathname.equals(currentPathname)) {
+            closeWriter();
+            File f = new File(pathname);
+            File parentDir = f.getParentFile();
+            if (parentDir != null && !parentDir.exists()) {
+                parentDir.mkdirs();
+            }
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f, true), "UTF-8"), 64 * 1024);
+            currentPathname = pathname;
+        }
+        return out;
+    }
+
+    private void closeWriter() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ioe) {
+            }
+            out = null;
+        }
+        currentPathname = null;
+    }
+
+    private static class Record {
+        long time;
+        String messageId;
+        String correlationId;
+        long size;
+        String target;
+        long latencyMicros;
+        String outcome;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.util.List;
+
+import javax.jms.Message;
+
+/**
+ * A sink that can write a batch of messages with one commit of
+ * <b>target.durability</b> for all of them, used by the writers of
+ * <code>PipelineSink</code>.
+ * <P>
+ * <code>writePending</code> stores the message without forcing it;
+ * <code>commit</code> then forces everything written for the batch at once
+ * and completes every write, e.g. publishing the file renamed into place.
+ * <code>write(msg)</code> is the same as a batch of one message.
+ * @author Marco Ratto
+ */
+public interface BatchSink extends MessageSink {
+
+    /**
+     * Stores the body of the message, leaving its commit to <code>commit</code>.
+     * @param msg the message received from the queue
+     * @return PendingWrite to pass to <code>commit</code>
+     * @throws UtilityException if the message cannot be stored
+     */
+    public PendingWrite writePending(Message msg) throws UtilityException;
+
+    /**
+     * Makes durable the messages of <code>writes</code> together and completes
+     * each of them: the outcome of every message, or its failure, is then
+     * available from <code>PendingWrite.getResult()</code>.
+     * @param writes returned by <code>writePending</code> of this sink
+     */
+    public void commit(List<PendingWrite> writes);
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * Reads the body of a <code>BytesMessage</code> from its current position,
+ * in chunks read from the message only when asked, so that a large body
+ * is never copied whole.
+ * @author Marco Ratto
+ */
+public class BytesMessageInputStream extends InputStream {
+
+    private final BytesMessage message;
+
+    private final byte[] chunk;
+
+    private boolean eof = false;
+
+    /**
+     * @param message the message, ready to be read
+     * @param chunkSize the bytes read from the message at most by every <code>read</code>
+     */
+    public BytesMessageInputStream(BytesMessage message, int chunkSize) {
+        this.message = message;
+        this.chunk = new byte[chunkSize];
+    }
+
+    public int read() throws IOException {
+        int n = read(chunk, 0, 1);
+        return (n < 0) ? -1 : chunk[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (eof) {
+            return -1;
+        }
+        try {
+            int n;
+            if (off == 0) {
+                n = message.readBytes(b, Math.min(len, chunk.length));
+            } else {
+                n = message.readBytes(chunk, Math.min(len, chunk.length));
+                if (n > 0) {
+                    System.arraycopy(chunk, 0, b, off, n);
+                }
+            }
+            if (n < 0) {
+                eof = true;
+            }
+            return n;
+        } catch (JMSException e) {
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Counts the bytes written to a channel and computes their CRC-32, for the
+ * manifest of the target files (see <code>Manifest</code>).
+ * @author Marco Ratto
+ */
+public class ChecksumChannel implements WritableByteChannel {
+
+    private final WritableByteChannel target;
+
+    private final CRC32 crc = new CRC32();
+
+    private long size = 0;
+
+    public ChecksumChannel(WritableByteChannel target) {
+        this.target = target;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        int position = src.position();
+        int n = target.write(src);
+        if (n > 0) {
+            if (src.hasArray()) {
+                crc.update(src.array(), src.arrayOffset() + position, n);
+            } else {
+                byte[] written = new byte[n];
+                ByteBuffer copy = src.duplicate();
+                copy.position(position);
+                copy.get(written);
+                crc.update(written, 0, n);
+            }
+            size += n;
+        }
+        return n;
+    }
+
+    public boolean isOpen() {
+        return target.isOpen();
+    }
+
+    /**
+     * Does not close the channel of the file, which belongs to the caller.
+     */
+    public void close() {
+    }
+
+    /**
+     * Returns the bytes written.
+     * @return long
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the CRC-32 of the bytes written, as 8 hexadecimal digits.
+     * @return String
+     */
+    public String getChecksum() {
+        String hex = Long.toHexString(crc.getValue());
+        return "00000000".substring(hex.length()) + hex;
+    }
+}
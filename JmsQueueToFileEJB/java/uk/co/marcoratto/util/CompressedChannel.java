@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel compressing what is written to it into the channel of a file
+ * (see <code>Compression</code>).
+ * <P>
+ * <code>finish()</code> writes the data still held by the compressor and the
+ * trailer of the format; <code>close()</code> releases the resources without
+ * closing the channel of the file, which belongs to the caller.
+ * @author Marco Ratto
+ */
+public abstract class CompressedChannel implements WritableByteChannel {
+
+    protected final WritableByteChannel target;
+
+    /**
+     * Bytes written to this channel.
+     */
+    protected long uncompressedSize = 0;
+
+    /**
+     * Bytes written to the channel of the file.
+     */
+    protected long compressedSize = 0;
+
+    /**
+     * CPU time spent compressing, in nanoseconds.
+     */
+    protected long cpuTime = 0;
+
+    private boolean open = true;
+
+    protected CompressedChannel(WritableByteChannel target) {
+        this.target = target;
+    }
+
+    /**
+     * Completes the compressed stream and counts it in <code>Metrics</code>.
+     * @return the bytes written to the channel of the file
+     * @throws IOException
+     */
+    public long finish() throws IOException {
+        checkOpen();
+        complete();
+        Metrics.getInstance().compressed(uncompressedSize, compressedSize, cpuTime);
+        return compressedSize;
+    }
+
+    /**
+     * Writes the data still held by the compressor and the trailer of the format.
+     * @throws IOException
+     */
+    protected abstract void complete() throws IOException;
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() throws IOException {
+        open = false;
+    }
+
+    protected void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Writes all of <code>buffer</code> to the channel of the file.
+     */
+    protected void writeTarget(ByteBuffer buffer) throws IOException {
+        compressedSize += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * Compresses the files written by <code>FileSink</code> while the body is copied,
+ * without holding the whole body in memory.
+ * <P>
+ * The property <b>target.compression</b> accepts:
+ * <BR>- <b>none</b> (default): the body is written as it is;
+ * <BR>- <b>gzip</b>: the file is in gzip format (RFC 1952);
+ * <BR>- <b>deflate</b>: the file is in zlib format (RFC 1950), read by <code>java.util.zip.InflaterInputStream</code>.
+ * <P>
+ * A <i>gzip</i> body of at least <b>target.compression.threshold</b> bytes is cut
+ * in blocks of <b>target.compression.block.size</b> bytes, compressed by
+ * <b>target.compression.threads</b> background threads shared by all the MDB
+ * instances; every block becomes a gzip member and the members are written
+ * in order, so the file is read by <code>gunzip</code> as a single stream. At
+ * most two blocks per thread are waiting to be written, which bounds the
+ * memory used by a message.
+ * <P>
+ * The name of the file is still the one of <b>target.pathname</b>, which
+ * should end with <i>.gz</i> or <i>.zz</i>. <code>Metrics</code> counts the
+ * bytes before and after compression and the CPU time spent compressing.
+ * @author Marco Ratto
+ */
+public class Compression {
+
+    private static final String CLASS_NAME = Compression.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    public static final String NONE = "none";
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static volatile Compression instance = null;
+
+    private static volatile Settings instanceSettings = null;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private static final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+
+    private static final ThreadLocal<Deflater> rawDeflater = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Deflater> zlibDeflater = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+        }
+    };
+
+    private static final ThreadLocal<ByteBuffer> outputBuffer = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        }
+    };
+
+    private final String mode;
+
+    private final int level;
+
+    private final long threshold;
+
+    private final int blockSize;
+
+    private final int maxPending;
+
+    private final ExecutorService executor;
+
+    /**
+     * Returns the instance configured by the current <code>Settings</code>,
+     * replacing it when a reload of the configuration has changed the compression.
+     * @return Compression
+     */
+    public static Compression getInstance() throws ConfigException {
+        Settings settings = Settings.get();
+        if (instance == null || instanceSettings != settings) {
+            synchronized (Compression.class) {
+                if (instance == null || (instanceSettings != settings && !instanceSettings.sameCompression(settings))) {
+                    Compression old = instance;
+                    instance = new Compression(settings);
+                    if (old != null) {
+                        old.shutdown();
+                    }
+                }
+                instanceSettings = settings;
+            }
+        }
+        return instance;
+    }
+
+    private Compression(Settings settings) {
+        final String METHOD_NAME = "Constructor";
+        this.mode = settings.getCompression();
+        this.level = settings.getCompressionLevel();
+        this.threshold = settings.getCompressionThreshold();
+        this.blockSize = settings.getCompressionBlockSize();
+        int threadCount = settings.getCompressionThreads();
+        this.maxPending = 2 * threadCount;
+        if (GZIP.equals(mode) && threshold > 0) {
+            this.executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, CLASS_NAME + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            this.executor = null;
+        }
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "target.compression=" + mode);
+    }
+
+    /**
+     * Lets the blocks already submitted complete, then stops the threads.
+     */
+    private void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Stops the threads of the instance in use; the next <code>getInstance()</code> creates a new one.
+     */
+    public static void shutdownInstance() {
+        Compression old;
+        synchronized (Compression.class) {
+            old = instance;
+            instance = null;
+            instanceSettings = null;
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns <code>true</code> if the files are compressed.
+     * @return boolean
+     */
+    public boolean isEnabled() {
+        return !NONE.equals(mode);
+    }
+
+    /**
+     * Returns the channel compressing the body of <code>msg</code> into <code>target</code>;
+     * the caller writes the body, calls <code>finish()</code> and then <code>close()</code>.
+     * @param msg the message to write, whose length chooses the parallel compression
+     * @param target the channel of the file, not closed by the returned channel
+     * @return CompressedChannel
+     * @throws JMSException
+     */
+    public CompressedChannel open(Message msg, WritableByteChannel target) throws JMSException {
+        if (executor != null && lengthOf(msg) >= threshold) {
+            return new ParallelGzipChannel(target, executor, level, blockSize, maxPending);
+        }
+        return new DeflaterChannel(target, GZIP.equals(mode), level);
+    }
+
+    /**
+     * Returns the length of the body of <code>msg</code>, in characters for a
+     * <code>TextMessage</code>, or -1 if it is not known before reading it.
+     */
+    private static long lengthOf(Message msg) throws JMSException {
+        if (msg instanceof BytesMessage) {
+            BytesMessage bytesMsg = (BytesMessage) msg;
+            bytesMsg.reset();
+            return bytesMsg.getBodyLength();
+        } else if (msg instanceof TextMessage) {
+            String text = ((TextMessage) msg).getText();
+            return (text != null) ? text.length() : 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the deflater of the current thread, reset and set to <code>level</code>.
+     * @param level
+     * @param raw <code>true</code> for raw deflate data, as in gzip; <code>false</code> for the zlib format
+     * @return Deflater
+     */
+    static Deflater getDeflater(int level, boolean raw) {
+        Deflater deflater = (raw ? rawDeflater : zlibDeflater).get();
+        deflater.reset();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    /**
+     * Returns the buffer of the current thread receiving the output of its deflater.
+     * @return ByteBuffer
+     */
+    static ByteBuffer getOutputBuffer() {
+        ByteBuffer buffer = outputBuffer.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the CPU time of the current thread in nanoseconds, or the
+     * elapsed time where the JVM does not measure it.
+     * @return long
+     */
+    static long cpuTime() {
+        return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
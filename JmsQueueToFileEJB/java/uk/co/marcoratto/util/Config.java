@@ -23,11 +23,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Enumeration;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 
@@ -47,6 +49,16 @@ public class Config {
    */
   protected Properties prop = null;
 
+  /**
+   * URL dal quale e' stato letto il file di properties, <code>null</code> se non noto.
+   */
+  private URL source = null;
+
+  /**
+   * File dal quale e' stato letto il file di properties, <code>null</code> se non letto dal file system.
+   */
+  private File sourceFile = null;
+
   /**
    * Questo costruttore deve essere invocato nel costruttore di ogni sottoclasse.
    */
@@ -60,6 +72,43 @@ public class Config {
 	}
   }
 
+  /**
+   * Costruisce una configurazione con le properties gia' lette da <code>source</code>,
+   * senza leggere il file. Usato da <code>ConfigReloader</code>.
+   * @param prop le properties
+   * @param source URL del file, puo' essere <code>null</code>
+   * @param sourceFile il file sul file system, puo' essere <code>null</code>
+   */
+  protected Config(Properties prop, URL source, File sourceFile) {
+    this.prop = prop;
+    this.source = source;
+    this.sourceFile = sourceFile;
+  }
+
+  /**
+   * Sostituisce la configurazione in uso. Usato da <code>ConfigReloader</code>.
+   * @param config
+   */
+  static synchronized void setInstance(Config config) {
+    instance = config;
+  }
+
+  /**
+   * Il metodo ritorna l'URL dal quale e' stato letto il file di properties, <code>null</code> se non noto.
+   * @return URL
+   */
+  public URL getSource() {
+    return source;
+  }
+
+  /**
+   * Il metodo ritorna il file dal quale e' stato letto il file di properties, <code>null</code> se non letto dal file system.
+   * @return File
+   */
+  public File getSourceFile() {
+    return sourceFile;
+  }
+
   public static Config getInstance() throws IOException {
 	    if (instance == null) {
 	      synchronized(Config.class) {
@@ -137,6 +186,7 @@ public class Config {
       if (is != null) {  // OK, file trovato
     	 logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME," looking for file in classloader... OK");
          this.readFileProperties(is);
+         this.source = Config.class.getResource(filename);
       } else {
         // se non trovato si cerca su file system
         try {
@@ -144,6 +194,8 @@ public class Config {
           is = new FileInputStream(filename);
           logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "looking for file in file system... OK");
           this.readFileProperties(is); // prop.load(is);
+          this.sourceFile = new File(filename);
+          this.source = this.sourceFile.toURI().toURL();
         } catch (FileNotFoundException e) {
           logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "errore in fase di lettura file. " + e.getMessage());
           throw new IOException(e.getMessage());
@@ -220,6 +272,14 @@ public class Config {
     logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "getting inputStream... OK");
     this.readFileProperties(inputStream); 
     inputStream.close();
+    this.source = url;
+    if ("file".equals(url.getProtocol())) {
+      try {
+        this.sourceFile = new File(url.toURI());
+      } catch (URISyntaxException e) {
+        this.sourceFile = new File(url.getPath());
+      }
+    }
   }
 
   /**
@@ -369,6 +429,22 @@ public class Config {
     return this.prop;
   }
 
+  /**
+   * Il metodo restituisce le properties il cui nome inizia con <code>prefix</code>, con il nome privato del prefisso.
+   * @param String prefix
+   * @return Properties
+   */
+  public Properties getProperties(String prefix) {
+    Properties result = new Properties();
+    for (Enumeration<?> e = prop.propertyNames(); e.hasMoreElements();) {
+      String key = (String) e.nextElement();
+      if (key.startsWith(prefix)) {
+        result.setProperty(key.substring(prefix.length()), prop.getProperty(key));
+      }
+    }
+    return result;
+  }
+
   protected String getFileURL() {
 	    return FILENAME_URL;
 	  }
@@ -390,7 +466,7 @@ public class Config {
 	    return FILENAME_PROPERTYNAME;
 	  }	
 
-	  private static Config instance = null;
+	  private static volatile Config instance = null;
 
 	  // nome jndi del file di properties
 	  public static final String FILENAME_URL = "url/JmsQueueToFileConfigFile";
@@ -399,5 +475,5 @@ public class Config {
 	  public static final String DEFAULT_PROPERTIES_FILE_NAME = "JmsQueueToFile.properties";
 
 	  // nome della property contenente il nome del file di properties
-	  private static final String FILENAME_PROPERTYNAME = "JmsQueueToFileConfigFile";
+	  public static final String FILENAME_PROPERTYNAME = "JmsQueueToFileConfigFile";
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reloads the properties file when it changes and publishes a new
+ * <code>Settings</code> snapshot.
+ * <P>
+ * A file on the file system is checked every <b>config.reload.interval</b>
+ * milliseconds through its modification time and length; any other URL is
+ * checked with a conditional request (<code>If-Modified-Since</code>), or by
+ * comparing the properties read when the protocol gives no modification time.
+ * A file that fails the validation of <code>Settings</code> is reported and
+ * ignored, and the last good configuration stays in use.
+ * <BR>The snapshot is replaced through a <code>volatile</code> reference, so the
+ * messages being processed complete with the settings they started with.
+ * @author Marco Ratto
+ */
+public class ConfigReloader implements Runnable {
+
+    private static final String CLASS_NAME = ConfigReloader.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static ConfigReloader instance = null;
+
+    private final long interval;
+
+    private long lastModified;
+
+    private long lastLength;
+
+    private volatile boolean running = true;
+
+    private Thread thread;
+
+    /**
+     * Starts the reloader, once per JVM. Does nothing if <code>interval</code> is 0.
+     * @param interval milliseconds between two checks
+     */
+    public static synchronized void start(long interval) {
+        final String METHOD_NAME = "start";
+        if (instance != null || interval <= 0) {
+            return;
+        }
+        try {
+            instance = new ConfigReloader(interval);
+        } catch (IOException e) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Reload disabled: " + e.getMessage(), e);
+            return;
+        }
+        instance.thread = new Thread(instance, CLASS_NAME);
+        instance.thread.setDaemon(true);
+        instance.thread.start();
+    }
+
+    public static synchronized void stop() {
+        if (instance != null) {
+            instance.running = false;
+            instance.thread.interrupt();
+            instance = null;
+        }
+    }
+
+    private ConfigReloader(long interval) throws IOException {
+        this.interval = interval;
+        Config config = Config.getInstance();
+        File file = config.getSourceFile();
+        if (file != null) {
+            lastModified = file.lastModified();
+            lastLength = file.length();
+        } else if (config.getSource() != null) {
+            lastModified = config.getSource().openConnection().getLastModified();
+        } else {
+            throw new IOException("Unknown source of the properties file");
+        }
+    }
+
+    public void run() {
+        final String METHOD_NAME = "run";
+        while (running) {
+            try {
+                Thread.sleep(interval);
+                check();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Reloads the properties file if it has changed since the last check.
+     * @throws IOException
+     */
+    public void check() throws IOException {
+        Config config = Config.getInstance();
+        File file = config.getSourceFile();
+        URL source = config.getSource();
+        Properties prop = new Properties();
+
+        if (file != null) {
+            long modified = file.lastModified();
+            long length = file.length();
+            if (modified == lastModified && length == lastLength) {
+                return;
+            }
+            InputStream is = new FileInputStream(file);
+            try {
+                prop.load(is);
+            } finally {
+                is.close();
+            }
+            lastModified = modified;
+            lastLength = length;
+        } else {
+            URLConnection connection = source.openConnection();
+            connection.setUseCaches(false);
+            if (lastModified > 0) {
+                connection.setIfModifiedSince(lastModified);
+            }
+            if (connection instanceof HttpURLConnection
+                    && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return;
+            }
+            long modified = connection.getLastModified();
+            InputStream is = connection.getInputStream();
+            try {
+                if (modified > 0 && modified == lastModified) {
+                    return;
+                }
+                prop.load(is);
+            } finally {
+                is.close();
+            }
+            lastModified = modified;
+            if (modified <= 0 && prop.equals(config.getProperties())) {
+                return;
+            }
+        }
+        reload(new Config(prop, source, file));
+    }
+
+    private static void reload(Config candidate) {
+        final String METHOD_NAME = "reload";
+        Settings settings;
+        try {
+            settings = new Settings(candidate);
+        } catch (ConfigException e) {
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "The properties file is not valid, keeping the current configuration: " + e.getMessage(), e);
+            return;
+        }
+        Config.setInstance(candidate);
+        Settings.set(settings);
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Configuration reloaded");
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the data written, as it arrives, into a single gzip member or
+ * zlib stream, using the deflater and the output buffer of the current thread.
+ * @author Marco Ratto
+ */
+public class DeflaterChannel extends CompressedChannel {
+
+    /**
+     * Header of a gzip member: magic number, deflate method, no flags, no time, unknown OS.
+     */
+    static final byte[] GZIP_HEADER = {(byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Deflater deflater;
+
+    private final CRC32 crc;
+
+    private final ByteBuffer output;
+
+    private boolean started = false;
+
+    /**
+     * @param target the channel of the file
+     * @param gzip <code>true</code> for the gzip format, <code>false</code> for zlib
+     * @param level the compression level
+     */
+    public DeflaterChannel(WritableByteChannel target, boolean gzip, int level) {
+        super(target);
+        this.deflater = Compression.getDeflater(level, gzip);
+        this.crc = gzip ? new CRC32() : null;
+        this.output = Compression.getOutputBuffer();
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        start();
+        int length = src.remaining();
+        byte[] array;
+        int offset;
+        if (src.hasArray()) {
+            array = src.array();
+            offset = src.arrayOffset() + src.position();
+        } else {
+            array = new byte[length];
+            src.duplicate().get(array);
+            offset = 0;
+        }
+        long cpuStart = Compression.cpuTime();
+        if (crc != null) {
+            crc.update(array, offset, length);
+        }
+        deflater.setInput(array, offset, length);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+        cpuTime += Compression.cpuTime() - cpuStart;
+        src.position(src.limit());
+        uncompressedSize += length;
+        return length;
+    }
+
+    protected void complete() throws IOException {
+        start();
+        long cpuStart = Compression.cpuTime();
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        cpuTime += Compression.cpuTime() - cpuStart;
+        if (crc != null) {
+            output.clear();
+            putTrailer(output, crc.getValue(), uncompressedSize);
+            output.flip();
+            writeTarget(output);
+        }
+    }
+
+    public void close() throws IOException {
+        if (isOpen()) {
+            super.close();
+            deflater.reset();
+        }
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            started = true;
+            if (crc != null) {
+                writeTarget(ByteBuffer.wrap(GZIP_HEADER));
+            }
+        }
+    }
+
+    private void deflate() throws IOException {
+        int n = deflater.deflate(output.array(), 0, output.capacity());
+        if (n > 0) {
+            output.clear();
+            output.limit(n);
+            writeTarget(output);
+        }
+    }
+
+    /**
+     * Puts the trailer of a gzip member: CRC-32 and length modulo 2^32, little-endian.
+     * @param buffer
+     * @param crc
+     * @param length the uncompressed length of the member
+     */
+    static void putTrailer(ByteBuffer buffer, long crc, long length) {
+        putInt(buffer, (int) crc);
+        putInt(buffer, (int) length);
+    }
+
+    private static void putInt(ByteBuffer buffer, int value) {
+        buffer.put((byte) value);
+        buffer.put((byte) (value >>> 8));
+        buffer.put((byte) (value >>> 16));
+        buffer.put((byte) (value >>> 24));
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageFormatException;
+
+/**
+ * Read-only copy of a <code>BytesMessage</code>, holding its body in an
+ * array (see <code>DetachedMessage</code>).
+ * @author Marco Ratto
+ */
+public class DetachedBytesMessage extends DetachedMessage implements BytesMessage {
+
+    private final byte[] body;
+
+    private ByteArrayInputStream in;
+
+    private DataInputStream data;
+
+    /**
+     * Copies the message, reading its body from the start; <code>msg</code>
+     * is reset before returning.
+     * @param msg
+     * @throws JMSException
+     */
+    public DetachedBytesMessage(BytesMessage msg) throws JMSException {
+        super(msg);
+        msg.reset();
+        long length = msg.getBodyLength();
+        if (length > Integer.MAX_VALUE) {
+            throw new MessageFormatException("Body of " + length + " bytes too large to be copied");
+        }
+        this.body = new byte[(int) length];
+        int offset = 0;
+        byte[] chunk = new byte[Math.min(body.length, 64 * 1024)];
+        int n;
+        while (offset < body.length && (n = msg.readBytes(chunk, Math.min(chunk.length, body.length - offset))) > 0) {
+            System.arraycopy(chunk, 0, body, offset, n);
+            offset += n;
+        }
+        msg.reset();
+        if (offset < body.length) {
+            throw new MessageEOFException("Body of " + offset + " bytes instead of " + body.length);
+        }
+        reset();
+    }
+
+    public long getBodyLength() {
+        return body.length;
+    }
+
+    public void reset() {
+        in = new ByteArrayInputStream(body);
+        data = new DataInputStream(in);
+    }
+
+    public int readBytes(byte[] value) {
+        return readBytes(value, value.length);
+    }
+
+    public int readBytes(byte[] value, int length) {
+        if (length < 0 || length > value.length) {
+            throw new IndexOutOfBoundsException("length=" + length);
+        }
+        if (length == 0) {
+            return (in.available() > 0) ? 0 : -1;
+        }
+        return in.read(value, 0, length);
+    }
+
+    public boolean readBoolean() throws JMSException {
+        try {
+            return data.readBoolean();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public byte readByte() throws JMSException {
+        try {
+            return data.readByte();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public int readUnsignedByte() throws JMSException {
+        try {
+            return data.readUnsignedByte();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public short readShort() throws JMSException {
+        try {
+            return data.readShort();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public int readUnsignedShort() throws JMSException {
+        try {
+            return data.readUnsignedShort();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public char readChar() throws JMSException {
+        try {
+            return data.readChar();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public int readInt() throws JMSException {
+        try {
+            return data.readInt();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public long readLong() throws JMSException {
+        try {
+            return data.readLong();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public float readFloat() throws JMSException {
+        try {
+            return data.readFloat();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public double readDouble() throws JMSException {
+        try {
+            return data.readDouble();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public String readUTF() throws JMSException {
+        try {
+            return data.readUTF();
+        } catch (IOException e) {
+            throw toJMSException(e);
+        }
+    }
+
+    public void writeBoolean(boolean value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeByte(byte value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeShort(short value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeChar(char value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeInt(int value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeLong(long value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeFloat(float value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeDouble(double value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeUTF(String value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeBytes(byte[] value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeBytes(byte[] value, int offset, int length) throws JMSException {
+        throw readOnly();
+    }
+
+    public void writeObject(Object value) throws JMSException {
+        throw readOnly();
+    }
+
+    private static JMSException toJMSException(IOException e) {
+        JMSException je = (e instanceof EOFException) ? new MessageEOFException("End of the body") : new MessageFormatException(e.getMessage());
+        je.setLinkedException(e);
+        return je;
+    }
+}
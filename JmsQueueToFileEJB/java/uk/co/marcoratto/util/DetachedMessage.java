@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageNotWriteableException;
+import javax.jms.TextMessage;
+
+/**
+ * Read-only copy of a received message, holding its headers, properties
+ * and body, so that a thread other than the one owning the JMS session can
+ * read it without touching the session (see <code>PipelineSink</code>).
+ * <P>
+ * <code>copyOf</code> is called on the thread that received the message.
+ * The properties are converted as required by the JMS specification; every
+ * method changing the message throws <code>MessageNotWriteableException</code>
+ * and <code>acknowledge</code> does nothing.
+ * @author Marco Ratto
+ */
+public class DetachedMessage implements Message {
+
+    private final String messageID;
+    private final long timestamp;
+    private final String correlationID;
+    private final Destination replyTo;
+    private final Destination destination;
+    private final int deliveryMode;
+    private final boolean redelivered;
+    private final String type;
+    private final long expiration;
+    private final int priority;
+    private final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+
+    /**
+     * Returns a copy of <code>msg</code>, <code>null</code> if it is neither a
+     * <code>BytesMessage</code> nor a <code>TextMessage</code>. The body of a
+     * <code>BytesMessage</code> is read whole and the message is reset, so
+     * that it can be read again; the text of a <code>TextMessage</code> is
+     * shared, since it is immutable.
+     * @param msg
+     * @return Message
+     * @throws JMSException
+     */
+    public static Message copyOf(Message msg) throws JMSException {
+        if (msg instanceof BytesMessage) {
+            return new DetachedBytesMessage((BytesMessage) msg);
+        } else if (msg instanceof TextMessage) {
+            return new DetachedTextMessage((TextMessage) msg);
+        }
+        return null;
+    }
+
+    protected DetachedMessage(Message msg) throws JMSException {
+        this.messageID = msg.getJMSMessageID();
+        this.timestamp = msg.getJMSTimestamp();
+        this.correlationID = msg.getJMSCorrelationID();
+        this.replyTo = msg.getJMSReplyTo();
+        this.destination = msg.getJMSDestination();
+        this.deliveryMode = msg.getJMSDeliveryMode();
+        this.redelivered = msg.getJMSRedelivered();
+        this.type = msg.getJMSType();
+        this.expiration = msg.getJMSExpiration();
+        this.priority = msg.getJMSPriority();
+        for (Enumeration<?> e = msg.getPropertyNames(); e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            properties.put(name, msg.getObjectProperty(name));
+        }
+    }
+
+    public String getJMSMessageID() {
+        return messageID;
+    }
+
+    public long getJMSTimestamp() {
+        return timestamp;
+    }
+
+    public byte[] getJMSCorrelationIDAsBytes() {
+        return (correlationID != null) ? correlationID.getBytes() : null;
+    }
+
+    public String getJMSCorrelationID() {
+        return correlationID;
+    }
+
+    public Destination getJMSReplyTo() {
+        return replyTo;
+    }
+
+    public Destination getJMSDestination() {
+        return destination;
+    }
+
+    public int getJMSDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public boolean getJMSRedelivered() {
+        return redelivered;
+    }
+
+    public String getJMSType() {
+        return type;
+    }
+
+    public long getJMSExpiration() {
+        return expiration;
+    }
+
+    public int getJMSPriority() {
+        return priority;
+    }
+
+    public boolean propertyExists(String name) {
+        return properties.containsKey(name);
+    }
+
+    public boolean getBooleanProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Boolean.valueOf((String) value).booleanValue();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value).booleanValue();
+        }
+        throw cannotConvert(name, value, "boolean");
+    }
+
+    public byte getByteProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Byte.parseByte((String) value);
+        } else if (value instanceof Byte) {
+            return ((Byte) value).byteValue();
+        }
+        throw cannotConvert(name, value, "byte");
+    }
+
+    public short getShortProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Short.parseShort((String) value);
+        } else if (value instanceof Byte || value instanceof Short) {
+            return ((Number) value).shortValue();
+        }
+        throw cannotConvert(name, value, "short");
+    }
+
+    public int getIntProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Integer.parseInt((String) value);
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer) {
+            return ((Number) value).intValue();
+        }
+        throw cannotConvert(name, value, "int");
+    }
+
+    public long getLongProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null || value instanceof String) {
+            return Long.parseLong((String) value);
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long) {
+            return ((Number) value).longValue();
+        }
+        throw cannotConvert(name, value, "long");
+    }
+
+    public float getFloatProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null) {
+            throw new NullPointerException("Property " + name + " not set");
+        } else if (value instanceof String) {
+            return Float.parseFloat((String) value);
+        } else if (value instanceof Float) {
+            return ((Float) value).floatValue();
+        }
+        throw cannotConvert(name, value, "float");
+    }
+
+    public double getDoubleProperty(String name) throws JMSException {
+        Object value = properties.get(name);
+        if (value == null) {
+            throw new NullPointerException("Property " + name + " not set");
+        } else if (value instanceof String) {
+            return Double.parseDouble((String) value);
+        } else if (value instanceof Float || value instanceof Double) {
+            return ((Number) value).doubleValue();
+        }
+        throw cannotConvert(name, value, "double");
+    }
+
+    public String getStringProperty(String name) {
+        Object value = properties.get(name);
+        return (value != null) ? value.toString() : null;
+    }
+
+    public Object getObjectProperty(String name) {
+        return properties.get(name);
+    }
+
+    public Enumeration<String> getPropertyNames() {
+        return Collections.enumeration(properties.keySet());
+    }
+
+    public void setJMSMessageID(String id) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSTimestamp(long timestamp) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSCorrelationIDAsBytes(byte[] correlationID) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSCorrelationID(String correlationID) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSReplyTo(Destination replyTo) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSDestination(Destination destination) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSDeliveryMode(int deliveryMode) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSRedelivered(boolean redelivered) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSType(String type) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSExpiration(long expiration) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setJMSPriority(int priority) throws JMSException {
+        throw readOnly();
+    }
+
+    public void clearProperties() throws JMSException {
+        throw readOnly();
+    }
+
+    public void setBooleanProperty(String name, boolean value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setByteProperty(String name, byte value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setShortProperty(String name, short value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setIntProperty(String name, int value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setLongProperty(String name, long value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setFloatProperty(String name, float value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setDoubleProperty(String name, double value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setStringProperty(String name, String value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void setObjectProperty(String name, Object value) throws JMSException {
+        throw readOnly();
+    }
+
+    public void acknowledge() {
+    }
+
+    public void clearBody() throws JMSException {
+        throw readOnly();
+    }
+
+    protected static MessageNotWriteableException readOnly() {
+        return new MessageNotWriteableException("The copy of the message is read-only");
+    }
+
+    private static MessageFormatException cannotConvert(String name, Object value, String type) {
+        return new MessageFormatException("Property " + name + " of type " + value.getClass().getName() + " cannot be read as " + type);
+    }
+}
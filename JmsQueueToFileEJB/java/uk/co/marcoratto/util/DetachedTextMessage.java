@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+
+/**
+ * Read-only copy of a <code>TextMessage</code> (see <code>DetachedMessage</code>).
+ * @author Marco Ratto
+ */
+public class DetachedTextMessage extends DetachedMessage implements TextMessage {
+
+    private final String text;
+
+    public DetachedTextMessage(TextMessage msg) throws JMSException {
+        super(msg);
+        this.text = msg.getText();
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) throws JMSException {
+        throw readOnly();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Directories of the target files known to exist, so that checking them
+ * costs no system call once they have been created or found.
+ * <P>
+ * An entry is dropped with <code>forget</code> when the creation of a file
+ * fails because its directory has disappeared, for example removed by a
+ * housekeeping job; the next check looks at the file system again.
+ * <P>
+ * When <b>target.create.dir=true</b> and the directory of <b>target.pathname</b>
+ * depends only on the date (see <code>FilenameTemplate.getDirectoryTemplate()</code>),
+ * a background thread creates the directory of the next period
+ * <b>target.create.dir.ahead</b> milliseconds before it starts (default 60000,
+ * 0 disabled), so that the first message of a day or an hour does not wait
+ * for <code>mkdirs</code>. The subdirectories of <code>Sharding</code> are
+ * still created on first use.
+ * @author Marco Ratto
+ */
+public class DirectoryCache {
+
+    private static final String CLASS_NAME = DirectoryCache.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    /**
+     * Directories remembered at most; beyond this the cache is emptied and filled again.
+     */
+    private static final int MAX_KNOWN = 65536;
+
+    /**
+     * Period of the check of the next directory, in milliseconds.
+     */
+    private static final long AHEAD_PERIOD = 10000;
+
+    private static final Map<String, Boolean> known = new ConcurrentHashMap<String, Boolean>();
+
+    private static Timer ahead = null;
+
+    private DirectoryCache() {
+    }
+
+    /**
+     * Returns <code>true</code> if <code>dir</code> exists, creating it with
+     * its parents if <code>create</code> is <code>true</code>.
+     * @param dir
+     * @param create
+     * @return boolean
+     */
+    public static boolean ensure(File dir, boolean create) {
+        final String METHOD_NAME = "ensure";
+        String path = dir.getPath();
+        if (known.containsKey(path)) {
+            return true;
+        }
+        if (create) {
+            startAhead();
+            if (dir.mkdirs()) {
+                logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Create " + dir.getAbsolutePath());
+            }
+        }
+        if (!dir.isDirectory()) {
+            return false;
+        }
+        if (known.size() >= MAX_KNOWN) {
+            known.clear();
+        }
+        known.put(path, Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Forgets <code>dir</code>, found missing.
+     * @param dir
+     */
+    public static void forget(File dir) {
+        known.remove(dir.getPath());
+    }
+
+    /**
+     * Forgets all the directories.
+     */
+    public static void clear() {
+        known.clear();
+    }
+
+    /**
+     * Stops the thread creating the next directories and forgets all the
+     * directories; the next <code>ensure</code> creating a directory starts the thread again.
+     */
+    public static synchronized void shutdown() {
+        if (ahead != null) {
+            ahead.cancel();
+            ahead = null;
+        }
+        known.clear();
+    }
+
+    /**
+     * Starts the thread creating the next directories, once.
+     */
+    private static synchronized void startAhead() {
+        if (ahead == null) {
+            ahead = new Timer(CLASS_NAME, true);
+            ahead.schedule(new TimerTask() {
+                public void run() {
+                    createNext();
+                }
+            }, 0, AHEAD_PERIOD);
+        }
+    }
+
+    /**
+     * Creates the directory that <b>target.pathname</b> names in
+     * <b>target.create.dir.ahead</b> milliseconds.
+     */
+    private static void createNext() {
+        final String METHOD_NAME = "createNext";
+        try {
+            Settings settings = Settings.get();
+            if (!settings.isCreateDir() || settings.getCreateDirAhead() == 0 || settings.getPathnameTemplate() == null) {
+                return;
+            }
+            FilenameTemplate template = settings.getPathnameTemplate().getDirectoryTemplate();
+            if (template != null) {
+                ensure(new File(template.render(null, System.currentTimeMillis() + settings.getCreateDirAhead())), true);
+            }
+        } catch (Exception e) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+        }
+    }
+}
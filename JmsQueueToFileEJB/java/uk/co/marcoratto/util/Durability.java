@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides when the data written to the target files is forced to the storage device.
+ * <P>
+ * The property <b>target.durability</b> accepts:
+ * <BR>- <b>none</b> (default): the data is left to the operating system;
+ * <BR>- <b>per-message</b>: every message is forced before <code>onMessage</code> returns;
+ * <BR>- <b>group-commit</b>: as <i>per-message</i>, but the threads writing at about the same time share one round of forces (see <code>GroupCommit</code>);
+ * <BR>- <b>interval</b>: the data written is forced every <b>target.durability.interval</b> milliseconds (default 1000) by a background thread;
+ * a crash can lose the messages of the last interval.
+ * <P>
+ * Java 5 cannot open a directory, so the directory entry of a new file is
+ * not forced on its own: on the journaling file systems (ext4, XFS, JFS) the
+ * force of the file also commits the transaction that created its entry.
+ * @author Marco Ratto
+ */
+public class Durability {
+
+    private static final String CLASS_NAME = Durability.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    public static final String NONE = "none";
+
+    public static final String PER_MESSAGE = "per-message";
+
+    public static final String GROUP_COMMIT = "group-commit";
+
+    public static final String INTERVAL = "interval";
+
+    private static volatile Durability instance = null;
+
+    private static volatile Settings instanceSettings = null;
+
+    private final String mode;
+
+    private final GroupCommit groupCommit;
+
+    private final List<Pending> pending;
+
+    private final Timer timer;
+
+    /**
+     * Returns the instance configured by the current <code>Settings</code>,
+     * replacing it when a reload of the configuration has changed the mode.
+     * @return Durability
+     * @throws ConfigException
+     */
+    public static Durability getInstance() throws ConfigException {
+        Settings settings = Settings.get();
+        if (instance == null || instanceSettings != settings) {
+            synchronized (Durability.class) {
+                if (instance == null || (instanceSettings != settings && !instanceSettings.sameDurability(settings))) {
+                    Durability old = instance;
+                    try {
+                        instance = new Durability(settings.getDurability(), settings.getDurabilityInterval());
+                    } catch (IOException e) {
+                        throw new ConfigException(e.getMessage(), e);
+                    }
+                    if (old != null) {
+                        old.closeLater();
+                    }
+                }
+                instanceSettings = settings;
+            }
+        }
+        return instance;
+    }
+
+    public Durability(String mode, long interval) throws IOException {
+        final String METHOD_NAME = "Constructor";
+        if (!NONE.equals(mode) && !PER_MESSAGE.equals(mode) && !GROUP_COMMIT.equals(mode) && !INTERVAL.equals(mode)) {
+            throw new IOException("Unsupported target.durability " + mode);
+        }
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "target.durability=" + mode);
+        this.mode = mode;
+        this.groupCommit = GROUP_COMMIT.equals(mode) ? new GroupCommit() : null;
+        this.pending = INTERVAL.equals(mode) ? new ArrayList<Pending>() : null;
+        if (pending != null) {
+            if (interval <= 0) {
+                throw new IOException("Invalid target.durability.interval " + interval);
+            }
+            this.timer = new Timer(CLASS_NAME, true);
+            this.timer.schedule(new TimerTask() {
+                public void run() {
+                    syncPending();
+                }
+            }, interval, interval);
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * Stops the background thread of the <i>interval</i> mode once the
+     * messages still using this instance have completed.
+     */
+    private void closeLater() {
+        if (timer != null) {
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    syncPending();
+                    timer.cancel();
+                }
+            }, MessageSinks.CLOSE_DELAY);
+        }
+    }
+
+    /**
+     * Forces the data still pending and stops the background thread of the
+     * instance in use; the next <code>getInstance()</code> creates a new one.
+     */
+    public static void shutdown() {
+        Durability old;
+        synchronized (Durability.class) {
+            old = instance;
+            instance = null;
+            instanceSettings = null;
+        }
+        if (old != null && old.timer != null) {
+            old.timer.cancel();
+            old.syncPending();
+        }
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns <code>true</code> if the mode forces the data at all.
+     * @return boolean
+     */
+    public boolean isEnabled() {
+        return !NONE.equals(mode);
+    }
+
+    /**
+     * Returns <code>true</code> if <code>commit</code> waits for the force, as in
+     * <i>per-message</i> and <i>group-commit</i> modes: only then is a file
+     * complete on the disk once committed.
+     * @return boolean
+     */
+    public boolean isSynchronous() {
+        return PER_MESSAGE.equals(mode) || GROUP_COMMIT.equals(mode);
+    }
+
+    /**
+     * Forces to the storage device a file already written and closed.
+     */
+    private static void force(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Makes durable, according to the mode, the data written so far through <code>channel</code>.
+     * @param channel the channel used to write the data
+     * @param file the file written, reopened by the <i>interval</i> mode if the channel has been closed in the meantime
+     * @throws IOException
+     */
+    public void commit(FileChannel channel, File file) throws IOException {
+        Map<FileChannel, File> channels = new HashMap<FileChannel, File>();
+        channels.put(channel, file);
+        IOException failure = commit(channels).get(channel);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Makes durable, according to the mode, the data written so far through
+     * several channels at once: the <i>group-commit</i> mode joins them all to
+     * the same batch, so a writer that has appended a batch of messages waits
+     * for one round of forces instead of one per message.
+     * @param channels the channels used to write the data, each with the file to reopen if the channel
+     * has been closed in the meantime (or <code>null</code>)
+     * @return the failed forces, by channel
+     * @throws IOException if the commit failed for all the channels
+     */
+    public Map<FileChannel, IOException> commit(Map<FileChannel, File> channels) throws IOException {
+        Map<FileChannel, IOException> failures = new HashMap<FileChannel, IOException>();
+        if (groupCommit != null) {
+            failures = groupCommit.sync(channels);
+        } else if (pending != null) {
+            synchronized (pending) {
+                for (Map.Entry<FileChannel, File> channel : channels.entrySet()) {
+                    pending.add(new Pending(channel.getKey(), channel.getValue()));
+                }
+            }
+        } else if (PER_MESSAGE.equals(mode)) {
+            for (Map.Entry<FileChannel, File> channel : channels.entrySet()) {
+                try {
+                    try {
+                        channel.getKey().force(true);
+                    } catch (ClosedChannelException e) {
+                        if (channel.getValue() == null) {
+                            throw e;
+                        }
+                        force(channel.getValue());
+                    }
+                } catch (IOException e) {
+                    failures.put(channel.getKey(), e);
+                }
+            }
+        }
+        return failures;
+    }
+
+    private void syncPending() {
+        final String METHOD_NAME = "syncPending";
+        List<Pending> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<Pending>(pending);
+            pending.clear();
+        }
+        Set<FileChannel> forced = new HashSet<FileChannel>();
+        for (Pending p : batch) {
+            if (forced.contains(p.channel)) {
+                continue;
+            }
+            try {
+                p.channel.force(true);
+                forced.add(p.channel);
+            } catch (ClosedChannelException e) {
+                forceFile(p.file);
+            } catch (IOException e) {
+                logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            }
+        }
+    }
+
+    private static void forceFile(File file) {
+        final String METHOD_NAME = "forceFile";
+        if (file == null || !file.exists()) {
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.getChannel().force(true);
+        } catch (IOException e) {
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+    }
+
+    private static class Pending {
+        final FileChannel channel;
+        final File file;
+
+        Pending(FileChannel channel, File file) {
+            this.channel = channel;
+            this.file = file;
+        }
+    }
+}
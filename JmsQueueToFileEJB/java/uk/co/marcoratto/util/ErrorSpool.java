@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.DeliveryMode;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueSender;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+
+/**
+ * Store-and-forward spool of the messages that could not be written to the
+ * target, so that a slow or unavailable error queue does not slow down or
+ * lose the inbound messages.
+ * <P>
+ * A failed message is appended, with its headers, properties and body, to
+ * a journal (see <code>JournalWriter</code>) in <b>error.spool.dir</b> and
+ * made durable according to <b>target.durability</b>. A background thread
+ * forwards the journal to the error queue in transactions of
+ * <b>error.spool.batch.size</b> messages and deletes each segment once
+ * forwarded; while the queue is unavailable it retries every
+ * <b>error.spool.retry.interval</b> milliseconds.
+ * <P>
+ * The messages are forwarded at least once: after a crash, the segment being
+ * forwarded is sent again from its first message. The forwarded message gets
+ * a new <code>JMSMessageID</code>; the original one is kept in the property
+ * <b>JmsQueueToFileMessageID</b>.
+ * @author Marco Ratto
+ */
+public class ErrorSpool implements Runnable {
+
+    private static final String CLASS_NAME = ErrorSpool.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    public static final String PREFIX = "JmsQueueToFileError";
+
+    public static final String PROPERTY_MESSAGE_ID = "JmsQueueToFileMessageID";
+
+    private static final String ATTRIBUTE_CHARSET = "charset";
+    private static final String ATTRIBUTE_TYPE = "JMSType";
+    private static final String ATTRIBUTE_DELIVERY_MODE = "JMSDeliveryMode";
+    private static final String ATTRIBUTE_PRIORITY = "JMSPriority";
+    private static final String ATTRIBUTE_PROPERTY = "property.";
+
+    private static volatile ErrorSpool instance = null;
+
+    private static volatile Settings instanceSettings = null;
+
+    private final File dir;
+    private final int batchSize;
+    private final long retryInterval;
+    private final JournalWriter writer;
+    private final Thread thread;
+
+    // records already forwarded from the head of a segment, when its forwarding failed halfway
+    private final Map<File, Integer> forwarded = new HashMap<File, Integer>();
+
+    private volatile boolean running = true;
+
+    // false after a failed forward, until the retry interval has elapsed
+    private volatile boolean available = true;
+
+    /**
+     * Returns the spool configured by the current <code>Settings</code>,
+     * <code>null</code> if <b>error.spool.dir</b> is not set.
+     * @return ErrorSpool
+     * @throws ConfigException
+     */
+    public static ErrorSpool getInstance() throws ConfigException {
+        Settings settings = Settings.get();
+        if (instanceSettings != settings) {
+            synchronized (ErrorSpool.class) {
+                if (instanceSettings == null || (instanceSettings != settings && !instanceSettings.sameErrorSpool(settings))) {
+                    ErrorSpool old = instance;
+                    instance = null;
+                    if (old != null) {
+                        old.close();
+                    }
+                    if (settings.getErrorSpoolDir() != null) {
+                        instance = new ErrorSpool(new File(settings.getErrorSpoolDir()),
+                            settings.getErrorSpoolBatchSize(), settings.getErrorSpoolRetryInterval(), Durability.getInstance());
+                    }
+                }
+                instanceSettings = settings;
+            }
+        }
+        return instance;
+    }
+
+    public ErrorSpool(File dir, int batchSize, long retryInterval, Durability durability) {
+        final String METHOD_NAME = "Constructor";
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "error.spool.dir=" + dir.getAbsolutePath()
+            + ", error.spool.batch.size=" + batchSize + ", error.spool.retry.interval=" + retryInterval);
+        this.dir = dir;
+        this.batchSize = batchSize;
+        this.retryInterval = retryInterval;
+        // the writer publishes the segments left being written
+        this.writer = new JournalWriter(dir, PREFIX, 0, 0, 0, durability);
+        this.thread = new Thread(this, CLASS_NAME);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Appends <code>msg</code> to the spool; it is forwarded to the error queue later.
+     * @param msg
+     * @throws IOException if the message cannot be stored
+     */
+    public void append(Message msg) throws IOException {
+        try {
+            long timestamp = msg.getJMSTimestamp();
+            JournalRecord record = new JournalRecord(msg.getJMSMessageID(), timestamp != 0 ? timestamp : System.currentTimeMillis());
+            record.setAttribute(JournalSink.ATTRIBUTE_CORRELATION_ID, msg.getJMSCorrelationID());
+            record.setAttribute(ATTRIBUTE_TYPE, msg.getJMSType());
+            record.setAttribute(ATTRIBUTE_DELIVERY_MODE, String.valueOf(msg.getJMSDeliveryMode()));
+            record.setAttribute(ATTRIBUTE_PRIORITY, String.valueOf(msg.getJMSPriority()));
+            if (msg instanceof BytesMessage) {
+                record.setAttribute(JournalSink.ATTRIBUTE_TYPE, JournalSink.TYPE_BYTES);
+            } else {
+                record.setAttribute(JournalSink.ATTRIBUTE_TYPE, JournalSink.TYPE_TEXT);
+                record.setAttribute(ATTRIBUTE_CHARSET, Utility.getCharset(msg).name());
+            }
+            for (Enumeration<?> e = msg.getPropertyNames(); e.hasMoreElements();) {
+                String name = (String) e.nextElement();
+                String code = typeCode(msg.getObjectProperty(name));
+                if (code != null) {
+                    record.setAttribute(ATTRIBUTE_PROPERTY + code + name, msg.getStringProperty(name));
+                }
+            }
+            writer.append(record, msg);
+        } catch (JMSException e) {
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        } catch (UtilityException e) {
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+        if (available) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Closes the spool in use; the next <code>getInstance()</code> opens it again.
+     */
+    public static void shutdown() {
+        ErrorSpool old;
+        synchronized (ErrorSpool.class) {
+            old = instance;
+            instance = null;
+            instanceSettings = null;
+        }
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Stops the forwarder and closes the segment being written; the spool is forwarded by the next instance.
+     */
+    public void close() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            thread.join(MessageSinks.CLOSE_DELAY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+    }
+
+    public void run() {
+        final String METHOD_NAME = "run";
+        while (running) {
+            long wait = retryInterval;
+            try {
+                if (forward()) {
+                    wait = 0;
+                }
+                available = true;
+            } catch (JMSException e) {
+                available = false;
+                if (e instanceof InvalidDestinationException) {
+                    EtmQueueLocator.invalidate(EtmQueueLocator.QUEUE_ERROR);
+                }
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Error queue unavailable, retry in " + retryInterval + " ms: " + e.getMessage());
+            } catch (Exception e) {
+                available = false;
+                logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            }
+            if (wait > 0) {
+                synchronized (this) {
+                    try {
+                        // woken up by append() while the queue is available, to forward the failed messages at once
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards the segments of the spool, oldest first.
+     * @return <code>true</code> if some messages have been forwarded
+     */
+    private boolean forward() throws JMSException, IOException {
+        final String METHOD_NAME = "forward";
+        if (writer.getSegment() == null && listSegments().length == 0) {
+            return false;
+        }
+        Queue queue = EtmQueueLocator.getQueueError();
+        if (queue == null) {
+            throw new JMSException("Queue " + EtmQueueLocator.QUEUE_ERROR + " not found");
+        }
+        QueueConnection conn = null;
+        QueueSession session = null;
+        QueueSender sender = null;
+        int count = 0;
+        try {
+            conn = EtmQueueConnection.getQueueConnection();
+            session = conn.createQueueSession(true, Session.SESSION_TRANSACTED);
+            sender = session.createSender(queue);
+
+            // the error queue is available: publish the messages appended so far
+            writer.roll();
+            File[] segments = listSegments();
+            for (int i = 0; i < segments.length && running; i++) {
+                count += forward(session, sender, segments[i]);
+            }
+        } finally {
+            QueueUtils.closeQuietly(conn, session, sender);
+        }
+        if (count > 0) {
+            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Forwarded " + count + " messages to " + EtmQueueLocator.QUEUE_ERROR);
+        }
+        return count > 0;
+    }
+
+    private int forward(QueueSession session, QueueSender sender, File segment) throws JMSException, IOException {
+        final String METHOD_NAME = "forward";
+        Integer done = forwarded.get(segment);
+        int skip = (done != null) ? done.intValue() : 0;
+        int index = 0;
+        int batch = 0;
+        JournalReader reader = new JournalReader(segment);
+        try {
+            JournalRecord record;
+            while ((record = reader.next()) != null) {
+                if (index++ < skip) {
+                    continue;
+                }
+                Message msg = toMessage(session, record, reader.getBody());
+                sender.send(msg, getInt(record, ATTRIBUTE_DELIVERY_MODE, DeliveryMode.PERSISTENT),
+                    getInt(record, ATTRIBUTE_PRIORITY, Message.DEFAULT_PRIORITY), Message.DEFAULT_TIME_TO_LIVE);
+                if (++batch == batchSize) {
+                    session.commit();
+                    forwarded.put(segment, Integer.valueOf(index));
+                    batch = 0;
+                }
+            }
+            if (batch > 0) {
+                session.commit();
+            }
+        } catch (JMSException e) {
+            rollback(session);
+            throw e;
+        } catch (IOException e) {
+            rollback(session);
+            throw e;
+        } finally {
+            reader.close();
+        }
+        forwarded.remove(segment);
+        if (!segment.delete()) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to delete " + segment.getAbsolutePath());
+        }
+        return index - skip;
+    }
+
+    private static void rollback(QueueSession session) {
+        final String METHOD_NAME = "rollback";
+        try {
+            session.rollback();
+        } catch (JMSException e) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+        }
+    }
+
+    private static Message toMessage(QueueSession session, JournalRecord record, InputStream body) throws JMSException, IOException {
+        final String METHOD_NAME = "toMessage";
+        byte[] buf = new byte[8192];
+        int n;
+        Message msg;
+        if (JournalSink.TYPE_BYTES.equals(record.getAttribute(JournalSink.ATTRIBUTE_TYPE))) {
+            // copied in chunks, the provider holding the only copy of the body
+            BytesMessage bytesMsg = session.createBytesMessage();
+            while ((n = body.read(buf)) != -1) {
+                bytesMsg.writeBytes(buf, 0, n);
+            }
+            msg = bytesMsg;
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(record.getSize(), Integer.MAX_VALUE));
+            while ((n = body.read(buf)) != -1) {
+                bytes.write(buf, 0, n);
+            }
+            String charset = record.getAttribute(ATTRIBUTE_CHARSET);
+            msg = session.createTextMessage((charset != null) ? bytes.toString(charset) : bytes.toString());
+        }
+        msg.setJMSCorrelationID(record.getAttribute(JournalSink.ATTRIBUTE_CORRELATION_ID));
+        msg.setJMSType(record.getAttribute(ATTRIBUTE_TYPE));
+        msg.setStringProperty(PROPERTY_MESSAGE_ID, record.getMessageId());
+        for (Iterator<Map.Entry<String, String>> i = record.getAttributes().entrySet().iterator(); i.hasNext();) {
+            Map.Entry<String, String> e = i.next();
+            String key = e.getKey();
+            if (key.startsWith(ATTRIBUTE_PROPERTY) && key.length() > ATTRIBUTE_PROPERTY.length() + 1) {
+                String name = key.substring(ATTRIBUTE_PROPERTY.length() + 1);
+                try {
+                    setProperty(msg, key.charAt(ATTRIBUTE_PROPERTY.length()), name, e.getValue());
+                } catch (Exception ex) {
+                    // e.g. a property reserved to the provider
+                    logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Property " + name + " not forwarded: " + ex.getMessage());
+                }
+            }
+        }
+        return msg;
+    }
+
+    /**
+     * Returns the code of the type of a property value, <code>null</code> if it cannot be stored.
+     */
+    private static String typeCode(Object value) {
+        if (value instanceof String) {
+            return "s";
+        } else if (value instanceof Integer) {
+            return "i";
+        } else if (value instanceof Long) {
+            return "l";
+        } else if (value instanceof Boolean) {
+            return "z";
+        } else if (value instanceof Double) {
+            return "d";
+        } else if (value instanceof Float) {
+            return "f";
+        } else if (value instanceof Short) {
+            return "h";
+        } else if (value instanceof Byte) {
+            return "b";
+        }
+        return null;
+    }
+
+    private static void setProperty(Message msg, char code, String name, String value) throws JMSException {
+        switch (code) {
+        case 's':
+            msg.setStringProperty(name, value);
+            break;
+        case 'i':
+            msg.setIntProperty(name, Integer.parseInt(value));
+            break;
+        case 'l':
+            msg.setLongProperty(name, Long.parseLong(value));
+            break;
+        case 'z':
+            msg.setBooleanProperty(name, Boolean.valueOf(value).booleanValue());
+            break;
+        case 'd':
+            msg.setDoubleProperty(name, Double.parseDouble(value));
+            break;
+        case 'f':
+            msg.setFloatProperty(name, Float.parseFloat(value));
+            break;
+        case 'h':
+            msg.setShortProperty(name, Short.parseShort(value));
+            break;
+        case 'b':
+            msg.setByteProperty(name, Byte.parseByte(value));
+            break;
+        default:
+            break;
+        }
+    }
+
+    private static int getInt(JournalRecord record, String key, int defaultValue) {
+        String value = record.getAttribute(key);
+        try {
+            return (value != null) ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the segments ready to be forwarded, oldest first.
+     */
+    private File[] listSegments() {
+        File[] segments = dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                String name = f.getName();
+                return name.startsWith(PREFIX + "-") && name.endsWith(JournalWriter.SUFFIX) && f.isFile();
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments, new Comparator<File>() {
+            public int compare(File a, File b) {
+                // <prefix>-<yyyyMMddHHmmssSSS>-<sequence>.journal
+                String nameA = a.getName();
+                String nameB = b.getName();
+                int dashA = nameA.lastIndexOf('-');
+                int dashB = nameB.lastIndexOf('-');
+                int c = nameA.substring(0, dashA).compareTo(nameB.substring(0, dashB));
+                if (c != 0) {
+                    return c;
+                }
+                return nameA.length() != nameB.length() ? nameA.length() - nameB.length() : nameA.compareTo(nameB);
+            }
+        });
+        return segments;
+    }
+}
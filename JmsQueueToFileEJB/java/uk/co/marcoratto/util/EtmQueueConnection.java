@@ -19,8 +19,6 @@
  */
 package uk.co.marcoratto.util;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,43 +31,94 @@ public class EtmQueueConnection {
     private static final String CLASS_NAME = EtmQueueConnection.class.getName();  
     private static Logger logger = Logger.getLogger(CLASS_NAME);
 
-	private static Map<String, QueueConnectionFactory> queueConnections = new HashMap<String, QueueConnectionFactory>();
-		
 	private static final String etmQCF = "jms/QueueConnectionFactory";
 	
+	// guarded by EtmQueueConnection.class
+	private static QueueConnection shared = null;
+	
 	/**
-	 * Returns the default container connection.
+	 * Returns the default container connection. If the factory cannot create
+	 * it, the factory is dropped from the cache, so that a stale one is looked
+	 * up again.
 	 * 
 	 * @return QueueConnection
 	 * @throws JMSException
 	 */
 	public static QueueConnection getQueueConnection() throws JMSException {
 		QueueConnectionFactory qcf = getQCF(etmQCF);
-		QueueConnection conn = qcf.createQueueConnection();
-		return conn;
+		if (qcf == null) {
+			throw new JMSException("QueueConnectionFactory " + etmQCF + " not found");
+		}
+		try {
+			return qcf.createQueueConnection();
+		} catch (JMSException e) {
+			invalidate(etmQCF);
+			throw e;
+		}
 	}
 	
-	public static QueueConnectionFactory getQCF(String jndiName) {
-		if (queueConnections.containsKey(jndiName)) {
-			return queueConnections.get(jndiName);
-		} else {
-		    QueueConnectionFactory qcf = lookupQCF(jndiName);
-		    logger.logp(Level.FINEST, CLASS_NAME, "getQCF", "Created queueConnectonFactory with jndiName: " + jndiName );
-		    return qcf;
+	/**
+	 * Returns the connection kept open for the whole application, created
+	 * from the default container factory at the first call. Inside the EJB
+	 * container the factory is managed: the sessions created from this
+	 * connection are taken from the session pool of the factory and enlisted
+	 * in the transaction of the caller, so they must still be closed after
+	 * every use, while the connection is closed only by
+	 * <code>closeSharedQueueConnection</code>.
+	 * 
+	 * @return QueueConnection
+	 * @throws JMSException
+	 */
+	public static synchronized QueueConnection getSharedQueueConnection() throws JMSException {
+		if (shared == null) {
+			shared = getQueueConnection();
 		}
+		return shared;
 	}
 	
-	private static synchronized QueueConnectionFactory lookupQCF(String jndiName) {
-		if (queueConnections.containsKey(jndiName)) {
-			return queueConnections.get(jndiName);
+	/**
+	 * Closes the connection kept open, if it is still <code>conn</code>, e.g.
+	 * after a session created from it has failed; the next call of
+	 * <code>getSharedQueueConnection</code> creates a new one.
+	 * 
+	 * @param conn the connection found broken, <code>null</code> to close it anyway when the application stops
+	 */
+	public static void closeSharedQueueConnection(QueueConnection conn) {
+		QueueConnection closing = null;
+		synchronized (EtmQueueConnection.class) {
+			if (shared != null && (conn == null || conn == shared)) {
+				closing = shared;
+				shared = null;
+			}
 		}
-		QueueConnectionFactory qcf = null;
+		QueueUtils.closeQuietly(closing, null, null);
+	}
+	
+	/**
+	 * Returns the default container factory; <code>null</code> if the lookup fails.
+	 */
+	public static QueueConnectionFactory getQCF() {
+		return getQCF(etmQCF);
+	}
+	
+	/**
+	 * Returns the factory identified by the provided JNDI name, cached by
+	 * <code>ServiceLocator</code>; <code>null</code> if the lookup fails.
+	 */
+	public static QueueConnectionFactory getQCF(String jndiName) {
 		try {
-			qcf = ServiceLocator.getInstance().getQueueConnectionFactory(etmQCF);
-			queueConnections.put(jndiName, qcf);
+			return ServiceLocator.getInstance().getQueueConnectionFactory(jndiName);
 		} catch (Exception e) {
-			logger.logp(Level.SEVERE, CLASS_NAME, "lookupQCF", "Error lookup qcf: " + jndiName, e);
+			logger.logp(Level.SEVERE, CLASS_NAME, "getQCF", "Error lookup qcf: " + jndiName, e);
+			return null;
+		}
+	}
+	
+	private static void invalidate(String jndiName) {
+		try {
+			ServiceLocator.getInstance().invalidate(jndiName);
+		} catch (ServiceLocatorException e) {
+			logger.logp(Level.WARNING, CLASS_NAME, "invalidate", e.getMessage(), e);
 		}
-		return qcf;
 	}
 }
@@ -19,8 +19,6 @@
  */
 package uk.co.marcoratto.util;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,11 +29,9 @@ public class EtmQueueLocator {
 	private static final String CLASS_NAME = EtmQueueLocator.class.getName();
     private static Logger logger = Logger.getLogger(CLASS_NAME);
 
-    private static Map<String, Queue> queues = new HashMap<String, Queue>();
-    
     public static final String QUEUE_INBOUND = "jms/JmsQueueToFile";
 
-    private static final String QUEUE_ERROR = "jms/JmsQueueToFileError";
+    public static final String QUEUE_ERROR = "jms/JmsQueueToFileError";
 
     /**
      * Returns the Queue that contains correlation messages generated starting
@@ -54,31 +50,28 @@ public class EtmQueueLocator {
     }
     
     /**
-     * Returns the queue identified by the provided JNDI name.
+     * Returns the queue identified by the provided JNDI name, cached by
+     * <code>ServiceLocator</code>.
      * 
-     * @return Queue The required queue.
+     * @return Queue The required queue, <code>null</code> if the lookup fails.
      */
     public static Queue getQueue(String jndiName) {
-        if (queues.containsKey(jndiName)) {
-            return queues.get(jndiName);
-        } else {
-            Queue queue = lookupQueue(jndiName);
-            logger.logp(Level.FINEST, CLASS_NAME, "getQueue", "Created Queue with jndiName: " + jndiName);
-            return queue;
+        try {
+            return ServiceLocator.getInstance().getQueue(jndiName);
+        } catch (Exception e) {
+            logger.logp(Level.SEVERE, CLASS_NAME, "getQueue", "Error lookup queue: " + jndiName, e);
+            return null;
         }
     }
 
-    private static synchronized Queue lookupQueue(String jndiName) {
-        if (queues.containsKey(jndiName)) {
-            return queues.get(jndiName);
-        }
-        Queue queue = null;
+    /**
+     * Drops the cached queue, e.g. when the provider reports it as invalid.
+     */
+    public static void invalidate(String jndiName) {
         try {
-            queue = ServiceLocator.getInstance().getQueue(jndiName);
-            queues.put(jndiName, queue);
-        } catch (Exception e) {
-            logger.logp(Level.SEVERE, CLASS_NAME, "lookupQueue", "Error lookup queue: " + jndiName, e);
+            ServiceLocator.getInstance().invalidate(jndiName);
+        } catch (ServiceLocatorException e) {
+            logger.logp(Level.WARNING, CLASS_NAME, "invalidate", e.getMessage(), e);
         }
-        return queue;
     }
 }
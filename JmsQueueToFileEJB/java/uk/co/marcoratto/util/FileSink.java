@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Writes every message to its own file, named after the template
+ * <b>target.pathname</b> (see <code>FilenameTemplate</code>).
+ * <P>
+ * With <b>target.overwrite.file=false</b> every file is created atomically
+ * and a message whose name is already taken is written to the same name
+ * followed by a sequence number. This holds for the templates containing
+ * <i>%u</i> too: their names do not collide in the cluster, but a file
+ * left by a previous run, e.g. restored from the archive, is never truncated.
+ * <P>
+ * A <code>BytesMessage</code> whose body reaches <b>target.mmap.threshold</b>
+ * bytes is written through a memory mapping of the file, sized in advance to
+ * the body and unmapped once written (see <code>Utility.writeBodyMapped</code>).
+ * With <b>target.durability=per-message</b> the mapping is flushed before the file is
+ * forced; the other modes rely on the <code>fsync</code> of the file, which on
+ * Linux also writes its mapped pages. With <b>target.atomic.rename</b> the
+ * mapping is used only if the JVM can unmap the file before its rename.
+ * <P>
+ * With <b>target.compression</b> the body is compressed while it is written
+ * (see <code>Compression</code>) and the memory mapping is not used, since
+ * the size of the file is not known in advance.
+ * <P>
+ * With <b>target.shard.levels</b> the files are spread across hashed
+ * subdirectories of the directory of the template (see <code>Sharding</code>).
+ * <P>
+ * The directories created, or found, with <b>target.create.dir</b> are
+ * remembered (see <code>DirectoryCache</code>) and not checked again; if one
+ * is removed meanwhile, the creation of the file fails, the directory is
+ * created again and the file opened once more.
+ * <P>
+ * With <b>target.atomic.rename=true</b> the file is written to a hidden
+ * temporary name in the same directory, <code>.&lt;name&gt;.&lt;sequence&gt;.tmp</code>,
+ * and renamed to its name once closed and, if <b>target.durability</b> waits
+ * for it, forced: the pollers see only complete files, provided they skip
+ * the names starting with a dot. Java 5 cannot force a directory, so a crash
+ * right after the rename may leave the file under its temporary name.
+ * <P>
+ * With <b>target.manifest.pathname</b> the path, size and CRC-32 of every
+ * complete file are appended to the manifest (see <code>Manifest</code>); the
+ * memory mapping is not used, since the checksum is computed while writing.
+ * The line is appended once the file is published: if that fails, the error
+ * is logged and the message still counts as written, so that a redelivery
+ * does not write the file twice, but the file is missing from the manifest.
+ * <P>
+ * As a <code>BatchSink</code>, the files of a batch are all written first,
+ * then forced with one commit of <b>target.durability</b> and only then
+ * closed and renamed into place; <code>write</code> is a batch of one file.
+ * <P>
+ * The <b>close</b> latency of <code>Metrics</code> includes the rename, the
+ * <b>sync</b> latency is that of the commit of the whole batch.
+ * @author Marco Ratto
+ */
+public class FileSink implements BatchSink {
+
+    private static final String CLASS_NAME = FileSink.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    /**
+     * Suffix of the hidden temporary files of <b>target.atomic.rename</b>.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Suffix of the hidden files reserving a name with <b>target.atomic.rename</b>.
+     */
+    public static final String LOCK_SUFFIX = ".lock";
+
+    public WriteResult write(Message msg) throws UtilityException {
+        PendingWrite pending = writePending(msg);
+        List<PendingWrite> writes = new ArrayList<PendingWrite>(1);
+        writes.add(pending);
+        commit(writes);
+        return pending.getResult();
+    }
+
+    /**
+     * Writes the message to its file, left open until <code>commit</code>.
+     */
+    public PendingWrite writePending(Message msg) throws UtilityException {
+        final String METHOD_NAME = "writePending";
+
+        try {
+            Settings settings = Settings.get();
+            FilenameTemplate template = settings.getPathnameTemplate();
+            String targetFilename = template.render(msg);
+
+            File f = new File(targetFilename);
+
+            File parentDir = new File(f.getParent());
+            if (settings.getShardLevels() > 0) {
+                f = Sharding.shard(f, msg, settings);
+            } else if (settings.isCreateDir()) {
+                try {
+                    DirectoryCache.ensure(parentDir, true);
+                } catch (Throwable t) {
+                    logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+                    throw new UtilityException(t.getMessage(), t);
+                }
+            }
+
+            Metrics metrics = Metrics.getInstance();
+            long start = System.nanoTime();
+            boolean overwrite = settings.isOverwriteFile();
+            boolean atomic = settings.isAtomicRename();
+            File target = f;
+            Compression compression = Compression.getInstance();
+            boolean manifest = settings.getManifestTemplate() != null;
+            // a file still mapped cannot be renamed on Windows
+            boolean mappable = !compression.isEnabled() && !manifest && (!atomic || Utility.isUnmapSupported());
+            BytesMessage mapped = mappable ? toMapped(msg, settings.getMmapThreshold()) : null;
+            Closeable out = null;
+            FileChannel channel = null;
+            File temp = null;
+            for (boolean retry = true; out == null; retry = false) {
+                try {
+                    if (atomic) {
+                        temp = new File(target.getParentFile(), "." + target.getName() + "." + NodeIdentity.nextSequence() + TEMP_SUFFIX);
+                        f = temp;
+                    } else {
+                        f = create(target, overwrite);
+                    }
+                    if (mapped != null) {
+                        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                        out = raf;
+                        channel = raf.getChannel();
+                    } else {
+                        FileOutputStream fos = new FileOutputStream(f);
+                        out = fos;
+                        channel = fos.getChannel();
+                    }
+                } catch (IOException e) {
+                    // the directory remembered by DirectoryCache may have been removed since
+                    File dir = target.getParentFile();
+                    if (!retry || dir == null || dir.isDirectory()) {
+                        throw e;
+                    }
+                    DirectoryCache.forget(dir);
+                    boolean create = settings.isCreateDir() || (settings.getShardLevels() > 0 && parentDir.isDirectory());
+                    if (!DirectoryCache.ensure(dir, create)) {
+                        throw e;
+                    }
+                    logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Directory " + dir.getAbsolutePath() + " removed while in use, created again");
+                }
+            }
+            if (AuditLog.isSampled(logger, Level.FINE, msg)) {
+                logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Write message to file " + f.getAbsolutePath());
+            }
+            metrics.getOpen().recordSince(start);
+            FilePendingWrite pending = new FilePendingWrite(f, target, atomic, overwrite, out, channel);
+            pending.checksum = manifest ? new ChecksumChannel(channel) : null;
+            WritableByteChannel fileChannel = (pending.checksum != null) ? pending.checksum : channel;
+            boolean written = false;
+            try {
+                start = System.nanoTime();
+                if (mapped != null) {
+                    pending.size = Utility.writeBodyMapped(mapped, channel, Durability.PER_MESSAGE.equals(Durability.getInstance().getMode()));
+                } else if (compression.isEnabled()) {
+                    pending.compressed = compression.open(msg, fileChannel);
+                    pending.size = Utility.writeBody(msg, pending.compressed);
+                    pending.compressed.finish();
+                } else {
+                    pending.size = Utility.writeBody(msg, fileChannel);
+                }
+                metrics.getWrite().recordSince(start);
+                written = true;
+            } finally {
+                if (!written) {
+                    pending.abort();
+                }
+            }
+            return pending;
+
+        } catch (UtilityException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Forces the files of <code>writes</code> with one commit of the
+     * durability, then closes them and, with <b>target.atomic.rename</b>,
+     * renames them into place. A file whose force fails is not published.
+     * Without a synchronous durability the files renamed into place are
+     * committed after the rename, so that the <i>interval</i> mode forces the
+     * published file.
+     */
+    public void commit(List<PendingWrite> writes) {
+        final String METHOD_NAME = "commit";
+        Durability durability;
+        try {
+            durability = Durability.getInstance();
+        } catch (ConfigException e) {
+            for (PendingWrite write : writes) {
+                ((FilePendingWrite) write).abort();
+                write.complete(null, new UtilityException(e.getMessage(), e));
+            }
+            return;
+        }
+        // a file renamed into place must be complete on the disk before the rename
+        boolean commitAfterRename = !durability.isSynchronous();
+        Map<FileChannel, File> channels = new LinkedHashMap<FileChannel, File>();
+        for (PendingWrite write : writes) {
+            FilePendingWrite pending = (FilePendingWrite) write;
+            if (!pending.atomic || !commitAfterRename) {
+                channels.put(pending.channel, pending.file);
+            }
+        }
+        Metrics metrics = Metrics.getInstance();
+        Map<FileChannel, IOException> failures;
+        if (channels.isEmpty()) {
+            failures = new HashMap<FileChannel, IOException>();
+        } else {
+            long start = System.nanoTime();
+            try {
+                failures = durability.commit(channels);
+            } catch (IOException e) {
+                failures = new HashMap<FileChannel, IOException>();
+                for (FileChannel channel : channels.keySet()) {
+                    failures.put(channel, e);
+                }
+            }
+            metrics.getSync().recordSince(start);
+        }
+        for (PendingWrite write : writes) {
+            FilePendingWrite pending = (FilePendingWrite) write;
+            try {
+                IOException failure = failures.get(pending.channel);
+                if (failure != null) {
+                    pending.abort();
+                    throw failure;
+                }
+                pending.complete(pending.publish(durability, commitAfterRename, metrics), null);
+            } catch (Exception e) {
+                logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+                pending.complete(null, new UtilityException(e.getMessage(), e));
+            }
+        }
+    }
+
+    /**
+     * Returns <code>msg</code> if it is a <code>BytesMessage</code> whose body
+     * reaches <code>threshold</code>, to be written through a memory mapping;
+     * <code>null</code> otherwise, or if <code>threshold</code> is 0.
+     */
+    private static BytesMessage toMapped(Message msg, long threshold) throws JMSException {
+        if (threshold <= 0 || !(msg instanceof BytesMessage)) {
+            return null;
+        }
+        BytesMessage bytesMsg = (BytesMessage) msg;
+        bytesMsg.reset();
+        return (bytesMsg.getBodyLength() >= threshold) ? bytesMsg : null;
+    }
+
+    /**
+     * Renames the temporary file <code>temp</code>, complete and closed, to
+     * <code>f</code>. When the name can collide, a sequence number is added to
+     * it until an unused one is found. <code>File.renameTo</code> replaces an
+     * existing file, so a name is first reserved by creating atomically the
+     * hidden file <code>.&lt;name&gt;.lock</code> next to it, which excludes the
+     * other instances and cluster members writing to the same directory; the
+     * name is used only if it does not exist yet and the reservation is
+     * removed after the rename. Reserving the name itself would show an empty
+     * file to the pollers, and Java 5 cannot create a hard link. A reservation
+     * left by a crash only moves the later files with that name to a sequenced one.
+     * @param temp
+     * @param f the file named by the template
+     * @param overwrite <code>true</code> if <code>f</code> can be replaced
+     * @return the file published
+     */
+    private static File publish(File temp, File f, boolean overwrite) throws IOException {
+        final String METHOD_NAME = "publish";
+        if (overwrite) {
+            // on Windows the rename fails if the file exists
+            if (!temp.renameTo(f) && !(f.delete() && temp.renameTo(f))) {
+                throw new IOException("Unable to rename " + temp.getAbsolutePath() + " to " + f.getName());
+            }
+            return f;
+        }
+        File unique = f;
+        while (true) {
+            File reservation = new File(unique.getParentFile(), "." + unique.getName() + LOCK_SUFFIX);
+            if (reservation.createNewFile()) {
+                try {
+                    if (!unique.exists()) {
+                        if (!temp.renameTo(unique)) {
+                            throw new IOException("Unable to rename " + temp.getAbsolutePath() + " to " + unique.getName());
+                        }
+                        break;
+                    }
+                } finally {
+                    if (!reservation.delete()) {
+                        logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to delete " + reservation.getAbsolutePath());
+                    }
+                }
+            }
+            unique = sequenced(f);
+        }
+        if (unique != f) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "File " + f.getAbsolutePath() + " already exists, writing " + unique.getName());
+        }
+        return unique;
+    }
+
+    /**
+     * Returns the file to write. When the name can collide, the file is
+     * created atomically (<code>File.createNewFile()</code>) and, if it already
+     * exists, a sequence number is added to its name until an unused one is
+     * found, so that no message is dropped.
+     * @param f the file named by the template
+     * @param overwrite <code>true</code> if <code>f</code> can be truncated
+     */
+    private static File create(File f, boolean overwrite) throws IOException {
+        final String METHOD_NAME = "create";
+        if (overwrite || f.createNewFile()) {
+            return f;
+        }
+        File unique;
+        do {
+            unique = sequenced(f);
+        } while (!unique.createNewFile());
+        logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "File " + f.getAbsolutePath() + " already exists, writing " + unique.getName());
+        return unique;
+    }
+
+    /**
+     * Returns <code>f</code> with the next sequence number added to its name, before the extension.
+     */
+    private static File sequenced(File f) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0) ? name.substring(0, dot) : name;
+        String extension = (dot > 0) ? name.substring(dot) : "";
+        return new File(f.getParentFile(), base + "-" + NodeIdentity.nextSequence() + extension);
+    }
+
+    public void close() {
+    }
+
+    /**
+     * A file written and still open, waiting for its commit.
+     */
+    private static class FilePendingWrite extends PendingWrite {
+
+        final File file;
+        final File target;
+        final boolean atomic;
+        final boolean overwrite;
+        final Closeable out;
+        final FileChannel channel;
+        ChecksumChannel checksum = null;
+        CompressedChannel compressed = null;
+        long size = 0;
+
+        FilePendingWrite(File file, File target, boolean atomic, boolean overwrite, Closeable out, FileChannel channel) {
+            this.file = file;
+            this.target = target;
+            this.atomic = atomic;
+            this.overwrite = overwrite;
+            this.out = out;
+            this.channel = channel;
+        }
+
+        /**
+         * Closes the file and publishes it, then appends it to the manifest.
+         */
+        WriteResult publish(Durability durability, boolean commitAfterRename, Metrics metrics) throws IOException {
+            final String METHOD_NAME = "publish";
+            File f = file;
+            boolean renamed = false;
+            try {
+                long start = System.nanoTime();
+                try {
+                    if (compressed != null) {
+                        compressed.close();
+                    }
+                } finally {
+                    out.close();
+                }
+                if (atomic) {
+                    f = FileSink.publish(file, target, overwrite);
+                    renamed = true;
+                }
+                metrics.getClose().recordSince(start);
+                if (renamed && commitAfterRename) {
+                    durability.commit(channel, f);
+                }
+            } finally {
+                // only the temporary file is removed, never a file already published
+                if (atomic && !renamed) {
+                    deleteTemp();
+                }
+            }
+            if (checksum != null) {
+                try {
+                    Manifest.getInstance().append(f.getPath(), checksum.getSize(), checksum.getChecksum());
+                } catch (Exception e) {
+                    // the file is published: failing the message would write it twice
+                    logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "File " + f.getAbsolutePath() + " missing from the manifest: " + e.getMessage(), e);
+                }
+            }
+            return new WriteResult(f.getPath(), size);
+        }
+
+        /**
+         * Closes the file after a failure, removing it if temporary.
+         */
+        void abort() {
+            try {
+                if (compressed != null) {
+                    compressed.close();
+                }
+            } catch (IOException e) {
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+            if (atomic) {
+                deleteTemp();
+            }
+        }
+
+        private void deleteTemp() {
+            final String METHOD_NAME = "deleteTemp";
+            if (!file.delete() && file.exists()) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to delete " + file.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Template of the name of the target files, compiled once into a list of
+ * tokens and rendered for every message.
+ * <P>
+ * Tokens:
+ * <BR>- <b>%Y</b> year, <b>%M</b> month, <b>%D</b> day of month;
+ * <BR>- <b>%W</b> day of week, <b>%w</b> week of year;
+ * <BR>- <b>%h</b> hour, <b>%m</b> minute, <b>%s</b> second, <b>%S</b> millisecond;
+ * <BR>- <b>%i</b> JMSMessageID, <b>%c</b> JMSCorrelationID, <b>%{name}</b> the JMS property <i>name</i>;
+ * <BR>- <b>%n</b> node ID (property <b>target.node.id</b>, default the host name);
+ * <BR>- <b>%q</b> sequence number, unique in the JVM;
+ * <BR>- <b>%u</b> name unique in the cluster, <i>node ID-instance ID-start time-sequence</i> (see <code>NodeIdentity</code>);
+ * <BR>- <b>%%</b> the character <i>%</i>.
+ * <BR>The values taken from the message are rendered empty when missing and
+ * every character not in <code>[A-Za-z0-9._-]</code> is replaced by <i>_</i>,
+ * so that they cannot change the directory of the file. Any other sequence is
+ * copied as it is.
+ * <P>
+ * The date fields are formatted once per second by every thread.
+ * @author Marco Ratto
+ */
+public class FilenameTemplate {
+
+    private static final int LITERAL = 0;
+    private static final int YEAR = 1;
+    private static final int MONTH = 2;
+    private static final int DAY = 3;
+    private static final int DAY_OF_WEEK = 4;
+    private static final int WEEK_OF_YEAR = 5;
+    private static final int HOUR = 6;
+    private static final int MINUTE = 7;
+    private static final int SECOND = 8;
+    private static final int MILLISECOND = 9;
+    private static final int MESSAGE_ID = 10;
+    private static final int CORRELATION_ID = 11;
+    private static final int PROPERTY = 12;
+    private static final int NODE_ID = 13;
+    private static final int SEQUENCE = 14;
+    private static final int UNIQUE = 15;
+
+    private static final Map<String, FilenameTemplate> templates = new ConcurrentHashMap<String, FilenameTemplate>();
+
+    private static final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>() {
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private static final ThreadLocal<DateFields> dateFields = new ThreadLocal<DateFields>() {
+        protected DateFields initialValue() {
+            return new DateFields();
+        }
+    };
+
+    private final String source;
+    private final int[] types;
+    private final String[] values;
+    private final boolean usesMessage;
+    private final boolean unique;
+    private volatile FilenameTemplate directory = null;
+    private volatile boolean directoryChecked = false;
+
+    /**
+     * Returns the compiled template of <code>source</code>, compiling it the first time.
+     * @param source
+     * @return FilenameTemplate
+     */
+    public static FilenameTemplate getTemplate(String source) {
+        FilenameTemplate template = templates.get(source);
+        if (template == null) {
+            template = new FilenameTemplate(source);
+            templates.put(source, template);
+        }
+        return template;
+    }
+
+    public FilenameTemplate(String source) {
+        if (source == null) {
+            throw new IllegalArgumentException("The template cannot be null");
+        }
+        this.source = source;
+
+        List<Integer> typeList = new ArrayList<Integer>();
+        List<String> valueList = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        boolean message = false;
+        boolean uniqueName = false;
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c != '%' || i + 1 == source.length()) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            char t = source.charAt(i + 1);
+            int type;
+            String value = null;
+            switch (t) {
+                case 'Y': type = YEAR; break;
+                case 'M': type = MONTH; break;
+                case 'D': type = DAY; break;
+                case 'W': type = DAY_OF_WEEK; break;
+                case 'w': type = WEEK_OF_YEAR; break;
+                case 'h': type = HOUR; break;
+                case 'm': type = MINUTE; break;
+                case 's': type = SECOND; break;
+                case 'S': type = MILLISECOND; break;
+                case 'i': type = MESSAGE_ID; break;
+                case 'c': type = CORRELATION_ID; break;
+                case 'n': type = NODE_ID; break;
+                case 'q': type = SEQUENCE; break;
+                case 'u': type = UNIQUE; break;
+                case '{':
+                    int end = source.indexOf('}', i + 2);
+                    if (end < 0) {
+                        type = LITERAL;
+                    } else {
+                        type = PROPERTY;
+                        value = source.substring(i + 2, end);
+                    }
+                    break;
+                case '%':
+                    literal.append('%');
+                    i += 2;
+                    continue;
+                default:
+                    type = LITERAL;
+            }
+            if (type == LITERAL) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            if (literal.length() > 0) {
+                typeList.add(Integer.valueOf(LITERAL));
+                valueList.add(literal.toString());
+                literal.setLength(0);
+            }
+            typeList.add(Integer.valueOf(type));
+            valueList.add(value);
+            message |= (type == MESSAGE_ID || type == CORRELATION_ID || type == PROPERTY);
+            uniqueName |= (type == UNIQUE);
+            i += (type == PROPERTY) ? value.length() + 3 : 2;
+        }
+        if (literal.length() > 0) {
+            typeList.add(Integer.valueOf(LITERAL));
+            valueList.add(literal.toString());
+        }
+
+        this.types = new int[typeList.size()];
+        for (int k = 0; k < types.length; k++) {
+            types[k] = typeList.get(k).intValue();
+        }
+        this.values = valueList.toArray(new String[valueList.size()]);
+        this.usesMessage = message;
+        this.unique = uniqueName;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Returns <code>true</code> if the template contains tokens taken from the message.
+     * @return boolean
+     */
+    public boolean usesMessage() {
+        return usesMessage;
+    }
+
+    /**
+     * Returns <code>true</code> if every name rendered is unique in the cluster
+     * (the template contains <i>%u</i>).
+     * @return boolean
+     */
+    public boolean isUnique() {
+        return unique;
+    }
+
+    /**
+     * Returns the template of the directory of the files, up to the last
+     * separator, if it changes with the date and depends on nothing else than
+     * the date and the node ID, so that the directory of a future period can
+     * be rendered in advance; <code>null</code> otherwise.
+     * @return FilenameTemplate
+     */
+    public FilenameTemplate getDirectoryTemplate() {
+        if (!directoryChecked) {
+            int end = Math.max(source.lastIndexOf('/'), source.lastIndexOf(File.separatorChar));
+            String dir = (end > 0) ? source.substring(0, end) : null;
+            if (dir != null && dir.indexOf("%{") < 0) {
+                FilenameTemplate template = getTemplate(dir);
+                if (template.isDateOnly()) {
+                    directory = template;
+                }
+            }
+            directoryChecked = true;
+        }
+        return directory;
+    }
+
+    /**
+     * Returns <code>true</code> if the template contains date fields, down to
+     * the second, and no token other than the node ID.
+     */
+    private boolean isDateOnly() {
+        boolean date = false;
+        for (int k = 0; k < types.length; k++) {
+            if (types[k] >= YEAR && types[k] <= SECOND) {
+                date = true;
+            } else if (types[k] != LITERAL && types[k] != NODE_ID) {
+                return false;
+            }
+        }
+        return date;
+    }
+
+    /**
+     * Renders the template at the current time.
+     * @param msg the message, can be <code>null</code>
+     * @return String
+     * @throws JMSException
+     */
+    public String render(Message msg) throws JMSException {
+        return render(msg, System.currentTimeMillis());
+    }
+
+    /**
+     * Renders the template at the time <code>now</code>.
+     * @param msg the message, can be <code>null</code>
+     * @param now
+     * @return String
+     * @throws JMSException
+     */
+    public String render(Message msg, long now) throws JMSException {
+        StringBuilder sb = builders.get();
+        sb.setLength(0);
+        render(msg, now, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the template rendered at the time <code>now</code> to <code>sb</code>.
+     * @param msg the message, can be <code>null</code>
+     * @param now
+     * @param sb
+     * @throws JMSException
+     */
+    public void render(Message msg, long now, StringBuilder sb) throws JMSException {
+        DateFields date = null;
+        for (int k = 0; k < types.length; k++) {
+            int type = types[k];
+            if (type >= YEAR && type <= MILLISECOND && date == null) {
+                date = dateFields.get();
+                date.set(now);
+            }
+            switch (type) {
+                case LITERAL: sb.append(values[k]); break;
+                case YEAR: sb.append(date.year); break;
+                case MONTH: sb.append(date.month); break;
+                case DAY: sb.append(date.day); break;
+                case DAY_OF_WEEK: sb.append(date.dayOfWeek); break;
+                case WEEK_OF_YEAR: sb.append(date.weekOfYear); break;
+                case HOUR: sb.append(date.hour); break;
+                case MINUTE: sb.append(date.minute); break;
+                case SECOND: sb.append(date.second); break;
+                case MILLISECOND:
+                    int ms = date.millisecond;
+                    if (ms < 10) {
+                        sb.append('0');
+                    }
+                    sb.append(ms);
+                    break;
+                case MESSAGE_ID: NodeIdentity.appendSafeName(sb, msg == null ? null : msg.getJMSMessageID()); break;
+                case CORRELATION_ID: NodeIdentity.appendSafeName(sb, msg == null ? null : msg.getJMSCorrelationID()); break;
+                case PROPERTY: NodeIdentity.appendSafeName(sb, msg == null ? null : msg.getStringProperty(values[k])); break;
+                case NODE_ID: sb.append(NodeIdentity.getNodeId()); break;
+                case SEQUENCE: sb.append(NodeIdentity.nextSequence()); break;
+                case UNIQUE: NodeIdentity.appendUniqueName(sb); break;
+            }
+        }
+    }
+
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * Date fields of the last second rendered by a thread.
+     */
+    private static class DateFields {
+        private final Calendar calendar = Calendar.getInstance();
+        private long epochSecond = Long.MIN_VALUE;
+
+        String year;
+        String month;
+        String day;
+        String dayOfWeek;
+        String weekOfYear;
+        String hour;
+        String minute;
+        String second;
+        int millisecond;
+
+        void set(long now) {
+            long s = now / 1000;
+            millisecond = (int) (now - s * 1000);
+            if (s == epochSecond) {
+                return;
+            }
+            epochSecond = s;
+            calendar.setTimeInMillis(now);
+            year = Utility.getYear(calendar);
+            month = Utility.getMonth(calendar);
+            day = Utility.getDay(calendar);
+            dayOfWeek = Utility.getWeekOfDay(calendar);
+            weekOfYear = Utility.getWeekOfYear(calendar);
+            hour = Utility.getHour(calendar);
+            minute = Utility.getMinute(calendar);
+            second = Utility.getSecond(calendar);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shares one <code>force()</code> among the threads that ask for it at about the same time.
+ * <P>
+ * The first thread that calls <code>sync</code> becomes the leader and forces
+ * the channels collected so far; the threads arriving while the leader is
+ * busy are collected in the next batch and wait, and one of them leads the
+ * next batch as soon as the current one completes. Every caller returns only
+ * after a force started after its own call has completed, so a batch covers
+ * all the writes done by its members.
+ * <P>
+ * The callers writing to the same channel, as the records of a journal
+ * segment, share one force. With <b>target.mode=file</b> every caller writes
+ * its own file: the leader forces all the files of the batch, so the
+ * callers wait for one round of forces instead of queueing for the device
+ * each with its own, and on a journaling file system the first force of
+ * the round commits the others' data too, leaving them little to write.
+ * <BR>A channel closed in the meantime is forced by reopening its file. A
+ * failed force is thrown to the callers of that channel only.
+ * @author Marco Ratto
+ */
+public class GroupCommit {
+
+    private final Object lock = new Object();
+
+    private Batch collecting = new Batch();
+
+    private boolean syncing = false;
+
+    /**
+     * Waits until <code>channel</code> has been forced to the storage device.
+     * @param channel
+     * @param file the file written through <code>channel</code>, reopened and forced if the channel is closed
+     * in the meantime; if <code>null</code>, a closed channel fails with <code>ClosedChannelException</code>
+     * @throws IOException if the force of the channel failed
+     */
+    public void sync(FileChannel channel, File file) throws IOException {
+        Map<FileChannel, File> channels = new HashMap<FileChannel, File>();
+        channels.put(channel, file);
+        IOException failure = sync(channels).get(channel);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits until all the <code>channels</code> have been forced to the storage
+     * device, joining them to the same batch: a caller that has written several
+     * files at once takes part in one round of forces for all of them.
+     * @param channels the channels to force, each with the file to reopen if it is closed in the meantime (or <code>null</code>)
+     * @return the failed forces, by channel
+     * @throws InterruptedIOException if interrupted while waiting for the batch
+     */
+    public Map<FileChannel, IOException> sync(Map<FileChannel, File> channels) throws InterruptedIOException {
+        Batch batch;
+        synchronized (lock) {
+            batch = collecting;
+            for (Map.Entry<FileChannel, File> channel : channels.entrySet()) {
+                if (channel.getValue() != null || !batch.members.containsKey(channel.getKey())) {
+                    batch.members.put(channel.getKey(), channel.getValue());
+                }
+            }
+            while (!batch.done) {
+                if (!syncing) {
+                    // leader: close the batch and force it outside of the lock
+                    syncing = true;
+                    collecting = new Batch();
+                    break;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the group commit");
+                }
+            }
+            if (batch.done) {
+                return failuresOf(batch.failures, channels);
+            }
+        }
+
+        Map<FileChannel, IOException> failures = new HashMap<FileChannel, IOException>();
+        for (Map.Entry<FileChannel, File> member : batch.members.entrySet()) {
+            try {
+                force(member.getKey(), member.getValue());
+            } catch (IOException e) {
+                failures.put(member.getKey(), e);
+            }
+        }
+        synchronized (lock) {
+            batch.done = true;
+            batch.failures = failures;
+            syncing = false;
+            lock.notifyAll();
+        }
+        return failuresOf(failures, channels);
+    }
+
+    private static Map<FileChannel, IOException> failuresOf(Map<FileChannel, IOException> failures, Map<FileChannel, File> channels) {
+        Map<FileChannel, IOException> result = new HashMap<FileChannel, IOException>();
+        for (FileChannel channel : channels.keySet()) {
+            IOException failure = failures.get(channel);
+            if (failure != null) {
+                result.put(channel, failure);
+            }
+        }
+        return result;
+    }
+
+    private static void force(FileChannel channel, File file) throws IOException {
+        try {
+            channel.force(true);
+        } catch (ClosedChannelException e) {
+            if (file == null) {
+                throw e;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.getChannel().force(true);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private static class Batch {
+        final Map<FileChannel, File> members = new LinkedHashMap<FileChannel, File>();
+        boolean done = false;
+        Map<FileChannel, IOException> failures = null;
+    }
+}
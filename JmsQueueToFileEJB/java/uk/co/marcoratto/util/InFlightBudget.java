@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * Limits the bytes of the large messages processed at the same time in the JVM.
+ * <P>
+ * A message whose body reaches <b>inflight.threshold</b> bytes (default 1 MB)
+ * reserves its size from a budget of <b>inflight.max.bytes</b> bytes (default
+ * a quarter of the maximum heap, 0 unlimited) before it is written, and waits
+ * while the budget is exhausted; the MDB instance waiting does not receive
+ * other messages in the meantime. The size is <code>getBodyLength()</code> for
+ * a <code>BytesMessage</code> and two bytes per character for a
+ * <code>TextMessage</code>, as held on the heap; a message larger than the
+ * whole budget waits until it is alone.
+ * <P>
+ * The smaller messages are not counted and never wait, so they keep flowing
+ * while the large ones queue: the memory used is at most the budget plus
+ * <b>inflight.threshold</b> bytes per MDB instance. The large messages are
+ * served in order of arrival, so a huge one is not overtaken forever by the
+ * others.
+ * @author Marco Ratto
+ */
+public class InFlightBudget {
+
+    private static final String CLASS_NAME = InFlightBudget.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static volatile InFlightBudget instance = null;
+
+    private static volatile Settings instanceSettings = null;
+
+    private final long maxBytes;
+
+    private final long threshold;
+
+    private final LinkedList<Thread> waiting = new LinkedList<Thread>();
+
+    private long inFlight = 0;
+
+    /**
+     * Returns the budget configured by the current <code>Settings</code>,
+     * replacing it when a reload of the configuration has changed its size;
+     * the messages that reserved bytes from the previous budget release them there.
+     * @return InFlightBudget
+     * @throws ConfigException
+     */
+    public static InFlightBudget getInstance() throws ConfigException {
+        Settings settings = Settings.get();
+        if (instance == null || instanceSettings != settings) {
+            synchronized (InFlightBudget.class) {
+                if (instance == null || (instanceSettings != settings && !instanceSettings.sameInFlightBudget(settings))) {
+                    instance = new InFlightBudget(settings.getInFlightMaxBytes(), settings.getInFlightThreshold());
+                }
+                instanceSettings = settings;
+            }
+        }
+        return instance;
+    }
+
+    public InFlightBudget(long maxBytes, long threshold) {
+        final String METHOD_NAME = "Constructor";
+        this.maxBytes = maxBytes;
+        this.threshold = threshold;
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "inflight.max.bytes=" + maxBytes + ", inflight.threshold=" + threshold);
+    }
+
+    /**
+     * Returns the bytes of the heap held by the body of <code>msg</code>, 0 if not known.
+     * @param msg
+     * @return long
+     * @throws JMSException
+     */
+    public static long sizeOf(Message msg) throws JMSException {
+        if (msg instanceof BytesMessage) {
+            BytesMessage bytesMsg = (BytesMessage) msg;
+            bytesMsg.reset();
+            return bytesMsg.getBodyLength();
+        } else if (msg instanceof TextMessage) {
+            String text = ((TextMessage) msg).getText();
+            return (text != null) ? 2L * text.length() : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns <code>true</code> if a body of <code>size</code> bytes is large
+     * and must be streamed in chunks rather than copied whole.
+     * @param size
+     * @return boolean
+     */
+    public boolean isLarge(long size) {
+        return size >= threshold;
+    }
+
+    /**
+     * Reserves the size of <code>msg</code> if it is large, waiting for the budget.
+     * @param msg
+     * @return the bytes reserved, to pass to <code>release</code>; 0 if the message is not counted
+     * @throws JMSException
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public long acquire(Message msg) throws JMSException, InterruptedIOException {
+        if (maxBytes == 0) {
+            return 0;
+        }
+        long size = sizeOf(msg);
+        if (!isLarge(size)) {
+            return 0;
+        }
+        long reserved = Math.min(size, maxBytes);
+        Thread current = Thread.currentThread();
+        synchronized (this) {
+            waiting.addLast(current);
+            try {
+                while (waiting.getFirst() != current || inFlight + reserved > maxBytes) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                current.interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + reserved + " bytes of inflight.max.bytes");
+            } finally {
+                waiting.remove(current);
+                notifyAll();
+            }
+            inFlight += reserved;
+        }
+        Metrics.getInstance().inFlight(reserved);
+        return reserved;
+    }
+
+    /**
+     * Returns to the budget the bytes reserved by <code>acquire</code>.
+     * @param reserved
+     */
+    public void release(long reserved) {
+        if (reserved > 0) {
+            synchronized (this) {
+                inFlight -= reserved;
+                notifyAll();
+            }
+            Metrics.getInstance().inFlight(-reserved);
+        }
+    }
+
+    /**
+     * Returns the bytes reserved by the messages being processed.
+     * @return long
+     */
+    public synchronized long getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Iterates the records of a journal segment written by <code>JournalWriter</code>.
+ * <P>
+ * A record cut short by a crash at the end of the segment is treated as the
+ * end of the segment.
+ * <PRE>
+ * JournalReader reader = new JournalReader(segment);
+ * try {
+ *     JournalRecord record;
+ *     while ((record = reader.next()) != null) {
+ *         InputStream body = reader.getBody();
+ *         ...
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </PRE>
+ * The <code>main</code> method splits a segment into one file per record.
+ * @author Marco Ratto
+ */
+public class JournalReader {
+
+    private static final String CLASS_NAME = JournalReader.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private final File segment;
+    private final long length;
+    private final DataInputStream in;
+
+    private long position;
+    private long remaining;
+    private JournalRecord current;
+
+    public JournalReader(File segment) throws IOException {
+        this.segment = segment;
+        this.length = segment.length();
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024));
+    }
+
+    /**
+     * Moves to the next record, skipping whatever is left of the body of the current one.
+     * @return JournalRecord the header of the next record, <code>null</code> at the end of the segment
+     * @throws IOException if the segment is not a journal segment
+     */
+    public JournalRecord next() throws IOException {
+        final String METHOD_NAME = "next";
+
+        skipFully(remaining);
+        remaining = 0;
+        current = null;
+
+        if (position >= length) {
+            return null;
+        }
+        long start = position;
+        try {
+            int magic = in.readInt();
+            if (magic != JournalWriter.MAGIC) {
+                throw new IOException("Bad record at offset " + position + " of " + segment.getAbsolutePath());
+            }
+            int headerLength = in.readInt();
+            if (position + 16 + headerLength > length) {
+                return truncated(METHOD_NAME);
+            }
+            JournalRecord record = new JournalRecord();
+            record.setMessageId(in.readUTF());
+            record.setTimestamp(in.readLong());
+            int attributes = in.readShort();
+            for (int i = 0; i < attributes; i++) {
+                record.setAttribute(in.readUTF(), in.readUTF());
+            }
+            long size = in.readLong();
+            position += 16 + headerLength;
+            if (size < 0 || position + size > length) {
+                return truncated(METHOD_NAME);
+            }
+            record.setSize(size);
+            record.setSegment(segment);
+            record.setOffset(start);
+            remaining = size;
+            current = record;
+            return record;
+        } catch (EOFException e) {
+            return truncated(METHOD_NAME);
+        }
+    }
+
+    /**
+     * Returns the body of the current record. The stream must be consumed
+     * before calling <code>next()</code> and must not be closed.
+     * @return InputStream
+     */
+    public InputStream getBody() {
+        if (current == null) {
+            throw new IllegalStateException("No current record");
+        }
+        return new InputStream() {
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = in.read();
+                if (b >= 0) {
+                    remaining--;
+                    position++;
+                }
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) {
+                    remaining -= n;
+                    position += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException ioe) {
+        }
+    }
+
+    private JournalRecord truncated(String methodName) {
+        logger.logp(Level.WARNING, CLASS_NAME, methodName, "Truncated record at offset " + position + " of " + segment.getAbsolutePath());
+        position = length;
+        remaining = 0;
+        return null;
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+            position += skipped;
+        }
+    }
+
+    /**
+     * Splits a segment into one file per record, named after the message ID.
+     * <BR>Usage: <code>JournalReader &lt;segment&gt; &lt;output directory&gt;</code>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: " + CLASS_NAME + " <segment> <output directory>");
+            System.exit(1);
+        }
+        File outputDir = new File(args[1]);
+        outputDir.mkdirs();
+        JournalReader reader = new JournalReader(new File(args[0]));
+        try {
+            JournalRecord record;
+            int count = 0;
+            while ((record = reader.next()) != null) {
+                String name = record.getMessageId();
+                if (name == null || name.length() == 0) {
+                    name = Integer.toString(count);
+                }
+                File f = new File(outputDir, name.replaceAll("[^A-Za-z0-9._-]", "_"));
+                InputStream body = reader.getBody();
+                OutputStream out = new FileOutputStream(f);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int len;
+                    while ((len = body.read(buffer)) >= 0) {
+                        out.write(buffer, 0, len);
+                    }
+                } finally {
+                    out.close();
+                }
+                count++;
+            }
+            System.out.println(count + " records written to " + outputDir.getAbsolutePath());
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Header of a record stored in a journal segment.
+ * @see JournalWriter
+ * @see JournalReader
+ * @author Marco Ratto
+ */
+public class JournalRecord {
+
+    private String messageId;
+    private long timestamp;
+    private long size = -1;
+    private Map<String, String> attributes = new LinkedHashMap<String, String>();
+    private File segment;
+    private long offset = -1;
+
+    public JournalRecord() {
+    }
+
+    public JournalRecord(String messageId, long timestamp) {
+        this.messageId = messageId;
+        this.timestamp = timestamp;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns the length of the body in bytes, <code>-1</code> if not yet known.
+     * @return long
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Returns the segment the record has been written to or read from.
+     * @return File
+     */
+    public File getSegment() {
+        return segment;
+    }
+
+    public void setSegment(File segment) {
+        this.segment = segment;
+    }
+
+    /**
+     * Returns the offset of the record in its segment, <code>-1</code> if not yet known.
+     * @return long
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public String getAttribute(String key) {
+        return attributes.get(key);
+    }
+
+    /**
+     * Adds a free-form attribute to the header. <code>null</code> values are ignored.
+     * @param key
+     * @param value
+     */
+    public void setAttribute(String key, String value) {
+        if (value != null) {
+            attributes.put(key, value);
+        }
+    }
+
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    public String toString() {
+        return "JournalRecord[messageId=" + messageId + ", timestamp=" + timestamp + ", size=" + size + ", offset=" + offset + ", attributes=" + attributes + "]";
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Appends every message as a record of a journal segment, instead of
+ * creating a file per message.
+ * <P>
+ * Properties:
+ * <BR>- <b>target.journal.dir</b>: directory of the segments;
+ * <BR>- <b>target.journal.prefix</b>: prefix of the segment names (default <i>JmsQueueToFile</i>);
+ * <BR>- <b>target.journal.roll.size</b>: roll the segment after this number of bytes (default 64 MB);
+ * <BR>- <b>target.journal.roll.count</b>: roll the segment after this number of records (default 0, no limit);
+ * <BR>- <b>target.journal.roll.age</b>: roll the segment after this number of milliseconds (default 0, no limit).
+ * <P>
+ * The target of every message is the published segment, with the suffix
+ * <code>.journal</code> even while the segment is still being written,
+ * followed by <i>#</i> and the offset of the record, for example
+ * <code>/data/journal/JmsQueueToFile-20101231235959000-0.journal#4096</code>.
+ * <P>
+ * As a <code>BatchSink</code>, the records of a batch are all appended first
+ * and then forced with one commit of <b>target.durability</b>.
+ * @see JournalWriter
+ * @author Marco Ratto
+ */
+public class JournalSink implements BatchSink {
+
+    private static final String CLASS_NAME = JournalSink.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    public static final String ATTRIBUTE_CORRELATION_ID = "JMSCorrelationID";
+
+    public static final String ATTRIBUTE_TYPE = "type";
+
+    public static final String TYPE_BYTES = "bytes";
+
+    public static final String TYPE_TEXT = "text";
+
+    /**
+     * Separator of the segment and the offset in the target of <code>WriteResult</code>.
+     */
+    public static final String LOCATION_SEPARATOR = "#";
+
+    private final JournalWriter writer;
+
+    public JournalSink(Settings settings) throws ConfigException {
+        this.writer = new JournalWriter(new File(settings.getJournalDir()), settings.getJournalPrefix(),
+            settings.getJournalRollSize(), settings.getJournalRollCount(), settings.getJournalRollAge(), Durability.getInstance());
+    }
+
+    public WriteResult write(Message msg) throws UtilityException {
+        PendingWrite pending = writePending(msg);
+        List<PendingWrite> writes = new ArrayList<PendingWrite>(1);
+        writes.add(pending);
+        commit(writes);
+        return pending.getResult();
+    }
+
+    /**
+     * Appends the message to the segment, leaving its force to <code>commit</code>.
+     */
+    public PendingWrite writePending(Message msg) throws UtilityException {
+        final String METHOD_NAME = "writePending";
+        try {
+            long timestamp = msg.getJMSTimestamp();
+            JournalRecord record = new JournalRecord(msg.getJMSMessageID(), timestamp != 0 ? timestamp : System.currentTimeMillis());
+            record.setAttribute(ATTRIBUTE_CORRELATION_ID, msg.getJMSCorrelationID());
+            record.setAttribute(ATTRIBUTE_TYPE, (msg instanceof BytesMessage) ? TYPE_BYTES : TYPE_TEXT);
+            long start = System.nanoTime();
+            FileChannel channel = writer.appendPending(record, msg);
+            Metrics.getInstance().getWrite().recordSince(start);
+            return new JournalPendingWrite(channel,
+                new WriteResult(JournalWriter.getPublished(record.getSegment()).getPath() + LOCATION_SEPARATOR + record.getOffset(), record.getSize()));
+        } catch (JMSException e) {
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new UtilityException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Forces the segments the records of <code>writes</code> have been appended
+     * to, with one commit of the durability for all of them.
+     */
+    public void commit(List<PendingWrite> writes) {
+        Set<FileChannel> channels = new HashSet<FileChannel>();
+        for (PendingWrite write : writes) {
+            FileChannel channel = ((JournalPendingWrite) write).channel;
+            if (channel != null) {
+                channels.add(channel);
+            }
+        }
+        Map<FileChannel, IOException> failures;
+        long start = System.nanoTime();
+        try {
+            failures = writer.commit(channels);
+        } catch (IOException e) {
+            failures = new HashMap<FileChannel, IOException>();
+            for (FileChannel channel : channels) {
+                failures.put(channel, e);
+            }
+        }
+        if (!channels.isEmpty()) {
+            Metrics.getInstance().getSync().recordSince(start);
+        }
+        for (PendingWrite write : writes) {
+            JournalPendingWrite pending = (JournalPendingWrite) write;
+            IOException failure = (pending.channel != null) ? failures.get(pending.channel) : null;
+            if (failure != null) {
+                pending.complete(null, new UtilityException(failure.getMessage(), failure));
+            } else {
+                pending.complete(pending.result, null);
+            }
+        }
+    }
+
+    public void close() {
+        writer.close();
+    }
+
+    /**
+     * A record appended and not forced yet.
+     */
+    private static class JournalPendingWrite extends PendingWrite {
+
+        final FileChannel channel;
+        final WriteResult result;
+
+        JournalPendingWrite(FileChannel channel, WriteResult result) {
+            this.channel = channel;
+            this.result = result;
+        }
+    }
+}
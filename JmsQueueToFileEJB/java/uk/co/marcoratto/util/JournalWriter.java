@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.Message;
+
+/**
+ * Appends records to a rolling segment file.
+ * <P>
+ * Each record is stored as:
+ * <PRE>
+ * int    magic (0x4A514631, "JQF1")
+ * int    header length
+ * header UTF message ID, long timestamp, short attribute count, (UTF key, UTF value)*
+ * long   body length
+ * byte[] body
+ * </PRE>
+ * The segment being written has the suffix <code>.journal.part</code> and is
+ * renamed to <code>.journal</code> when it is rolled, so that downstream jobs
+ * only pick up complete segments. A segment is rolled when it reaches the
+ * configured size, number of records or age (a value <code>&lt;= 0</code>
+ * disables the corresponding limit).
+ * <P>
+ * Records are forced according to the <code>Durability</code> passed to the
+ * constructor; the force is done outside of the lock of the writer, so that
+ * other threads can append while a group commit is in progress. A segment is
+ * always forced before being rolled when the durability is enabled.
+ * <P>
+ * The segment being written is locked, so that another JVM sharing the
+ * directory leaves it alone. When it is created, the writer recovers the
+ * <code>.journal.part</code> segments of its prefix left by a crash or a
+ * stop: the record cut short at the end, whose body length is still -1 or
+ * whose body is incomplete, is truncated and the segment is published as
+ * <code>.journal</code>, or deleted if no record is left. The segments
+ * still locked by another writer are skipped.
+ * @see JournalReader
+ * @author Marco Ratto
+ */
+public class JournalWriter {
+
+    private static final String CLASS_NAME = JournalWriter.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    public static final int MAGIC = 0x4A514631;
+
+    public static final String SUFFIX = ".journal";
+
+    public static final String PART_SUFFIX = SUFFIX + ".part";
+
+    private final static int BUFFER = 64 * 1024;
+
+    private final File dir;
+    private final String prefix;
+    private final long rollSize;
+    private final int rollCount;
+    private final long rollAge;
+    private final Durability durability;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+    private final SimpleDateFormat segmentDateFormat = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+
+    private File segment;
+    private RandomAccessFile segmentFile;
+    private FileChannel channel;
+    private long segmentCreated;
+    private int segmentRecords;
+    private int segmentSeq;
+
+    private Timer ageTimer;
+
+    public JournalWriter(File dir, String prefix, long rollSize, int rollCount, long rollAge, Durability durability) {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.rollSize = rollSize;
+        this.rollCount = rollCount;
+        this.rollAge = rollAge;
+        this.durability = durability;
+        recover();
+        if (rollAge > 0) {
+            // an idle segment must be published even if no more records arrive
+            this.ageTimer = new Timer(CLASS_NAME, true);
+            long period = Math.min(rollAge, 1000);
+            this.ageTimer.schedule(new TimerTask() {
+                public void run() {
+                    rollIfExpired();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Appends a record to the current segment and makes it durable. The size
+     * of the record is taken from the number of bytes read from <code>body</code>,
+     * which is closed before returning.
+     * @param record the header of the record
+     * @param body the body of the record
+     * @return long the number of bytes of the body
+     * @throws IOException if the record cannot be written; in this case the segment is left as it was before the call
+     */
+    public long append(JournalRecord record, InputStream body) throws IOException {
+        try {
+            commit(appendRecord(record, body, null));
+        } finally {
+            try {
+                body.close();
+            } catch (IOException ioe) {
+            }
+        }
+        return record.getSize();
+    }
+
+    /**
+     * Appends a record holding the body of <code>msg</code>, streamed to the
+     * segment through <code>Utility.writeBody</code>, and makes it durable.
+     * @param record the header of the record
+     * @param msg the message
+     * @return long the number of bytes of the body
+     * @throws IOException if the record cannot be written; in this case the segment is left as it was before the call
+     */
+    public long append(JournalRecord record, Message msg) throws IOException {
+        commit(appendRecord(record, null, msg));
+        return record.getSize();
+    }
+
+    /**
+     * Appends a record holding the body of <code>msg</code> without making it
+     * durable: a caller appending several records passes the channels returned
+     * to <code>commit</code> once all of them are appended.
+     * @param record the header of the record
+     * @param msg the message
+     * @return the channel the record has been written to, <code>null</code> if the segment has already been rolled, and forced
+     * @throws IOException if the record cannot be written; in this case the segment is left as it was before the call
+     */
+    public FileChannel appendPending(JournalRecord record, Message msg) throws IOException {
+        return appendRecord(record, null, msg);
+    }
+
+    /**
+     * Makes durable, with one commit of the <code>Durability</code>, the records
+     * appended through <code>appendPending</code>.
+     * @param channels the channels returned by <code>appendPending</code>
+     * @return the failed forces, by channel
+     * @throws IOException if the commit failed for all the channels
+     */
+    public Map<FileChannel, IOException> commit(Set<FileChannel> channels) throws IOException {
+        Map<FileChannel, IOException> failures = new HashMap<FileChannel, IOException>();
+        if (durability == null || channels.isEmpty()) {
+            return failures;
+        }
+        Map<FileChannel, File> members = new HashMap<FileChannel, File>();
+        for (FileChannel channel : channels) {
+            members.put(channel, null);
+        }
+        for (Map.Entry<FileChannel, IOException> failure : durability.commit(members).entrySet()) {
+            // rolled since the append: roll() closes the segment only after forcing it
+            if (!(failure.getValue() instanceof ClosedChannelException)) {
+                failures.put(failure.getKey(), failure.getValue());
+            }
+        }
+        return failures;
+    }
+
+    private void commit(FileChannel written) throws IOException {
+        if (durability != null && written != null) {
+            try {
+                durability.commit(written, null);
+            } catch (ClosedChannelException e) {
+                // rolled since the append: roll() closes the segment only after forcing it
+            }
+        }
+    }
+
+    /**
+     * Returns the channel the record has been written to, <code>null</code>
+     * if the segment has already been rolled.
+     */
+    private synchronized FileChannel appendRecord(JournalRecord record, InputStream body, Message msg) throws IOException {
+        final String METHOD_NAME = "appendRecord";
+
+        if (channel != null && isExpired(System.currentTimeMillis())) {
+            roll();
+        }
+        if (channel == null) {
+            open();
+        }
+
+        long start = channel.position();
+        try {
+            byte[] header = encodeHeader(record);
+            ByteBuffer prologue = ByteBuffer.allocate(4 + 4 + header.length + 8);
+            prologue.putInt(MAGIC);
+            prologue.putInt(header.length);
+            prologue.put(header);
+            long sizeOffset = start + prologue.position();
+            prologue.putLong(-1);
+            prologue.flip();
+            writeFully(prologue);
+
+            long size = 0;
+            if (msg != null) {
+                size = Utility.writeBody(msg, channel);
+            } else {
+                byte[] array = buffer.array();
+                int len;
+                while ((len = body.read(array)) >= 0) {
+                    buffer.clear();
+                    buffer.limit(len);
+                    writeFully(buffer);
+                    size += len;
+                }
+            }
+
+            ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
+            sizeBuffer.putLong(size);
+            sizeBuffer.flip();
+            while (sizeBuffer.hasRemaining()) {
+                channel.write(sizeBuffer, sizeOffset + sizeBuffer.position());
+            }
+            record.setSize(size);
+            record.setSegment(segment);
+            record.setOffset(start);
+            segmentRecords++;
+        } catch (IOException e) {
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            discard(start);
+            throw e;
+        } catch (UtilityException e) {
+            discard(start);
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+
+        if ((rollSize > 0 && channel.position() >= rollSize) || (rollCount > 0 && segmentRecords >= rollCount)) {
+            roll();
+            return null;
+        }
+        return channel;
+    }
+
+    /**
+     * Drops a partial record so that the segment stays readable.
+     */
+    private void discard(long start) throws IOException {
+        channel.truncate(start);
+        channel.position(start);
+    }
+
+    /**
+     * Closes the current segment and makes it available to the readers.
+     * The next record is written to a new segment.
+     * @throws IOException
+     */
+    public synchronized void roll() throws IOException {
+        final String METHOD_NAME = "roll";
+        if (channel == null) {
+            return;
+        }
+        File part = segment;
+        try {
+            if (durability != null && durability.isEnabled()) {
+                channel.force(true);
+            }
+            segmentFile.close();
+        } finally {
+            channel = null;
+            segmentFile = null;
+            segment = null;
+        }
+        File done = getPublished(part);
+        if (part.renameTo(done)) {
+            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Closed segment " + done.getAbsolutePath() + " with " + segmentRecords + " records");
+        } else {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to rename " + part.getAbsolutePath() + " to " + done.getName());
+        }
+    }
+
+    /**
+     * Returns the name that the segment <code>part</code>, being written, takes once rolled.
+     * @param part
+     * @return File
+     */
+    public static File getPublished(File part) {
+        String name = part.getName();
+        if (!name.endsWith(PART_SUFFIX)) {
+            return part;
+        }
+        return new File(part.getParentFile(), name.substring(0, name.length() - PART_SUFFIX.length()) + SUFFIX);
+    }
+
+    /**
+     * Returns the segment being written, <code>null</code> if there is none.
+     * @return File
+     */
+    public synchronized File getSegment() {
+        return segment;
+    }
+
+    public synchronized void close() {
+        final String METHOD_NAME = "close";
+        if (ageTimer != null) {
+            ageTimer.cancel();
+            ageTimer = null;
+        }
+        try {
+            roll();
+        } catch (IOException e) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+        }
+    }
+
+    private synchronized void rollIfExpired() {
+        final String METHOD_NAME = "rollIfExpired";
+        if (channel != null && isExpired(System.currentTimeMillis())) {
+            try {
+                roll();
+            } catch (IOException e) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            }
+        }
+    }
+
+    private boolean isExpired(long now) {
+        return rollAge > 0 && segmentRecords > 0 && now - segmentCreated >= rollAge;
+    }
+
+    private void open() throws IOException {
+        final String METHOD_NAME = "open";
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Unable to create directory " + dir.getAbsolutePath());
+        }
+        long now = System.currentTimeMillis();
+        String stamp = segmentDateFormat.format(new Date(now));
+        File f;
+        do {
+            f = new File(dir, prefix + "-" + stamp + "-" + (segmentSeq++) + PART_SUFFIX);
+        } while (!f.createNewFile());
+
+        segmentFile = new RandomAccessFile(f, "rw");
+        channel = segmentFile.getChannel();
+        lock(channel, f);
+        segment = f;
+        segmentCreated = now;
+        segmentRecords = 0;
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Opened segment " + f.getAbsolutePath());
+    }
+
+    /**
+     * Locks the segment being written until it is closed; a file system
+     * without locks only loses the protection against the recovery of another JVM.
+     */
+    private static void lock(FileChannel channel, File f) {
+        final String METHOD_NAME = "lock";
+        try {
+            if (channel.tryLock() == null) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Segment " + f.getAbsolutePath() + " locked by another process");
+            }
+        } catch (IOException e) {
+            logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Segment " + f.getAbsolutePath() + " not locked: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Publishes the segments of this prefix left being written by a previous run.
+     */
+    private void recover() {
+        final String METHOD_NAME = "recover";
+        File[] parts = dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                String name = f.getName();
+                return name.startsWith(prefix + "-") && name.endsWith(PART_SUFFIX);
+            }
+        });
+        if (parts == null) {
+            return;
+        }
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                recover(parts[i]);
+            } catch (IOException e) {
+                logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "Unable to recover " + parts[i].getAbsolutePath() + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void recover(File part) throws IOException {
+        final String METHOD_NAME = "recover";
+        RandomAccessFile raf = new RandomAccessFile(part, "rw");
+        long length;
+        try {
+            FileChannel ch = raf.getChannel();
+            try {
+                if (ch.tryLock() == null) {
+                    // written by another process
+                    return;
+                }
+            } catch (OverlappingFileLockException e) {
+                // written by another writer of this JVM
+                return;
+            } catch (IOException e) {
+                logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Segment " + part.getAbsolutePath() + " not locked: " + e.getMessage());
+            }
+            length = completeLength(ch);
+            if (length < ch.size()) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Truncated record at offset " + length + " of " + part.getAbsolutePath());
+                ch.truncate(length);
+            }
+            if (length > 0 && durability != null && durability.isEnabled()) {
+                ch.force(true);
+            }
+        } finally {
+            raf.close();
+        }
+        if (length == 0) {
+            if (!part.delete()) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to delete " + part.getAbsolutePath());
+            }
+            return;
+        }
+        File done = getPublished(part);
+        if (part.renameTo(done)) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Recovered segment " + done.getAbsolutePath());
+        } else {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to rename " + part.getAbsolutePath() + " to " + done.getName());
+        }
+    }
+
+    /**
+     * Returns the length of the complete records at the head of the segment.
+     */
+    private static long completeLength(FileChannel ch) throws IOException {
+        long size = ch.size();
+        long position = 0;
+        ByteBuffer prologue = ByteBuffer.allocate(8);
+        ByteBuffer length = ByteBuffer.allocate(8);
+        while (position + 8 <= size) {
+            prologue.clear();
+            readFully(ch, prologue, position);
+            if (prologue.getInt(0) != MAGIC) {
+                break;
+            }
+            long sizeOffset = position + 8 + prologue.getInt(4);
+            if (prologue.getInt(4) < 0 || sizeOffset + 8 > size) {
+                break;
+            }
+            length.clear();
+            readFully(ch, length, sizeOffset);
+            long bodySize = length.getLong(0);
+            if (bodySize < 0 || sizeOffset + 8 + bodySize > size) {
+                break;
+            }
+            position = sizeOffset + 8 + bodySize;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (ch.read(dst, position + dst.position()) < 0) {
+                throw new IOException("Unexpected end of the segment at offset " + position);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    private static byte[] encodeHeader(JournalRecord record) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF(record.getMessageId() == null ? "" : record.getMessageId());
+        out.writeLong(record.getTimestamp());
+        Map<String, String> attributes = record.getAttributes();
+        out.writeShort(attributes.size());
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops, when the application stops, the threads and the timers started
+ * by the utilities and closes the files they keep open; no JVM shutdown
+ * hook is registered, as it would outlive the application and keep its
+ * classes loaded. The application is stopped:
+ * <BR>- <b>ejb</b>: when the container stops the application, calling the startup bean <code>JmsQueueToFileStartup</code>;
+ * the instances of the message-driven bean are not counted, since the
+ * container shrinks their pool when idle and discards an instance after a
+ * system exception without calling <code>ejbRemove</code>;
+ * <BR>- <b>standalone</b>: when the consumer is stopped, calling <code>stop()</code>.
+ * <P>
+ * A utility used after the stop starts again, as on the first message.
+ * @author Marco Ratto
+ */
+public class Lifecycle {
+
+    private static final String CLASS_NAME = Lifecycle.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static volatile boolean containerManaged = false;
+
+    private Lifecycle() {
+    }
+
+    /**
+     * Called when the application starts in the EJB container, by the startup
+     * bean and by <code>ejbCreate</code> of the message-driven bean.
+     */
+    public static void start() {
+        containerManaged = true;
+        Metrics.register();
+    }
+
+    /**
+     * Returns <code>true</code> if the utilities run inside the EJB container,
+     * where the JMS connections and sessions are managed and pooled by the container.
+     * @return boolean
+     */
+    public static boolean isContainerManaged() {
+        return containerManaged;
+    }
+
+    /**
+     * Closes the sinks, writing what they still buffer, then stops the threads and the timers.
+     * A step that fails is logged and the next one is run.
+     */
+    public static synchronized void stop() {
+        final String METHOD_NAME = "stop";
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Stopping");
+        ConfigReloader.stop();
+        try {
+            MessageSinks.shutdown();
+        } catch (Throwable t) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+        }
+        try {
+            Durability.shutdown();
+        } catch (Throwable t) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+        }
+        try {
+            Manifest.shutdown();
+        } catch (Throwable t) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+        }
+        try {
+            ErrorSpool.shutdown();
+        } catch (Throwable t) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+        }
+        try {
+            PublisherPool.shutdown();
+        } catch (Throwable t) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+        }
+        EtmQueueConnection.closeSharedQueueConnection(null);
+        try {
+            AuditLog.shutdown();
+        } catch (Throwable t) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+        }
+        Compression.shutdownInstance();
+        DirectoryCache.shutdown();
+        Metrics.unregister();
+        Settings.clear();
+        WarmUp.reset();
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Stopped");
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.JMSException;
+
+/**
+ * Manifest of the target files, one line per file, appended by a background
+ * thread once the file is complete, so that the downstream jobs can tail
+ * it instead of scanning the directories.
+ * <P>
+ * Every line is <code>&lt;file&gt;,&lt;size&gt;,&lt;checksum&gt;</code>: the path
+ * of the file, its size in bytes and the CRC-32 of its content as 8
+ * hexadecimal digits. The lines are written in batches; each batch is
+ * flushed and, when <b>target.durability</b> is not <i>none</i>, forced.
+ * Unlike <code>AuditLog</code> no line is ever dropped: when the buffer is
+ * full the MDB instances wait for room.
+ * <P>
+ * Properties:
+ * <BR>- <b>target.manifest.pathname</b>: template of the manifest (see <code>FilenameTemplate</code>, only the date tokens apply); no manifest if missing;
+ * <BR>- <b>target.manifest.buffer.size</b>: number of lines buffered (default 8192, read once).
+ * @author Marco Ratto
+ */
+public class Manifest implements Runnable {
+
+    private static final String CLASS_NAME = Manifest.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static final int BATCH = 512;
+
+    private static final long POLL_INTERVAL = 1000;
+
+    private static volatile Manifest instance = null;
+
+    private final BlockingQueue<String> buffer;
+
+    private Thread thread;
+
+    private volatile boolean running = true;
+
+    private String currentPathname;
+
+    private FileOutputStream file;
+
+    private Writer out;
+
+    /**
+     * Returns the manifest, started the first time.
+     * @return Manifest
+     * @throws ConfigException
+     */
+    public static Manifest getInstance() throws ConfigException {
+        if (instance == null) {
+            synchronized (Manifest.class) {
+                if (instance == null) {
+                    Manifest manifest = new Manifest(Settings.get().getManifestBufferSize());
+                    manifest.thread = new Thread(manifest, CLASS_NAME);
+                    manifest.thread.setDaemon(true);
+                    manifest.thread.start();
+                    instance = manifest;
+                }
+            }
+        }
+        return instance;
+    }
+
+    private Manifest(int capacity) {
+        this.buffer = new ArrayBlockingQueue<String>(capacity);
+    }
+
+    /**
+     * Appends the line of a complete file, waiting while the buffer is full.
+     * @param path the path of the file
+     * @param size its size in bytes
+     * @param checksum its CRC-32 (see <code>ChecksumChannel</code>)
+     */
+    public void append(String path, long size, String checksum) {
+        String line = path + "," + size + "," + checksum + "\n";
+        boolean interrupted = false;
+        while (true) {
+            try {
+                buffer.put(line);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        List<String> batch = new ArrayList<String>(BATCH);
+        while (running) {
+            try {
+                String line = buffer.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (line == null) {
+                    continue;
+                }
+                batch.add(line);
+            } catch (InterruptedException e) {
+                return;
+            }
+            buffer.drainTo(batch, BATCH - 1);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops the background thread, writes the lines still buffered and closes
+     * the manifest; the next <code>getInstance()</code> starts a new one.
+     */
+    public static void shutdown() {
+        final String METHOD_NAME = "shutdown";
+        Manifest old;
+        synchronized (Manifest.class) {
+            old = instance;
+            instance = null;
+        }
+        if (old != null) {
+            // not interrupted: an interrupt would close the channel being forced
+            old.running = false;
+            try {
+                old.thread.join(MessageSinks.CLOSE_DELAY);
+            } catch (InterruptedException e) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Interrupted while waiting for " + old.thread.getName());
+                Thread.currentThread().interrupt();
+            }
+            old.flush();
+        }
+    }
+
+    /**
+     * Writes the lines still buffered.
+     */
+    private void flush() {
+        List<String> batch = new ArrayList<String>();
+        buffer.drainTo(batch);
+        write(batch);
+        synchronized (this) {
+            closeWriter();
+        }
+    }
+
+    private synchronized void write(List<String> batch) {
+        final String METHOD_NAME = "write";
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            Writer w = getWriter();
+            if (w == null) {
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                w.write(batch.get(i));
+            }
+            w.flush();
+            if (Durability.getInstance().isEnabled()) {
+                file.getChannel().force(false);
+            }
+        } catch (Exception e) {
+            // the files are complete anyway, the consumers find them scanning the directories
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, batch.size() + " lines not written to the manifest: " + e.getMessage(), e);
+            closeWriter();
+        }
+    }
+
+    /**
+     * Returns the writer of the manifest for the current time, opening the
+     * next file when the name rendered from <b>target.manifest.pathname</b> changes.
+     */
+    private Writer getWriter() throws ConfigException, IOException, JMSException {
+        FilenameTemplate template = Settings.get().getManifestTemplate();
+        if (template == null) {
+            closeWriter();
+            return null;
+        }
+        String pathname = template.render(null);
+        if (!pathname.equals(currentPathname)) {
+            closeWriter();
+            File f = new File(pathname);
+            File parentDir = f.getParentFile();
+            if (parentDir != null && !parentDir.exists()) {
+                parentDir.mkdirs();
+            }
+            file = new FileOutputStream(f, true);
+            out = new BufferedWriter(new OutputStreamWriter(file, "UTF-8"), 64 * 1024);
+            currentPathname = pathname;
+        }
+        return out;
+    }
+
+    private void closeWriter() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ioe) {
+            }
+            out = null;
+            file = null;
+        }
+        currentPathname = null;
+    }
+}
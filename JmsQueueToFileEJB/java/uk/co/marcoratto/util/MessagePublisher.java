@@ -76,7 +76,13 @@ public class MessagePublisher {
 
     /**
      * Publish the message to the supplied destination queue through a JMS queue
-     * session "not transacted" and "auto-acknowledge".
+     * session "not transacted" and "auto-acknowledge", lent by the
+     * <code>PublisherPool</code> outside the EJB container, unless <b>publisher.pool.size</b> is 0.
+     * Inside the container the connection is kept open (see
+     * <code>EtmQueueConnection.getSharedQueueConnection</code>) and the
+     * session is taken for the message from the session pool of the managed
+     * connection factory, then closed to give it back: a session cannot be
+     * kept across the container transactions.
      * <P>
      * The object message is converted in <code>TextMessage</code> for a
      * String object and in an <code>ObjectMessage</code> for a Serializable
@@ -92,7 +98,91 @@ public class MessagePublisher {
     public void publish(Queue queue, Object message) throws MessagePublisherException {
         final String METHOD_NAME = "publish";
         logger.entering(CLASS_NAME, METHOD_NAME);
-        
+
+        PublisherPool pool = null;
+        try {
+            pool = PublisherPool.getInstance();
+        } catch (ConfigException e) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+        }
+        if (pool != null) {
+            publishPooled(pool, queue, message);
+        } else if (Lifecycle.isContainerManaged()) {
+            publishShared(queue, message);
+        } else {
+            publishUnpooled(queue, message);
+        }
+
+        logger.exiting(CLASS_NAME, METHOD_NAME);
+    }
+
+    /**
+     * Publish the message through a session lent by the <code>PublisherPool</code>.
+     */
+    private void publishPooled(PublisherPool pool, Queue queue, Object message) throws MessagePublisherException {
+        final String METHOD_NAME = "publishPooled";
+
+        PublisherPool.PooledSender ps = null;
+        boolean sent = false;
+        try {
+            ps = pool.borrow(queue);
+
+            // Create the JMS message using the queue session.
+            Message jmsMsg = toMessage(ps.getSession(), message);
+
+            logger.logp(Level.FINEST, CLASS_NAME, METHOD_NAME, "Sending message to destination queue.");
+            ps.getSender().send(jmsMsg);
+            sent = true;
+
+        } catch (JMSException jmse) {
+            logJMSException(METHOD_NAME, jmse);
+            throw new MessagePublisherException(jmse.getMessage(), jmse);
+        } finally {
+            if (ps != null) {
+                pool.release(ps, sent);
+            }
+        }
+    }
+
+    /**
+     * Publish the message through the connection kept open inside the
+     * container, with a session and a sender from the managed factory.
+     */
+    private void publishShared(Queue queue, Object message) throws MessagePublisherException {
+        final String METHOD_NAME = "publishShared";
+
+        QueueConnection conn = null;
+        QueueSession session = null;
+        QueueSender sender = null;
+        try {
+            conn = EtmQueueConnection.getSharedQueueConnection();
+            session = conn.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+            sender = session.createSender(queue);
+
+            // Create the JMS message using the queue session.
+            Message jmsMsg = toMessage(session, message);
+
+            logger.logp(Level.FINEST, CLASS_NAME, METHOD_NAME, "Sending message to destination queue.");
+            sender.send(jmsMsg);
+
+        } catch (JMSException jmse) {
+            logJMSException(METHOD_NAME, jmse);
+            if (conn != null) {
+                // the connection may be broken: the next message opens a new one
+                EtmQueueConnection.closeSharedQueueConnection(conn);
+            }
+            throw new MessagePublisherException(jmse.getMessage(), jmse);
+        } finally {
+            QueueUtils.closeQuietly(null, session, sender);
+        }
+    }
+
+    /**
+     * Publish the message through a connection, a session and a sender created for it.
+     */
+    private void publishUnpooled(Queue queue, Object message) throws MessagePublisherException {
+        final String METHOD_NAME = "publishUnpooled";
+
         QueueConnection conn = null;
         QueueSession session = null;
         QueueSender sender = null;
@@ -120,16 +210,20 @@ public class MessagePublisher {
             logger.logp(Level.FINEST, CLASS_NAME, METHOD_NAME, "Closing connection");
 
         } catch (JMSException jmse) {
-            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "JMSException during publish message: " + jmse.getMessage(), jmse);
-            Exception linked = jmse.getLinkedException();
-            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, "Exception during publish message: " + linked.getMessage(), linked);
+            logJMSException(METHOD_NAME, jmse);
             throw new MessagePublisherException(jmse.getMessage(), jmse);
         } finally {
 
             QueueUtils.closeQuietly(conn, session, sender);
         }
+    }
 
-        logger.exiting(CLASS_NAME, METHOD_NAME);
+    private void logJMSException(String methodName, JMSException jmse) {
+        logger.logp(Level.SEVERE, CLASS_NAME, methodName, "JMSException during publish message: " + jmse.getMessage(), jmse);
+        Exception linked = jmse.getLinkedException();
+        if (linked != null) {
+            logger.logp(Level.SEVERE, CLASS_NAME, methodName, "Exception during publish message: " + linked.getMessage(), linked);
+        }
     }
 
     /**
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import javax.jms.Message;
+
+/**
+ * Destination of the messages consumed from the inbound queue.
+ * <BR>The implementation in use is selected by the property <b>target.mode</b>
+ * (see <code>MessageSinks</code>).
+ * @author Marco Ratto
+ */
+public interface MessageSink {
+
+    /**
+     * Stores the body of the message.
+     * @param msg the message received from the queue
+     * @return WriteResult where the message has been stored
+     * @throws UtilityException if the message cannot be stored
+     */
+    public WriteResult write(Message msg) throws UtilityException;
+
+    /**
+     * Releases the resources held by the sink.
+     */
+    public void close();
+}
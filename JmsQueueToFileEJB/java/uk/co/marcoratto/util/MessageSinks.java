@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the <code>MessageSink</code> selected by the property <b>target.mode</b>:
+ * <BR>- <b>file</b> (default): one file per message (<code>FileSink</code>);
+ * <BR>- <b>journal</b>: records appended to rolling segments (<code>JournalSink</code>).
+ * <BR>With <b>target.pipeline.writers</b> greater than 0 the sink is used by a
+ * pool of writer threads fed by the MDB instances (<code>PipelineSink</code>).
+ * <BR>The sink is shared by all the instances of the MDB and closed when the
+ * application stops (see <code>Lifecycle</code>).
+ * When a reload of the configuration changes its settings, a new sink is
+ * created and the old one is closed after <code>CLOSE_DELAY</code> milliseconds,
+ * so that the messages still writing to it can complete.
+ * @author Marco Ratto
+ */
+public class MessageSinks {
+
+    private static final String CLASS_NAME = MessageSinks.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    public static final String MODE_FILE = "file";
+
+    public static final String MODE_JOURNAL = "journal";
+
+    public static final long CLOSE_DELAY = 60 * 1000;
+
+    private static volatile MessageSink instance = null;
+
+    private static volatile Settings instanceSettings = null;
+
+    private static Timer closer = null;
+
+    // the sinks replaced by a reload and not yet closed
+    private static final List<MessageSink> closing = new ArrayList<MessageSink>();
+
+    private MessageSinks() {
+    }
+
+    public static MessageSink getSink() throws ConfigException {
+        Settings settings = Settings.get();
+        if (instance == null || instanceSettings != settings) {
+            synchronized (MessageSinks.class) {
+                if (instance == null) {
+                    instance = createSink(settings);
+                } else if (instanceSettings != settings && !instanceSettings.sameSink(settings)) {
+                    MessageSink old = instance;
+                    instance = createSink(settings);
+                    closeLater(old);
+                }
+                instanceSettings = settings;
+            }
+        }
+        return instance;
+    }
+
+    private static MessageSink createSink(Settings settings) throws ConfigException {
+        final String METHOD_NAME = "createSink";
+        String mode = settings.getMode();
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "target.mode=" + mode);
+
+        MessageSink sink;
+        if (MODE_JOURNAL.equals(mode)) {
+            sink = new JournalSink(settings);
+        } else {
+            sink = new FileSink();
+        }
+        if (settings.getPipelineWriters() > 0) {
+            sink = new PipelineSink(sink, settings.getPipelineWriters(), settings.getPipelineCapacity(), settings.getPipelineBatchSize());
+        }
+        return sink;
+    }
+
+    private static void closeLater(final MessageSink sink) {
+        if (closer == null) {
+            closer = new Timer(CLASS_NAME, true);
+        }
+        closing.add(sink);
+        closer.schedule(new TimerTask() {
+            public void run() {
+                synchronized (MessageSinks.class) {
+                    if (!closing.remove(sink)) {
+                        return;
+                    }
+                }
+                sink.close();
+            }
+        }, CLOSE_DELAY);
+    }
+
+    /**
+     * Closes the sink in use and the ones replaced by a reload, and stops the
+     * timer closing them; the next <code>getSink()</code> creates a new sink.
+     */
+    public static void shutdown() {
+        List<MessageSink> sinks = new ArrayList<MessageSink>();
+        synchronized (MessageSinks.class) {
+            if (instance != null) {
+                sinks.add(instance);
+            }
+            sinks.addAll(closing);
+            closing.clear();
+            instance = null;
+            instanceSettings = null;
+            if (closer != null) {
+                closer.cancel();
+                closer = null;
+            }
+        }
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).close();
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the messages consumed, registered in the
+ * platform MBean server as
+ * <code>uk.co.marcoratto.jmsqueuetofile:type=Metrics,name=&lt;node&gt;-&lt;instance&gt;</code>.
+ * <P>
+ * The latencies measured are:
+ * <BR>- <b>consume</b>: the whole <code>onMessage</code>;
+ * <BR>- <b>open</b>: creation of the target file;
+ * <BR>- <b>write</b>: copy of the body to the target; in <i>journal</i> mode it includes the wait for the segment and the sync;
+ * <BR>- <b>sync</b>: the force required by <b>target.durability</b>;
+ * <BR>- <b>close</b>: close of the target file, and its rename with <b>target.atomic.rename</b>;
+ * <BR>- <b>errorPublish</b>: publication of a failed message to the error queue, or its append to the spool (see <code>ErrorSpool</code>);
+ * <BR>- <b>budgetWait</b>: wait of a large message for <b>inflight.max.bytes</b> (see <code>InFlightBudget</code>);
+ * <BR>- <b>pipelineEnqueue</b>: wait of an MDB instance for room in the buffer of <code>PipelineSink</code>.
+ * <BR>With <b>target.compression</b> the bytes before and after compression and the
+ * CPU time spent compressing are counted too (see <code>Compression</code>).
+ * <BR>Recording is lock-free, so the MDB instances never wait for each other.
+ * @author Marco Ratto
+ */
+public class Metrics implements MetricsMBean {
+
+    private static final String CLASS_NAME = Metrics.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    public static final String DOMAIN = "uk.co.marcoratto.jmsqueuetofile";
+
+    private static final Metrics instance = new Metrics();
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong errorPublishFailures = new AtomicLong();
+    private final AtomicLong compressionIn = new AtomicLong();
+    private final AtomicLong compressionOut = new AtomicLong();
+    private final AtomicLong compressionCpu = new AtomicLong();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+
+    private final LatencyHistogram consume = new LatencyHistogram();
+    private final LatencyHistogram open = new LatencyHistogram();
+    private final LatencyHistogram write = new LatencyHistogram();
+    private final LatencyHistogram sync = new LatencyHistogram();
+    private final LatencyHistogram close = new LatencyHistogram();
+    private final LatencyHistogram errorPublish = new LatencyHistogram();
+    private final LatencyHistogram budgetWait = new LatencyHistogram();
+    private final LatencyHistogram pipelineEnqueue = new LatencyHistogram();
+
+    private volatile String warmUpReport = null;
+
+    private static ObjectName registeredName = null;
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers the MBean, replacing the one left by a previous deployment of
+     * the application; does nothing if it is already registered. Called by
+     * <code>WarmUp</code> and <code>Lifecycle</code>: the name is built from
+     * <code>NodeIdentity</code>, so the MBean is not registered until the
+     * configuration can be loaded, and the next call retries.
+     */
+    public static synchronized void register() {
+        final String METHOD_NAME = "register";
+        if (registeredName != null) {
+            return;
+        }
+        try {
+            Settings.get();
+        } catch (ConfigException e) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Metrics not published through JMX yet: " + e.getMessage(), e);
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":type=Metrics,name="
+                    + ObjectName.quote(NodeIdentity.getNodeId() + "-" + NodeIdentity.getInstanceId()));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(instance, name);
+            registeredName = name;
+            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Registered " + name);
+        } catch (Throwable t) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Metrics not published through JMX: " + t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Unregisters the MBean, which would otherwise keep the classes of the
+     * application loaded after it has been stopped.
+     */
+    public static synchronized void unregister() {
+        final String METHOD_NAME = "unregister";
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Unregistered " + registeredName);
+        } catch (Throwable t) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+        }
+        registeredName = null;
+    }
+
+    /**
+     * Counts a message written to the target.
+     * @param size the bytes written
+     */
+    public void messageWritten(long size) {
+        messages.incrementAndGet();
+        if (size > 0) {
+            bytes.addAndGet(size);
+        }
+    }
+
+    public void messageFailed() {
+        errors.incrementAndGet();
+    }
+
+    public void errorPublishFailed() {
+        errorPublishFailures.incrementAndGet();
+    }
+
+    /**
+     * Counts a file compressed.
+     * @param in the bytes of the body
+     * @param out the bytes written to the file
+     * @param cpuTime the CPU time spent compressing, in nanoseconds
+     */
+    public void compressed(long in, long out, long cpuTime) {
+        compressionIn.addAndGet(in);
+        compressionOut.addAndGet(out);
+        compressionCpu.addAndGet(cpuTime);
+    }
+
+    /**
+     * Adds <code>delta</code> to the bytes reserved by the large messages being processed.
+     * @param delta
+     */
+    public void inFlight(long delta) {
+        inFlightBytes.addAndGet(delta);
+    }
+
+    /**
+     * Publishes the time spent by every step of <code>WarmUp</code>.
+     * @param report
+     */
+    public void setWarmUpReport(String report) {
+        this.warmUpReport = report;
+    }
+
+    public String getWarmUpReport() {
+        return warmUpReport;
+    }
+
+    public LatencyHistogram getConsume() {
+        return consume;
+    }
+
+    public LatencyHistogram getOpen() {
+        return open;
+    }
+
+    public LatencyHistogram getWrite() {
+        return write;
+    }
+
+    public LatencyHistogram getSync() {
+        return sync;
+    }
+
+    public LatencyHistogram getClose() {
+        return close;
+    }
+
+    public LatencyHistogram getErrorPublish() {
+        return errorPublish;
+    }
+
+    public LatencyHistogram getBudgetWait() {
+        return budgetWait;
+    }
+
+    public LatencyHistogram getPipelineEnqueue() {
+        return pipelineEnqueue;
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getErrorPublishFailures() {
+        return errorPublishFailures.get();
+    }
+
+    public long getCompressionIn() {
+        return compressionIn.get();
+    }
+
+    public long getCompressionOut() {
+        return compressionOut.get();
+    }
+
+    public double getCompressionRatio() {
+        long out = compressionOut.get();
+        return (out > 0) ? (double) compressionIn.get() / out : 0;
+    }
+
+    public long getCompressionCpuMillis() {
+        return compressionCpu.get() / 1000000;
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    public long getConsumeP50() {
+        return micros(consume, 50);
+    }
+
+    public long getConsumeP99() {
+        return micros(consume, 99);
+    }
+
+    public long getConsumeP999() {
+        return micros(consume, 99.9);
+    }
+
+    public long getConsumeMax() {
+        return consume.getMax() / 1000;
+    }
+
+    public long getOpenP50() {
+        return micros(open, 50);
+    }
+
+    public long getOpenP99() {
+        return micros(open, 99);
+    }
+
+    public long getOpenP999() {
+        return micros(open, 99.9);
+    }
+
+    public long getWriteP50() {
+        return micros(write, 50);
+    }
+
+    public long getWriteP99() {
+        return micros(write, 99);
+    }
+
+    public long getWriteP999() {
+        return micros(write, 99.9);
+    }
+
+    public long getSyncP50() {
+        return micros(sync, 50);
+    }
+
+    public long getSyncP99() {
+        return micros(sync, 99);
+    }
+
+    public long getSyncP999() {
+        return micros(sync, 99.9);
+    }
+
+    public long getCloseP50() {
+        return micros(close, 50);
+    }
+
+    public long getCloseP99() {
+        return micros(close, 99);
+    }
+
+    public long getCloseP999() {
+        return micros(close, 99.9);
+    }
+
+    public long getErrorPublishP50() {
+        return micros(errorPublish, 50);
+    }
+
+    public long getErrorPublishP99() {
+        return micros(errorPublish, 99);
+    }
+
+    public long getErrorPublishP999() {
+        return micros(errorPublish, 99.9);
+    }
+
+    public long getBudgetWaitP50() {
+        return micros(budgetWait, 50);
+    }
+
+    public long getBudgetWaitP99() {
+        return micros(budgetWait, 99);
+    }
+
+    public long getBudgetWaitP999() {
+        return micros(budgetWait, 99.9);
+    }
+
+    public long getPipelineEnqueueP50() {
+        return micros(pipelineEnqueue, 50);
+    }
+
+    public long getPipelineEnqueueP99() {
+        return micros(pipelineEnqueue, 99);
+    }
+
+    public long getPipelineEnqueueP999() {
+        return micros(pipelineEnqueue, 99.9);
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("messages=").append(getMessages());
+        sb.append("\nbytes=").append(getBytes());
+        sb.append("\nerrors=").append(getErrors());
+        sb.append("\nerrorPublishFailures=").append(getErrorPublishFailures());
+        if (getCompressionIn() > 0) {
+            sb.append("\ncompression: in=").append(getCompressionIn());
+            sb.append(" out=").append(getCompressionOut());
+            sb.append(" ratio=").append(Math.round(getCompressionRatio() * 100) / 100.0);
+            sb.append(" cpu (ms)=").append(getCompressionCpuMillis());
+        }
+        appendLatency(sb, "consume", consume);
+        appendLatency(sb, "open", open);
+        appendLatency(sb, "write", write);
+        appendLatency(sb, "sync", sync);
+        appendLatency(sb, "close", close);
+        appendLatency(sb, "errorPublish", errorPublish);
+        appendLatency(sb, "budgetWait", budgetWait);
+        appendLatency(sb, "pipelineEnqueue", pipelineEnqueue);
+        sb.append("\ninFlightBytes=").append(getInFlightBytes());
+        if (warmUpReport != null) {
+            sb.append("\nwarmUp: ").append(warmUpReport);
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        messages.set(0);
+        bytes.set(0);
+        errors.set(0);
+        errorPublishFailures.set(0);
+        compressionIn.set(0);
+        compressionOut.set(0);
+        compressionCpu.set(0);
+        consume.reset();
+        open.reset();
+        write.reset();
+        sync.reset();
+        close.reset();
+        errorPublish.reset();
+        budgetWait.reset();
+        pipelineEnqueue.reset();
+    }
+
+    private static void appendLatency(StringBuilder sb, String name, LatencyHistogram h) {
+        sb.append('\n').append(name).append(" (us): count=").append(h.getCount());
+        sb.append(" mean=").append(h.getMean() / 1000);
+        sb.append(" p50=").append(micros(h, 50));
+        sb.append(" p99=").append(micros(h, 99));
+        sb.append(" p999=").append(micros(h, 99.9));
+        sb.append(" max=").append(h.getMax() / 1000);
+    }
+
+    private static long micros(LatencyHistogram h, double percentile) {
+        return h.getPercentile(percentile) / 1000;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+/**
+ * Management interface of <code>Metrics</code>, published through JMX.
+ * <P>
+ * Latencies are in microseconds; the percentiles have an error below 6%.
+ * @author Marco Ratto
+ */
+public interface MetricsMBean {
+
+    long getMessages();
+
+    long getBytes();
+
+    long getErrors();
+
+    long getErrorPublishFailures();
+
+    /**
+     * Returns the bytes of the bodies written to compressed files.
+     * @return long
+     */
+    long getCompressionIn();
+
+    /**
+     * Returns the bytes of the compressed files.
+     * @return long
+     */
+    long getCompressionOut();
+
+    /**
+     * Returns <code>getCompressionIn() / getCompressionOut()</code>, 0 before the first compressed file.
+     * @return double
+     */
+    double getCompressionRatio();
+
+    /**
+     * Returns the CPU time spent compressing, in milliseconds, including the threads compressing in parallel.
+     * @return long
+     */
+    long getCompressionCpuMillis();
+
+    /**
+     * Returns the bytes reserved in <b>inflight.max.bytes</b> by the large messages being processed.
+     * @return long
+     */
+    long getInFlightBytes();
+
+    long getConsumeP50();
+
+    long getConsumeP99();
+
+    long getConsumeP999();
+
+    long getConsumeMax();
+
+    long getOpenP50();
+
+    long getOpenP99();
+
+    long getOpenP999();
+
+    long getWriteP50();
+
+    long getWriteP99();
+
+    long getWriteP999();
+
+    long getSyncP50();
+
+    long getSyncP99();
+
+    long getSyncP999();
+
+    long getCloseP50();
+
+    long getCloseP99();
+
+    long getCloseP999();
+
+    long getErrorPublishP50();
+
+    long getErrorPublishP99();
+
+    long getErrorPublishP999();
+
+    long getBudgetWaitP50();
+
+    long getBudgetWaitP99();
+
+    long getBudgetWaitP999();
+
+    long getPipelineEnqueueP50();
+
+    long getPipelineEnqueueP99();
+
+    long getPipelineEnqueueP999();
+
+    /**
+     * Returns the time spent by every step of the warm-up, <code>null</code> if it has not run.
+     * @return String
+     */
+    String getWarmUpReport();
+
+    /**
+     * Returns all the counters and latencies as text, one line per measure.
+     * @return String
+     */
+    String report();
+
+    /**
+     * Clears the counters and the latencies.
+     */
+    void reset();
+}
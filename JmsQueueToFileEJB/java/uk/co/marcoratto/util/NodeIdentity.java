@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Identity of this JVM inside the cluster, used to build file names that
+ * cannot collide even when several cluster members write in the same directory.
+ * <P>
+ * Properties:
+ * <BR>- <b>target.node.id</b>: ID of the node (default the host name);
+ * <BR>- <b>target.instance.id</b>: ID of the JVM on the node (default the process ID).
+ * <BR>The unique names also contain the start time of the JVM, since the
+ * sequence restarts at every start and the instance ID can be fixed or a recycled process ID.
+ * @author Marco Ratto
+ */
+public class NodeIdentity {
+
+    private static final String CLASS_NAME = NodeIdentity.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static volatile String nodeId = null;
+
+    private static volatile String instanceId = null;
+
+    private static volatile String uniquePrefix = null;
+
+    private NodeIdentity() {
+    }
+
+    /**
+     * Returns the next value of the sequence of this JVM.
+     * @return long
+     */
+    public static long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * Returns the ID of the node; <i>localhost</i>, not kept, if neither the
+     * configuration nor the host name can be read, so that the next call retries.
+     * @return String
+     */
+    public static String getNodeId() {
+        final String METHOD_NAME = "getNodeId";
+        if (nodeId == null) {
+            String id = null;
+            try {
+                id = Settings.get().getNodeId();
+                if (id == null) {
+                    id = InetAddress.getLocalHost().getHostName();
+                }
+            } catch (Exception e) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+                return "localhost";
+            }
+            nodeId = toSafeName(id);
+            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "nodeId=" + nodeId);
+        }
+        return nodeId;
+    }
+
+    /**
+     * Returns the ID of the JVM; the process ID, not kept, if the configuration
+     * cannot be read, so that the next call retries.
+     * @return String
+     */
+    public static String getInstanceId() {
+        final String METHOD_NAME = "getInstanceId";
+        if (instanceId == null) {
+            String id = null;
+            boolean configured = true;
+            try {
+                id = Settings.get().getInstanceId();
+            } catch (Exception e) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+                configured = false;
+            }
+            if (id == null) {
+                // "pid@host" on the Sun and IBM JVMs
+                id = ManagementFactory.getRuntimeMXBean().getName();
+                int at = id.indexOf('@');
+                if (at > 0) {
+                    id = id.substring(0, at);
+                }
+            }
+            if (!configured) {
+                return toSafeName(id);
+            }
+            instanceId = toSafeName(id);
+            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "instanceId=" + instanceId);
+        }
+        return instanceId;
+    }
+
+    /**
+     * Appends to <code>sb</code> a name unique in the cluster:
+     * <code>&lt;node ID&gt;-&lt;instance ID&gt;-&lt;start time&gt;-&lt;sequence&gt;</code>,
+     * the start time of the JVM in milliseconds, in base 36.
+     * @param sb
+     */
+    public static void appendUniqueName(StringBuilder sb) {
+        String prefix = uniquePrefix;
+        if (prefix == null) {
+            prefix = getNodeId() + "-" + getInstanceId() + "-"
+                + Long.toString(ManagementFactory.getRuntimeMXBean().getStartTime(), 36) + "-";
+            if (nodeId != null && instanceId != null) {
+                uniquePrefix = prefix;
+            }
+        }
+        sb.append(prefix).append(nextSequence());
+    }
+
+    /**
+     * Replaces every character not in <code>[A-Za-z0-9._-]</code> with <i>_</i>.
+     * @param value
+     * @return String
+     */
+    public static String toSafeName(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        appendSafeName(sb, value);
+        return sb.toString();
+    }
+
+    /**
+     * Appends <code>value</code> to <code>sb</code>, replacing every character
+     * not in <code>[A-Za-z0-9._-]</code> with <i>_</i>. <code>null</code> is ignored.
+     * @param sb
+     * @param value
+     */
+    public static void appendSafeName(StringBuilder sb, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '_' || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+    }
+}
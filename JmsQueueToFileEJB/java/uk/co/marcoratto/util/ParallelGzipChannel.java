@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Cuts the data written in blocks and compresses every block as an
+ * independent gzip member on the threads of <code>Compression</code>,
+ * writing the members to the file in the order of the blocks.
+ * <P>
+ * The thread writing the message fills the next block while the previous
+ * ones are compressed, and waits for the oldest member when
+ * <code>maxPending</code> blocks are in progress. The arrays of the blocks
+ * and of the members are reused for the whole message.
+ * @author Marco Ratto
+ */
+public class ParallelGzipChannel extends CompressedChannel {
+
+    private final ExecutorService executor;
+
+    private final int level;
+
+    private final int blockSize;
+
+    private final int maxPending;
+
+    private final LinkedList<Future<Member>> pending = new LinkedList<Future<Member>>();
+
+    private final List<byte[]> freeBlocks = new ArrayList<byte[]>();
+
+    private final List<byte[]> freeMembers = new ArrayList<byte[]>();
+
+    private byte[] block = null;
+
+    private int blockLength = 0;
+
+    private boolean submitted = false;
+
+    /**
+     * @param target the channel of the file
+     * @param executor the threads compressing the blocks
+     * @param level the compression level
+     * @param blockSize the uncompressed size of a member
+     * @param maxPending the blocks compressed at the same time, at most
+     */
+    public ParallelGzipChannel(WritableByteChannel target, ExecutorService executor, int level, int blockSize, int maxPending) {
+        super(target);
+        this.executor = executor;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxPending = maxPending;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            if (block == null) {
+                block = take(freeBlocks, blockSize);
+                blockLength = 0;
+            }
+            int n = Math.min(src.remaining(), blockSize - blockLength);
+            src.get(block, blockLength, n);
+            blockLength += n;
+            if (blockLength == blockSize) {
+                submit();
+            }
+        }
+        uncompressedSize += length;
+        return length;
+    }
+
+    protected void complete() throws IOException {
+        if (block != null || !submitted) {
+            if (block == null) {
+                block = take(freeBlocks, 0);
+                blockLength = 0;
+            }
+            submit();
+        }
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+    }
+
+    /**
+     * Abandons the blocks still in progress.
+     */
+    public void close() throws IOException {
+        if (isOpen()) {
+            super.close();
+            while (!pending.isEmpty()) {
+                pending.removeFirst().cancel(false);
+            }
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] member = take(freeMembers, maxMemberSize(blockSize));
+        block = null;
+        blockLength = 0;
+        submitted = true;
+        Callable<Member> task = new Callable<Member>() {
+            public Member call() {
+                return compress(data, length, member, level);
+            }
+        };
+        Future<Member> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            // the configuration has been reloaded and the threads are stopping
+            FutureTask<Member> inline = new FutureTask<Member>(task);
+            inline.run();
+            future = inline;
+        }
+        pending.addLast(future);
+        while (pending.size() > maxPending) {
+            writeOldest();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        Member member;
+        try {
+            member = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a compressed block");
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("Compression of a block failed: " + e.getCause());
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+        cpuTime += member.cpuTime;
+        writeTarget(ByteBuffer.wrap(member.output, 0, member.outputLength));
+        freeBlocks.add(member.input);
+        freeMembers.add(member.output);
+    }
+
+    private static byte[] take(List<byte[]> free, int size) {
+        return free.isEmpty() ? new byte[size] : free.remove(free.size() - 1);
+    }
+
+    /**
+     * Returns the largest gzip member of a block of <code>length</code> bytes,
+     * that is the bound of zlib for incompressible data plus the gzip header and trailer.
+     */
+    static int maxMemberSize(int length) {
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13
+            + DeflaterChannel.GZIP_HEADER.length + 8;
+    }
+
+    /**
+     * Compresses <code>length</code> bytes of <code>input</code> into a gzip member.
+     * @param output large enough for the member (see <code>maxMemberSize</code>), replaced if it is not
+     */
+    static Member compress(byte[] input, int length, byte[] output, int level) {
+        long cpuStart = Compression.cpuTime();
+        Deflater deflater = Compression.getDeflater(level, true);
+        CRC32 crc = new CRC32();
+        crc.update(input, 0, length);
+        System.arraycopy(DeflaterChannel.GZIP_HEADER, 0, output, 0, DeflaterChannel.GZIP_HEADER.length);
+        int position = DeflaterChannel.GZIP_HEADER.length;
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (position + 8 >= output.length) {
+                byte[] larger = new byte[output.length * 2];
+                System.arraycopy(output, 0, larger, 0, position);
+                output = larger;
+            }
+            position += deflater.deflate(output, position, output.length - 8 - position);
+        }
+        deflater.reset();
+        ByteBuffer trailer = ByteBuffer.wrap(output, position, 8);
+        DeflaterChannel.putTrailer(trailer, crc.getValue(), length);
+        return new Member(input, output, position + 8, Compression.cpuTime() - cpuStart);
+    }
+
+    /**
+     * A compressed block, with the arrays to reuse.
+     */
+    static class Member {
+
+        final byte[] input;
+
+        final byte[] output;
+
+        final int outputLength;
+
+        final long cpuTime;
+
+        Member(byte[] input, byte[] output, int outputLength, long cpuTime) {
+            this.input = input;
+            this.output = output;
+            this.outputLength = outputLength;
+            this.cpuTime = cpuTime;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+/**
+ * A message stored by <code>BatchSink.writePending</code> whose commit is
+ * still to be done. The sink extends it with what it needs to complete the write.
+ * @author Marco Ratto
+ */
+public class PendingWrite {
+
+    private WriteResult result = null;
+
+    private UtilityException failure = null;
+
+    /**
+     * Records the outcome of the write; called by <code>BatchSink.commit</code>.
+     * @param result
+     * @param failure
+     */
+    protected void complete(WriteResult result, UtilityException failure) {
+        this.result = result;
+        this.failure = failure;
+    }
+
+    /**
+     * Returns where the message has been stored, once committed.
+     * @return WriteResult
+     * @throws UtilityException if the message could not be stored or made durable
+     */
+    public WriteResult getResult() throws UtilityException {
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Hands the messages to a small pool of writer threads, instead of letting
+ * every MDB instance write its own file.
+ * <P>
+ * Properties:
+ * <BR>- <b>target.pipeline.writers</b>: threads writing to the target (default 0, no pipeline);
+ * <BR>- <b>target.pipeline.capacity</b>: messages waiting for a writer, at most (default 256);
+ * <BR>- <b>target.pipeline.batch.size</b>: messages taken by a writer at a time (default 32).
+ * <P>
+ * The MDB instance puts the message in a bounded ring buffer and waits until
+ * a writer has stored it through the sink selected by <b>target.mode</b>,
+ * including the force required by <b>target.durability</b>; only then does
+ * <code>onMessage</code> return, so the message is acknowledged or its
+ * transaction committed after the write is durable. When the buffer is full
+ * the MDB instances wait for room, which slows the delivery down to the pace
+ * of the disk.
+ * <P>
+ * A writer first writes all the messages of its batch, then makes them
+ * durable with one commit of <b>target.durability</b> (see <code>BatchSink</code>)
+ * and only then signals them: with <i>group-commit</i> the whole batch, and
+ * the batches of the other writers at the same time, share one round of
+ * forces. A latency spike of the disk stalls the writers only, and at most
+ * <b>target.pipeline.writers</b> threads access the disk at the same time.
+ * <P>
+ * A JMS session, and the messages it delivers, must be used by one thread
+ * only, and on WAS the writers run outside the transaction of the MDB: so
+ * the MDB instance queues a read-only copy of the message, taken on its own
+ * thread (see <code>DetachedMessage</code>), and the writers never touch
+ * the session or the transaction. Copying a large message
+ * (<b>inflight.threshold</b>) would double the heap it holds, so it is
+ * written by the MDB instance itself, as are the messages that are neither
+ * a <code>BytesMessage</code> nor a <code>TextMessage</code>.
+ * <P>
+ * An interrupted writer stops the pipeline as <code>close()</code> does: the
+ * messages already queued are written and the next ones are written by the
+ * MDB instances.
+ * @author Marco Ratto
+ */
+public class PipelineSink implements MessageSink {
+
+    private static final String CLASS_NAME = PipelineSink.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static final long POLL_INTERVAL = 1000;
+
+    private final MessageSink sink;
+
+    private final BlockingQueue<Request> queue;
+
+    private final int batchSize;
+
+    private final Thread[] writers;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the writers.
+     * @param sink the sink writing the messages
+     * @param writerCount
+     * @param capacity
+     * @param batchSize
+     */
+    public PipelineSink(MessageSink sink, int writerCount, int capacity, int batchSize) {
+        final String METHOD_NAME = "Constructor";
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<Request>(capacity);
+        this.batchSize = batchSize;
+        this.writers = new Thread[writerCount];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(CLASS_NAME + "-" + (i + 1)) {
+                public void run() {
+                    drain();
+                }
+            };
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "target.pipeline.writers=" + writerCount
+            + ", target.pipeline.capacity=" + capacity + ", target.pipeline.batch.size=" + batchSize);
+    }
+
+    /**
+     * Queues the message and waits until a writer has stored it.
+     * After <code>close()</code> the message is written by the calling thread.
+     */
+    public WriteResult write(Message msg) throws UtilityException {
+        if (closed) {
+            return sink.write(msg);
+        }
+        Message copy;
+        try {
+            copy = InFlightBudget.getInstance().isLarge(InFlightBudget.sizeOf(msg)) ? null : DetachedMessage.copyOf(msg);
+        } catch (JMSException e) {
+            throw new UtilityException(e.getMessage(), e);
+        } catch (ConfigException e) {
+            throw new UtilityException(e.getMessage(), e);
+        }
+        if (copy == null) {
+            return sink.write(msg);
+        }
+        Request request = new Request(copy);
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        // the message must not be dropped, so the waits are not interruptible
+        while (true) {
+            try {
+                queue.put(request);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        Metrics.getInstance().getPipelineEnqueue().recordSince(start);
+        try {
+            if (closed && queue.remove(request)) {
+                // the writers may have stopped before the message was queued
+                return sink.write(copy);
+            }
+            return request.await();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Loop of a writer: takes up to <code>batchSize</code> messages at a time
+     * and writes them, until the sink is closed and the buffer is empty.
+     */
+    private void drain() {
+        final String METHOD_NAME = "drain";
+        List<Request> batch = new ArrayList<Request>(batchSize);
+        while (true) {
+            try {
+                Request first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+            } catch (InterruptedException e) {
+                if (!closed) {
+                    logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, Thread.currentThread().getName() + " interrupted, stopping the pipeline");
+                    closed = true;
+                }
+                // drain what is already queued before leaving
+                continue;
+            }
+            if (sink instanceof BatchSink) {
+                writeBatch((BatchSink) sink, batch);
+            } else {
+                for (int i = 0; i < batch.size(); i++) {
+                    Request request = batch.get(i);
+                    try {
+                        request.complete(sink.write(request.msg), null);
+                    } catch (UtilityException e) {
+                        request.complete(null, e);
+                    } catch (Throwable t) {
+                        logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+                        request.complete(null, new UtilityException(t.getMessage(), t));
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes all the messages of the batch, commits them at once, then
+     * signals each message.
+     */
+    private static void writeBatch(BatchSink sink, List<Request> batch) {
+        final String METHOD_NAME = "writeBatch";
+        List<PendingWrite> writes = new ArrayList<PendingWrite>(batch.size());
+        List<Request> written = new ArrayList<Request>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Request request = batch.get(i);
+            try {
+                writes.add(sink.writePending(request.msg));
+                written.add(request);
+            } catch (UtilityException e) {
+                request.complete(null, e);
+            } catch (Throwable t) {
+                logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+                request.complete(null, new UtilityException(t.getMessage(), t));
+            }
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
+        try {
+            sink.commit(writes);
+        } catch (Throwable t) {
+            logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, t.getMessage(), t);
+            for (int i = 0; i < written.size(); i++) {
+                written.get(i).complete(null, new UtilityException(t.getMessage(), t));
+            }
+            return;
+        }
+        for (int i = 0; i < written.size(); i++) {
+            try {
+                written.get(i).complete(writes.get(i).getResult(), null);
+            } catch (UtilityException e) {
+                written.get(i).complete(null, e);
+            }
+        }
+    }
+
+    /**
+     * Lets the writers store the messages already queued, then closes the sink.
+     */
+    public void close() {
+        final String METHOD_NAME = "close";
+        closed = true;
+        for (int i = 0; i < writers.length; i++) {
+            try {
+                writers[i].join();
+            } catch (InterruptedException e) {
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Interrupted while waiting for " + writers[i].getName());
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        sink.close();
+    }
+
+    /**
+     * A message waiting to be written, and the outcome signalled to the MDB instance.
+     */
+    private static class Request {
+
+        final Message msg;
+
+        private boolean done = false;
+
+        private WriteResult result;
+
+        private UtilityException failure;
+
+        Request(Message msg) {
+            this.msg = msg;
+        }
+
+        synchronized void complete(WriteResult result, UtilityException failure) {
+            this.result = result;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized WriteResult await() throws UtilityException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+    }
+}
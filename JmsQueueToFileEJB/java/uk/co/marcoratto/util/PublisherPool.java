@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueSender;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+
+/**
+ * Bounded pool of the sessions and senders used by <code>MessagePublisher</code>,
+ * so that a burst of failed messages does not open and close a connection,
+ * a session and a sender for each one.
+ * <P>
+ * The pool is used only by the standalone consumer: inside the EJB container
+ * the connection factory is managed and already pools the sessions, which
+ * must not be kept across the container transactions, so <code>getInstance()</code>
+ * returns <code>null</code> (see <code>Lifecycle</code>) and <code>MessagePublisher</code>
+ * only keeps the connection open.
+ * <P>
+ * The sessions share one <code>QueueConnection</code> and are kept idle per
+ * destination, each with its own sender. Properties:
+ * <BR>- <b>publisher.pool.size</b>: maximum number of sessions in use or idle (default 8, 0 disables the pool);
+ * <BR>- <b>publisher.pool.idle.timeout</b>: milliseconds after which an idle session is closed, and the connection with the last one (default 60000);
+ * <BR>- <b>publisher.pool.wait</b>: milliseconds a publisher waits for a session when all are in use (default 5000).
+ * <P>
+ * A session is checked before being lent and discarded if a send through it
+ * fails. When the provider reports a broken connection through its
+ * <code>ExceptionListener</code> the connection and all its sessions are
+ * dropped; inside an EJB container the listener cannot be set, and a broken
+ * connection is found when its sessions fail.
+ * @author Marco Ratto
+ */
+public class PublisherPool {
+
+    private static final String CLASS_NAME = PublisherPool.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static volatile PublisherPool instance = null;
+
+    private static volatile Settings instanceSettings = null;
+
+    private final long idleTimeout;
+
+    private final long wait;
+
+    private final Semaphore permits;
+
+    // guarded by this
+    private final Map<String, LinkedList<PooledSender>> idle = new HashMap<String, LinkedList<PooledSender>>();
+
+    // guarded by this
+    private PooledConnection current = null;
+
+    // guarded by this
+    private boolean closed = false;
+
+    private final Timer evictor;
+
+    /**
+     * Returns the pool configured by the current <code>Settings</code>,
+     * <code>null</code> if <b>publisher.pool.size</b> is 0 or inside the EJB container.
+     * @return PublisherPool
+     * @throws ConfigException
+     */
+    public static PublisherPool getInstance() throws ConfigException {
+        if (Lifecycle.isContainerManaged()) {
+            return null;
+        }
+        Settings settings = Settings.get();
+        if (instanceSettings != settings) {
+            synchronized (PublisherPool.class) {
+                if (instanceSettings == null || (instanceSettings != settings && !instanceSettings.samePublisherPool(settings))) {
+                    PublisherPool old = instance;
+                    instance = (settings.getPublisherPoolSize() > 0)
+                        ? new PublisherPool(settings.getPublisherPoolSize(), settings.getPublisherPoolIdleTimeout(), settings.getPublisherPoolWait())
+                        : null;
+                    if (old != null) {
+                        old.close();
+                    }
+                }
+                instanceSettings = settings;
+            }
+        }
+        return instance;
+    }
+
+    public PublisherPool(int size, long idleTimeout, long wait) {
+        final String METHOD_NAME = "Constructor";
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "publisher.pool.size=" + size + ", publisher.pool.idle.timeout=" + idleTimeout + ", publisher.pool.wait=" + wait);
+        this.idleTimeout = idleTimeout;
+        this.wait = wait;
+        this.permits = new Semaphore(size, true);
+        this.evictor = new Timer(CLASS_NAME, true);
+        long period = Math.max(idleTimeout / 2, 1000);
+        this.evictor.schedule(new TimerTask() {
+            public void run() {
+                evict();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Closes the pool in use; the next <code>getInstance()</code> creates a new one.
+     */
+    public static void shutdown() {
+        PublisherPool old;
+        synchronized (PublisherPool.class) {
+            old = instance;
+            instance = null;
+            instanceSettings = null;
+        }
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Lends a session with a sender to <code>queue</code>, waiting up to
+     * <b>publisher.pool.wait</b> milliseconds if all the sessions are in use.
+     * The session must be given back through <code>release</code>.
+     * @param queue
+     * @return PooledSender
+     * @throws JMSException if no session is available or it cannot be created
+     */
+    public PooledSender borrow(Queue queue) throws JMSException {
+        final String METHOD_NAME = "borrow";
+        try {
+            if (!permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                throw new JMSException("No JMS session available after " + wait + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted waiting for a JMS session");
+        }
+        boolean lent = false;
+        try {
+            String key = queue.getQueueName();
+            PooledSender ps;
+            while ((ps = takeIdle(key)) != null) {
+                if (isHealthy(ps)) {
+                    lent = true;
+                    return ps;
+                }
+                logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Discard session to " + key);
+                destroy(ps);
+            }
+            ps = create(queue, key);
+            lent = true;
+            return ps;
+        } finally {
+            if (!lent) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Gives back a session lent by <code>borrow</code>.
+     * @param ps
+     * @param healthy <code>false</code> if the use of the session has failed, so that it is closed instead of reused
+     */
+    public void release(PooledSender ps, boolean healthy) {
+        try {
+            synchronized (this) {
+                if (healthy && !closed && !ps.connection.retired) {
+                    ps.lastUsed = System.currentTimeMillis();
+                    LinkedList<PooledSender> list = idle.get(ps.key);
+                    if (list == null) {
+                        list = new LinkedList<PooledSender>();
+                        idle.put(ps.key, list);
+                    }
+                    // the most recently used first, the idle ones age at the end
+                    list.addFirst(ps);
+                    return;
+                }
+            }
+            destroy(ps);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the idle sessions and the connection; the sessions in use are closed when given back.
+     */
+    public void close() {
+        List<PooledSender> drop = new ArrayList<PooledSender>();
+        synchronized (this) {
+            closed = true;
+            for (LinkedList<PooledSender> list : idle.values()) {
+                drop.addAll(list);
+            }
+            idle.clear();
+            if (current != null) {
+                current.retired = true;
+                current = null;
+            }
+        }
+        evictor.cancel();
+        for (PooledSender ps : drop) {
+            destroy(ps);
+        }
+    }
+
+    private synchronized PooledSender takeIdle(String key) {
+        LinkedList<PooledSender> list = idle.get(key);
+        return (list == null || list.isEmpty()) ? null : list.removeFirst();
+    }
+
+    private boolean isHealthy(PooledSender ps) {
+        if (ps.connection.retired || System.currentTimeMillis() - ps.lastUsed >= idleTimeout) {
+            return false;
+        }
+        try {
+            // fails on a closed session
+            ps.session.getTransacted();
+            return true;
+        } catch (JMSException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private PooledSender create(Queue queue, String key) throws JMSException {
+        final String METHOD_NAME = "create";
+        PooledConnection pc = acquireConnection();
+        QueueSession session = null;
+        QueueSender sender = null;
+        try {
+            session = pc.queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+            sender = session.createSender(queue);
+            logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Created session to " + key);
+            return new PooledSender(pc, session, sender, key);
+        } catch (JMSException e) {
+            // the connection is likely broken: the next session opens a new one
+            QueueUtils.closeQuietly(null, session, sender);
+            retire(pc, true);
+            releaseConnection(pc);
+            throw e;
+        }
+    }
+
+    private synchronized PooledConnection acquireConnection() throws JMSException {
+        final String METHOD_NAME = "acquireConnection";
+        if (closed) {
+            throw new JMSException("The publisher pool is closed");
+        }
+        if (current == null) {
+            QueueConnection conn = EtmQueueConnection.getQueueConnection();
+            final PooledConnection pc = new PooledConnection(conn);
+            try {
+                conn.setExceptionListener(new ExceptionListener() {
+                    public void onException(JMSException e) {
+                        logger.logp(Level.WARNING, CLASS_NAME, "onException", "JMS connection broken: " + e.getMessage(), e);
+                        retire(pc, true);
+                    }
+                });
+            } catch (JMSException e) {
+                logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "ExceptionListener not supported: " + e.getMessage());
+            } catch (RuntimeException e) {
+                logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "ExceptionListener not supported: " + e.getMessage());
+            }
+            current = pc;
+        }
+        current.sessions++;
+        return current;
+    }
+
+    private void destroy(PooledSender ps) {
+        QueueUtils.closeQuietly(null, ps.session, ps.sender);
+        releaseConnection(ps.connection);
+    }
+
+    private void releaseConnection(PooledConnection pc) {
+        boolean close;
+        synchronized (this) {
+            pc.sessions--;
+            close = pc.retired && pc.sessions == 0 && !pc.closed;
+            if (close) {
+                pc.closed = true;
+            }
+        }
+        if (close) {
+            QueueUtils.closeQuietly(pc.queueConnection, null, null);
+        }
+    }
+
+    /**
+     * Stops lending the sessions of <code>pc</code> and closes the idle ones.
+     * @param broken <code>true</code> to close the connection at once, failing the sessions in use
+     */
+    private void retire(PooledConnection pc, boolean broken) {
+        List<PooledSender> drop = new ArrayList<PooledSender>();
+        boolean close;
+        synchronized (this) {
+            pc.retired = true;
+            if (current == pc) {
+                current = null;
+            }
+            for (LinkedList<PooledSender> list : idle.values()) {
+                for (Iterator<PooledSender> i = list.iterator(); i.hasNext();) {
+                    PooledSender ps = i.next();
+                    if (ps.connection == pc) {
+                        drop.add(ps);
+                        i.remove();
+                    }
+                }
+            }
+            close = broken && !pc.closed;
+            if (close) {
+                pc.closed = true;
+            }
+        }
+        if (close) {
+            QueueUtils.closeQuietly(pc.queueConnection, null, null);
+        }
+        for (PooledSender ps : drop) {
+            destroy(ps);
+        }
+    }
+
+    private void evict() {
+        final String METHOD_NAME = "evict";
+        long now = System.currentTimeMillis();
+        List<PooledSender> drop = new ArrayList<PooledSender>();
+        PooledConnection unused = null;
+        synchronized (this) {
+            int dropCurrent = 0;
+            for (Iterator<LinkedList<PooledSender>> i = idle.values().iterator(); i.hasNext();) {
+                LinkedList<PooledSender> list = i.next();
+                while (!list.isEmpty() && now - list.getLast().lastUsed >= idleTimeout) {
+                    PooledSender ps = list.removeLast();
+                    if (ps.connection == current) {
+                        dropCurrent++;
+                    }
+                    drop.add(ps);
+                }
+                if (list.isEmpty()) {
+                    i.remove();
+                }
+            }
+            if (current != null && current.sessions == dropCurrent) {
+                // no session left in use: the connection goes with the last ones
+                unused = current;
+            }
+        }
+        if (!drop.isEmpty()) {
+            logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Close " + drop.size() + " idle sessions");
+        }
+        for (PooledSender ps : drop) {
+            destroy(ps);
+        }
+        if (unused != null) {
+            retire(unused, false);
+            synchronized (this) {
+                if (unused.sessions == 0 && !unused.closed) {
+                    unused.closed = true;
+                } else {
+                    unused = null;
+                }
+            }
+            if (unused != null) {
+                QueueUtils.closeQuietly(unused.queueConnection, null, null);
+            }
+        }
+    }
+
+    private static class PooledConnection {
+        final QueueConnection queueConnection;
+        int sessions = 0;
+        boolean retired = false;
+        boolean closed = false;
+
+        PooledConnection(QueueConnection queueConnection) {
+            this.queueConnection = queueConnection;
+        }
+    }
+
+    /**
+     * A session with its sender, lent by <code>PublisherPool</code>.
+     */
+    public static class PooledSender {
+        private final PooledConnection connection;
+        private final QueueSession session;
+        private final QueueSender sender;
+        private final String key;
+        private long lastUsed;
+
+        PooledSender(PooledConnection connection, QueueSession session, QueueSender sender, String key) {
+            this.connection = connection;
+            this.session = session;
+            this.sender = sender;
+            this.key = key;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public QueueSession getSession() {
+            return session;
+        }
+
+        public QueueSender getSender() {
+            return sender;
+        }
+    }
+}
@@ -20,6 +20,13 @@
 package uk.co.marcoratto.util;
 
 import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.ejb.EJBHome;
 import javax.ejb.EJBLocalHome;
@@ -32,54 +39,100 @@ import javax.naming.NamingException;
 import javax.rmi.PortableRemoteObject;
 import javax.sql.DataSource;
 
+/**
+ * Looks up the resources in JNDI and caches them, so that the processing of
+ * a message does not go to the naming service.
+ * <P>
+ * The cache is read without locks by all the MDB instances:
+ * <BR>- a resource found is looked up again after <b>jndi.cache.ttl</b> milliseconds;
+ * if the naming service fails then, the old one is kept until the next attempt;
+ * <BR>- a failed lookup is not retried for <b>jndi.cache.negative.ttl</b>
+ * milliseconds, doubled at each consecutive failure up to <b>jndi.cache.negative.max</b>,
+ * so that an outage of the naming service does not cost a lookup per message;
+ * <BR>- <code>invalidate</code> drops a resource found to be stale, e.g. a
+ * connection factory that can no longer create connections.
+ * <BR>These properties are read from <code>Settings</code> once loaded;
+ * until then, i.e. while looking up the properties file itself, the defaults apply.
+ * <P>
+ * A <code>Context</code> is not required to be thread-safe, so every thread
+ * looks up through its own <code>InitialContext</code>, without a lock held
+ * across the round trip to the naming service; the threads missing the same
+ * name at the same time wait for the lookup of the first one.
+ */
 public class ServiceLocator {
 
-    private Context ivContext;
+    private static final String CLASS_NAME = ServiceLocator.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static final long DEFAULT_TTL = 300000;
+    private static final long DEFAULT_NEGATIVE_TTL = 1000;
+    private static final long DEFAULT_NEGATIVE_MAX = 60000;
+
+    private final ThreadLocal<Context> ivContext = new ThreadLocal<Context>();
 
-    private static ServiceLocator cvInstance;
+    private static volatile ServiceLocator cvInstance;
+
+    private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+
+    private final ConcurrentMap<String, FutureTask<Object>> lookups = new ConcurrentHashMap<String, FutureTask<Object>>();
 
     protected ServiceLocator() {
     }
 
     public static ServiceLocator getInstance() throws ServiceLocatorException {
         if (cvInstance == null) {
-            cvInstance = new ServiceLocator();
+            synchronized (ServiceLocator.class) {
+                if (cvInstance == null) {
+                    cvInstance = new ServiceLocator();
+                }
+            }
         }
         return cvInstance;
     }
 
     public EJBLocalHome getLocalHome(String ejbReferenceName) throws ServiceLocatorException {
-        return (EJBLocalHome) lookupService(ejbReferenceName, getInitialContext());
+        return (EJBLocalHome) lookupService(ejbReferenceName);
     }
 
     public EJBHome getRemoteHome(String ejbReferenceName, Class homeClass) throws ServiceLocatorException {
-        Object objref = lookupService(ejbReferenceName, getInitialContext());
+        Object objref = lookupService(ejbReferenceName);
         Object obj = PortableRemoteObject.narrow(objref, homeClass);
         return (EJBHome) obj;
     }
 
     public QueueConnectionFactory getQueueConnectionFactory(String connectionFactoryName) throws ServiceLocatorException {
-        return (QueueConnectionFactory) lookupService(connectionFactoryName, getInitialContext());
+        return (QueueConnectionFactory) lookupService(connectionFactoryName);
     }
 
     public Queue getQueue(String queueName) throws ServiceLocatorException {
-        return (Queue) lookupService(queueName, getInitialContext(), false);
+        return (Queue) lookupService(queueName, false);
     }
 
     public Session getMailSession(String sessionName) throws ServiceLocatorException {
-        return (Session) lookupService(sessionName, getInitialContext());
+        return (Session) lookupService(sessionName);
     }
 
     public URL getResourceURL(String urlName) throws ServiceLocatorException {
-        return (URL) lookupService(urlName, getInitialContext());
+        return (URL) lookupService(urlName);
     }
 
     public String getResourceString(String name) throws ServiceLocatorException {
-        return (String) lookupService(name, getInitialContext());
+        return (String) lookupService(name);
     }
     
     public DataSource getDataSource(String jndiName) throws ServiceLocatorException {
-        return (DataSource) lookupService(jndiName, getInitialContext());
+        return (DataSource) lookupService(jndiName);
+    }
+
+    /**
+     * Drops the cached resource, so that the next request looks it up again.
+     * @param referenceName the name used to look it up
+     */
+    public void invalidate(String referenceName) {
+        final String METHOD_NAME = "invalidate";
+        if (cache.remove(referenceName) != null || cache.remove(getNamespace() + referenceName) != null) {
+            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Invalidated " + referenceName);
+        }
     }
     
     protected String getNamespace() {
@@ -91,31 +144,140 @@ public class ServiceLocator {
     //
 
     private Context getInitialContext() throws ServiceLocatorException {
-        if (ivContext == null) {
+        Context context = ivContext.get();
+        if (context == null) {
             try {
-                ivContext = new InitialContext();
+                context = new InitialContext();
+                ivContext.set(context);
             } catch (NamingException e) {
                 throw new ServiceLocatorException(e);
             }
         }
-        return ivContext;
+        return context;
     }
 
-    private Object lookupService(String referenceName, Context context, boolean nameSpace) throws ServiceLocatorException {
+    private Object lookupService(String referenceName, boolean nameSpace) throws ServiceLocatorException {
+        final String METHOD_NAME = "lookupService";
         if (referenceName == null) {
             throw new IllegalArgumentException("The service reference name cannot be null");
         }
+        String name = ((nameSpace) ? getNamespace() : "") + referenceName;
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(name);
+        if (entry != null && now < entry.expires) {
+            if (entry.failure != null) {
+                throw new ServiceLocatorException(entry.failure.getMessage() + ", next lookup in " + (entry.expires - now) + " ms", entry.failure.getCause());
+            }
+            return entry.value;
+        }
+
+        Settings settings = Settings.getCurrent();
         try {
-        	String prefix = (nameSpace)?getNamespace():"";
-            return context.lookup( prefix + referenceName);
-        } catch (NamingException e) {
-            ivContext = null;
-            throw new ServiceLocatorException("Unabe to lookup service " + referenceName, e);
+            Object value = lookup(name);
+            long ttl = (settings != null) ? settings.getJndiCacheTtl() : DEFAULT_TTL;
+            update(name, entry, new CacheEntry(value, null, (ttl > 0) ? now + ttl : Long.MAX_VALUE, 0));
+            return value;
+        } catch (ServiceLocatorException e) {
+            int failures = (entry != null) ? entry.failures + 1 : 1;
+            long expires = now + backoff(settings, failures);
+            if (entry != null && entry.value != null) {
+                // the resource is likely still valid: keep it while the naming service is unavailable
+                logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Keeping cached " + name + ": " + e.getMessage());
+                update(name, entry, new CacheEntry(entry.value, null, expires, failures));
+                return entry.value;
+            }
+            update(name, entry, new CacheEntry(null, e, expires, failures));
+            throw e;
         }
     }
-    
-    private Object lookupService(String referenceName, Context context) throws ServiceLocatorException {
-        return lookupService(referenceName, context, false);
+
+    /**
+     * Replaces <code>old</code>, the entry found before the lookup, unless
+     * another thread has updated it meanwhile.
+     */
+    private void update(String name, CacheEntry old, CacheEntry entry) {
+        if (old == null) {
+            cache.putIfAbsent(name, entry);
+        } else {
+            cache.replace(name, old, entry);
+        }
     }
     
+    private Object lookupService(String referenceName) throws ServiceLocatorException {
+        return lookupService(referenceName, false);
+    }
+
+    /**
+     * Looks <code>name</code> up in the naming service; if another thread is
+     * already looking it up, waits for its outcome instead.
+     */
+    private Object lookup(final String name) throws ServiceLocatorException {
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            public Object call() throws ServiceLocatorException {
+                return lookupContext(name);
+            }
+        });
+        FutureTask<Object> running = lookups.putIfAbsent(name, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                lookups.remove(name, task);
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return running.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceLocatorException) {
+                throw (ServiceLocatorException) e.getCause();
+            }
+            throw new ServiceLocatorException("Unabe to lookup service " + name, e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Object lookupContext(String name) throws ServiceLocatorException {
+        Context context = getInitialContext();
+        try {
+            return context.lookup(name);
+        } catch (NamingException e) {
+            ivContext.remove();
+            throw new ServiceLocatorException("Unabe to lookup service " + name, e);
+        }
+    }
+
+    private static long backoff(Settings settings, int failures) {
+        long base = (settings != null) ? settings.getJndiCacheNegativeTtl() : DEFAULT_NEGATIVE_TTL;
+        long max = (settings != null) ? settings.getJndiCacheNegativeMax() : DEFAULT_NEGATIVE_MAX;
+        long backoff = base;
+        for (int i = 1; i < failures && backoff < max; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, max);
+    }
+
+    private static class CacheEntry {
+        final Object value;
+        final ServiceLocatorException failure;
+        final long expires;
+        final int failures;
+
+        CacheEntry(Object value, ServiceLocatorException failure, long expires, int failures) {
+            this.value = value;
+            this.failure = failure;
+            this.expires = expires;
+            this.failures = failures;
+        }
+    }
 }
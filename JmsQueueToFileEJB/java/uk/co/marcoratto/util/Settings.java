@@ -0,0 +1,755 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Immutable, typed snapshot of the properties read by <code>Config</code>.
+ * <P>
+ * The properties are parsed and validated once, when the snapshot is built,
+ * so that the processing of a message reads plain fields instead of looking
+ * up and parsing strings. The snapshot in use is published through a
+ * <code>volatile</code> reference and returned by <code>get()</code>, and
+ * replaced by <code>ConfigReloader</code> when the properties file changes.
+ * <BR><b>target.node.id</b> and <b>target.instance.id</b> are read once and
+ * need a restart to change.
+ * @author Marco Ratto
+ */
+public class Settings {
+
+    private static final String CLASS_NAME = Settings.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static volatile Settings current = null;
+
+    private final String mode;
+    private final String pathname;
+    private final FilenameTemplate pathnameTemplate;
+    private final boolean createDir;
+    private final long createDirAhead;
+    private final boolean overwriteFile;
+    private final String journalDir;
+    private final String journalPrefix;
+    private final long journalRollSize;
+    private final int journalRollCount;
+    private final long journalRollAge;
+    private final String durability;
+    private final long durabilityInterval;
+    private final Charset charset;
+    private final String charsetProperty;
+    private final String nodeId;
+    private final String instanceId;
+    private final int bufferSize;
+    private final long mmapThreshold;
+    private final int shardLevels;
+    private final int shardFanout;
+    private final String shardKey;
+    private final boolean atomicRename;
+    private final FilenameTemplate manifestTemplate;
+    private final int manifestBufferSize;
+    private final int pipelineWriters;
+    private final int pipelineCapacity;
+    private final int pipelineBatchSize;
+    private final String compression;
+    private final int compressionLevel;
+    private final long compressionThreshold;
+    private final int compressionBlockSize;
+    private final int compressionThreads;
+    private final long reloadInterval;
+    private final FilenameTemplate auditTemplate;
+    private final int auditBufferSize;
+    private final int logSampleRate;
+    private final int publisherPoolSize;
+    private final long publisherPoolIdleTimeout;
+    private final long publisherPoolWait;
+    private final String errorSpoolDir;
+    private final int errorSpoolBatchSize;
+    private final long errorSpoolRetryInterval;
+    private final long jndiCacheTtl;
+    private final long jndiCacheNegativeTtl;
+    private final long jndiCacheNegativeMax;
+    private final long inFlightMaxBytes;
+    private final long inFlightThreshold;
+
+    /**
+     * Returns the snapshot in use, built from <code>Config</code> the first time.
+     * @return Settings
+     * @throws ConfigException if the properties are not valid
+     */
+    public static Settings get() throws ConfigException {
+        Settings settings = current;
+        if (settings == null) {
+            synchronized (Settings.class) {
+                settings = current;
+                if (settings == null) {
+                    try {
+                        settings = new Settings(Config.getInstance());
+                    } catch (IOException e) {
+                        throw new ConfigException(e.getMessage(), e);
+                    }
+                    current = settings;
+                    ConfigReloader.start(settings.getReloadInterval());
+                }
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Returns the snapshot in use without loading it, <code>null</code> if it has not been loaded yet.
+     * Used by the classes that <code>Config</code> itself needs to load the properties.
+     * @return Settings
+     */
+    static Settings getCurrent() {
+        return current;
+    }
+
+    /**
+     * Drops the snapshot in use, when the application stops: the next
+     * <code>get()</code> builds it again from <code>Config</code> and restarts
+     * the reload of the configuration.
+     */
+    static synchronized void clear() {
+        current = null;
+    }
+
+    /**
+     * Publishes a new snapshot; the messages already being processed complete
+     * with the snapshot they started with.
+     * @param settings
+     */
+    public static void set(Settings settings) {
+        current = settings;
+    }
+
+    /**
+     * Parses and validates the properties of <code>config</code>.
+     * @param config
+     * @throws ConfigException if a property is not valid
+     */
+    public Settings(Config config) throws ConfigException {
+        final String METHOD_NAME = "Constructor";
+
+        mode = getChoice(config, "target.mode", MessageSinks.MODE_FILE, new String[] {MessageSinks.MODE_FILE, MessageSinks.MODE_JOURNAL});
+        pathname = config.getStringProperty("target.pathname", null);
+        if (MessageSinks.MODE_FILE.equals(mode) && pathname == null) {
+            throw new ConfigException("Missing property target.pathname");
+        }
+        pathnameTemplate = (pathname != null) ? FilenameTemplate.getTemplate(pathname) : null;
+        createDir = getBoolean(config, "target.create.dir", false);
+        createDirAhead = getLong(config, "target.create.dir.ahead", 60000, 0);
+        overwriteFile = getBoolean(config, "target.overwrite.file", false);
+
+        journalDir = config.getStringProperty("target.journal.dir", null);
+        if (MessageSinks.MODE_JOURNAL.equals(mode) && journalDir == null) {
+            throw new ConfigException("Missing property target.journal.dir");
+        }
+        journalPrefix = config.getStringProperty("target.journal.prefix", "JmsQueueToFile");
+        journalRollSize = getLong(config, "target.journal.roll.size", 64L * 1024 * 1024, 0);
+        journalRollCount = (int) getLong(config, "target.journal.roll.count", 0, 0);
+        journalRollAge = getLong(config, "target.journal.roll.age", 0, 0);
+
+        durability = getChoice(config, "target.durability", Durability.NONE,
+            new String[] {Durability.NONE, Durability.PER_MESSAGE, Durability.GROUP_COMMIT, Durability.INTERVAL});
+        durabilityInterval = getLong(config, "target.durability.interval", 1000, 1);
+
+        String charsetName = config.getStringProperty("target.charset", null);
+        try {
+            charset = (charsetName != null) ? Charset.forName(charsetName.trim()) : Charset.defaultCharset();
+        } catch (IllegalArgumentException e) {
+            throw new ConfigException("Unsupported target.charset " + charsetName, e);
+        }
+        charsetProperty = config.getStringProperty("target.charset.property", null);
+
+        nodeId = config.getStringProperty("target.node.id", null);
+        instanceId = config.getStringProperty("target.instance.id", null);
+        bufferSize = (int) getLong(config, "target.buffer.size", 64 * 1024, 4 * 1024);
+        mmapThreshold = getLong(config, "target.mmap.threshold", 0, 0);
+        shardLevels = (int) getLong(config, "target.shard.levels", 0, 0);
+        if (shardLevels > Sharding.MAX_LEVELS) {
+            throw new ConfigException("Invalid target.shard.levels " + shardLevels + ", maximum " + Sharding.MAX_LEVELS);
+        }
+        shardFanout = (int) getLong(config, "target.shard.fanout", 256, 2);
+        if (shardFanout > Sharding.MAX_FANOUT) {
+            throw new ConfigException("Invalid target.shard.fanout " + shardFanout + ", maximum " + Sharding.MAX_FANOUT);
+        }
+        shardKey = getChoice(config, "target.shard.key", Sharding.KEY_MESSAGE_ID,
+            new String[] {Sharding.KEY_MESSAGE_ID, Sharding.KEY_SEQUENCE});
+        atomicRename = getBoolean(config, "target.atomic.rename", false);
+        String manifestPathname = config.getStringProperty("target.manifest.pathname", null);
+        manifestTemplate = (manifestPathname != null) ? FilenameTemplate.getTemplate(manifestPathname) : null;
+        manifestBufferSize = (int) getLong(config, "target.manifest.buffer.size", 8192, 16);
+        pipelineWriters = (int) getLong(config, "target.pipeline.writers", 0, 0);
+        pipelineCapacity = (int) getLong(config, "target.pipeline.capacity", 256, 1);
+        pipelineBatchSize = (int) getLong(config, "target.pipeline.batch.size", 32, 1);
+        compression = getChoice(config, "target.compression", Compression.NONE,
+            new String[] {Compression.NONE, Compression.GZIP, Compression.DEFLATE});
+        compressionLevel = (int) getLong(config, "target.compression.level", 6, 1);
+        if (compressionLevel > 9) {
+            throw new ConfigException("Invalid target.compression.level " + compressionLevel + ", maximum 9");
+        }
+        compressionThreshold = getLong(config, "target.compression.threshold", 4L * 1024 * 1024, 0);
+        compressionBlockSize = (int) getLong(config, "target.compression.block.size", 1024 * 1024, 64 * 1024);
+        compressionThreads = (int) getLong(config, "target.compression.threads", Runtime.getRuntime().availableProcessors(), 1);
+        reloadInterval = getLong(config, "config.reload.interval", 10000, 0);
+
+        String auditPathname = config.getStringProperty("audit.pathname", null);
+        auditTemplate = (auditPathname != null) ? FilenameTemplate.getTemplate(auditPathname) : null;
+        auditBufferSize = (int) getLong(config, "audit.buffer.size", 8192, 16);
+        logSampleRate = (int) getLong(config, "log.sample.rate", 1, 1);
+
+        publisherPoolSize = (int) getLong(config, "publisher.pool.size", 8, 0);
+        publisherPoolIdleTimeout = getLong(config, "publisher.pool.idle.timeout", 60000, 1000);
+        publisherPoolWait = getLong(config, "publisher.pool.wait", 5000, 0);
+
+        errorSpoolDir = config.getStringProperty("error.spool.dir", null);
+        errorSpoolBatchSize = (int) getLong(config, "error.spool.batch.size", 100, 1);
+        errorSpoolRetryInterval = getLong(config, "error.spool.retry.interval", 5000, 100);
+
+        jndiCacheTtl = getLong(config, "jndi.cache.ttl", 300000, 0);
+        jndiCacheNegativeTtl = getLong(config, "jndi.cache.negative.ttl", 1000, 0);
+        jndiCacheNegativeMax = getLong(config, "jndi.cache.negative.max", 60000, jndiCacheNegativeTtl);
+
+        inFlightMaxBytes = getLong(config, "inflight.max.bytes", Runtime.getRuntime().maxMemory() / 4, 0);
+        inFlightThreshold = getLong(config, "inflight.threshold", 1024 * 1024, 1);
+
+        logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, this.toString());
+    }
+
+    private static String getChoice(Config config, String key, String defaultValue, String[] choices) throws ConfigException {
+        String value = config.getStringProperty(key, defaultValue).trim().toLowerCase();
+        for (int i = 0; i < choices.length; i++) {
+            if (choices[i].equals(value)) {
+                return choices[i];
+            }
+        }
+        throw new ConfigException("Unsupported " + key + " " + value);
+    }
+
+    private static boolean getBoolean(Config config, String key, boolean defaultValue) throws ConfigException {
+        String value = config.getStringProperty(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        value = value.trim();
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        } else if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new ConfigException("Invalid " + key + " " + value + ", expected true or false");
+    }
+
+    private static long getLong(Config config, String key, long defaultValue, long min) throws ConfigException {
+        String value = config.getStringProperty(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        long l;
+        try {
+            l = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigException("Invalid " + key + " " + value, e);
+        }
+        if (l < min) {
+            throw new ConfigException("Invalid " + key + " " + value + ", minimum " + min);
+        }
+        return l;
+    }
+
+    /**
+     * <b>target.mode</b>
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * <b>target.pathname</b>
+     */
+    public String getPathname() {
+        return pathname;
+    }
+
+    /**
+     * <b>target.pathname</b> compiled, <code>null</code> if the property is missing.
+     */
+    public FilenameTemplate getPathnameTemplate() {
+        return pathnameTemplate;
+    }
+
+    /**
+     * <b>target.create.dir</b>
+     */
+    public boolean isCreateDir() {
+        return createDir;
+    }
+
+    /**
+     * <b>target.create.dir.ahead</b>: milliseconds before the start of a period
+     * when the directory of its files is created, if the directory of
+     * <b>target.pathname</b> depends only on the date (default 60000, 0 disabled;
+     * see <code>DirectoryCache</code>).
+     */
+    public long getCreateDirAhead() {
+        return createDirAhead;
+    }
+
+    /**
+     * <b>target.overwrite.file</b>
+     */
+    public boolean isOverwriteFile() {
+        return overwriteFile;
+    }
+
+    /**
+     * <b>target.journal.dir</b>
+     */
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    /**
+     * <b>target.journal.prefix</b>
+     */
+    public String getJournalPrefix() {
+        return journalPrefix;
+    }
+
+    /**
+     * <b>target.journal.roll.size</b>
+     */
+    public long getJournalRollSize() {
+        return journalRollSize;
+    }
+
+    /**
+     * <b>target.journal.roll.count</b>
+     */
+    public int getJournalRollCount() {
+        return journalRollCount;
+    }
+
+    /**
+     * <b>target.journal.roll.age</b>
+     */
+    public long getJournalRollAge() {
+        return journalRollAge;
+    }
+
+    /**
+     * <b>target.durability</b>
+     */
+    public String getDurability() {
+        return durability;
+    }
+
+    /**
+     * <b>target.durability.interval</b>
+     */
+    public long getDurabilityInterval() {
+        return durabilityInterval;
+    }
+
+    /**
+     * <b>target.charset</b>, the default charset of the JVM if missing.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * <b>target.charset.property</b>
+     */
+    public String getCharsetProperty() {
+        return charsetProperty;
+    }
+
+    /**
+     * <b>target.node.id</b>
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * <b>target.instance.id</b>
+     */
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * <b>target.buffer.size</b>: size of the buffer used to write a message (default 64 KB, minimum 4 KB).
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * <b>target.mmap.threshold</b>: body length from which a <code>BytesMessage</code> is written
+     * through a memory mapping of the file (default 0, never).
+     */
+    public long getMmapThreshold() {
+        return mmapThreshold;
+    }
+
+    /**
+     * <b>target.shard.levels</b>: levels of hashed subdirectories of the target files (default 0; see <code>Sharding</code>).
+     */
+    public int getShardLevels() {
+        return shardLevels;
+    }
+
+    /**
+     * <b>target.shard.fanout</b>: subdirectories per level (default 256).
+     */
+    public int getShardFanout() {
+        return shardFanout;
+    }
+
+    /**
+     * <b>target.shard.key</b>: <i>messageid</i> (default) or <i>sequence</i>.
+     */
+    public String getShardKey() {
+        return shardKey;
+    }
+
+    /**
+     * <b>target.atomic.rename</b>: <code>true</code> to write every file to a hidden temporary
+     * name and rename it to its name once complete (default <code>false</code>; see <code>FileSink</code>).
+     */
+    public boolean isAtomicRename() {
+        return atomicRename;
+    }
+
+    /**
+     * <b>target.manifest.pathname</b>: the template of the manifest of the files written,
+     * <code>null</code> if not set (see <code>Manifest</code>).
+     */
+    public FilenameTemplate getManifestTemplate() {
+        return manifestTemplate;
+    }
+
+    /**
+     * <b>target.manifest.buffer.size</b>: lines of the manifest buffered (default 8192).
+     */
+    public int getManifestBufferSize() {
+        return manifestBufferSize;
+    }
+
+    /**
+     * <b>target.pipeline.writers</b>: threads writing the messages queued by the MDB instances
+     * (default 0, every instance writes its own messages; see <code>PipelineSink</code>).
+     */
+    public int getPipelineWriters() {
+        return pipelineWriters;
+    }
+
+    /**
+     * <b>target.pipeline.capacity</b>: messages waiting for a writer, at most (default 256).
+     */
+    public int getPipelineCapacity() {
+        return pipelineCapacity;
+    }
+
+    /**
+     * <b>target.pipeline.batch.size</b>: messages taken by a writer at a time (default 32).
+     */
+    public int getPipelineBatchSize() {
+        return pipelineBatchSize;
+    }
+
+    /**
+     * <b>target.compression</b>: <i>none</i> (default), <i>gzip</i> or <i>deflate</i> (see <code>Compression</code>).
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * <b>target.compression.level</b>: from 1 (fastest) to 9 (smallest) (default 6).
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * <b>target.compression.threshold</b>: body length from which a <i>gzip</i> file is compressed
+     * in parallel blocks (default 4 MB, 0 never).
+     */
+    public long getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * <b>target.compression.block.size</b>: size of the blocks compressed in parallel (default 1 MB, minimum 64 KB).
+     */
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    /**
+     * <b>target.compression.threads</b>: threads compressing the blocks (default the number of processors).
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * <b>config.reload.interval</b>: milliseconds between two checks of the properties file (default 10000, 0 disables the reload).
+     */
+    public long getReloadInterval() {
+        return reloadInterval;
+    }
+
+    /**
+     * <b>audit.pathname</b> compiled, <code>null</code> if the audit is disabled.
+     */
+    public FilenameTemplate getAuditTemplate() {
+        return auditTemplate;
+    }
+
+    /**
+     * <b>audit.buffer.size</b>
+     */
+    public int getAuditBufferSize() {
+        return auditBufferSize;
+    }
+
+    /**
+     * <b>log.sample.rate</b>
+     */
+    public int getLogSampleRate() {
+        return logSampleRate;
+    }
+
+    /**
+     * <b>publisher.pool.size</b>: maximum number of sessions publishing to the error queue
+     * outside the EJB container (default 8, 0 disables the pool).
+     */
+    public int getPublisherPoolSize() {
+        return publisherPoolSize;
+    }
+
+    /**
+     * <b>publisher.pool.idle.timeout</b>: milliseconds after which an unused session is closed (default 60000).
+     */
+    public long getPublisherPoolIdleTimeout() {
+        return publisherPoolIdleTimeout;
+    }
+
+    /**
+     * <b>publisher.pool.wait</b>: milliseconds to wait for a session when all are in use (default 5000).
+     */
+    public long getPublisherPoolWait() {
+        return publisherPoolWait;
+    }
+
+    /**
+     * <b>error.spool.dir</b>, <code>null</code> if the failed messages are published directly to the error queue.
+     */
+    public String getErrorSpoolDir() {
+        return errorSpoolDir;
+    }
+
+    /**
+     * <b>error.spool.batch.size</b>: messages forwarded to the error queue in one transaction (default 100).
+     */
+    public int getErrorSpoolBatchSize() {
+        return errorSpoolBatchSize;
+    }
+
+    /**
+     * <b>error.spool.retry.interval</b>: milliseconds between two attempts to forward the spool (default 5000).
+     */
+    public long getErrorSpoolRetryInterval() {
+        return errorSpoolRetryInterval;
+    }
+
+    /**
+     * <b>jndi.cache.ttl</b>: milliseconds after which a resource found in JNDI is looked up again (default 300000, 0 never).
+     */
+    public long getJndiCacheTtl() {
+        return jndiCacheTtl;
+    }
+
+    /**
+     * <b>jndi.cache.negative.ttl</b>: milliseconds during which a failed lookup is not retried (default 1000, 0 always retries);
+     * doubled at each consecutive failure.
+     */
+    public long getJndiCacheNegativeTtl() {
+        return jndiCacheNegativeTtl;
+    }
+
+    /**
+     * <b>jndi.cache.negative.max</b>: maximum of <b>jndi.cache.negative.ttl</b> once doubled (default 60000).
+     */
+    public long getJndiCacheNegativeMax() {
+        return jndiCacheNegativeMax;
+    }
+
+    /**
+     * <b>inflight.max.bytes</b>: bytes of the large messages processed at the same time in the JVM
+     * (default a quarter of the maximum heap, 0 unlimited; see <code>InFlightBudget</code>).
+     */
+    public long getInFlightMaxBytes() {
+        return inFlightMaxBytes;
+    }
+
+    /**
+     * <b>inflight.threshold</b>: body length from which a message is counted in
+     * <b>inflight.max.bytes</b> and streamed in chunks (default 1 MB).
+     */
+    public long getInFlightThreshold() {
+        return inFlightThreshold;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>other</code> configures the same <code>MessageSink</code>.
+     * @param other
+     * @return boolean
+     */
+    public boolean sameSink(Settings other) {
+        return mode.equals(other.mode)
+            && equals(journalDir, other.journalDir)
+            && journalPrefix.equals(other.journalPrefix)
+            && journalRollSize == other.journalRollSize
+            && journalRollCount == other.journalRollCount
+            && journalRollAge == other.journalRollAge
+            && pipelineWriters == other.pipelineWriters
+            && pipelineCapacity == other.pipelineCapacity
+            && pipelineBatchSize == other.pipelineBatchSize
+            && sameDurability(other);
+    }
+
+    /**
+     * Returns <code>true</code> if <code>other</code> configures the same <code>Durability</code>.
+     * @param other
+     * @return boolean
+     */
+    public boolean sameDurability(Settings other) {
+        return durability.equals(other.durability) && durabilityInterval == other.durabilityInterval;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>other</code> configures the same <code>Compression</code>.
+     * @param other
+     * @return boolean
+     */
+    public boolean sameCompression(Settings other) {
+        return compression.equals(other.compression)
+            && compressionLevel == other.compressionLevel
+            && compressionThreshold == other.compressionThreshold
+            && compressionBlockSize == other.compressionBlockSize
+            && compressionThreads == other.compressionThreads;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>other</code> configures the same <code>InFlightBudget</code>.
+     * @param other
+     * @return boolean
+     */
+    public boolean sameInFlightBudget(Settings other) {
+        return inFlightMaxBytes == other.inFlightMaxBytes && inFlightThreshold == other.inFlightThreshold;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>other</code> configures the same <code>PublisherPool</code>.
+     * @param other
+     * @return boolean
+     */
+    public boolean samePublisherPool(Settings other) {
+        return publisherPoolSize == other.publisherPoolSize
+            && publisherPoolIdleTimeout == other.publisherPoolIdleTimeout
+            && publisherPoolWait == other.publisherPoolWait;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>other</code> configures the same <code>ErrorSpool</code>.
+     * @param other
+     * @return boolean
+     */
+    public boolean sameErrorSpool(Settings other) {
+        return equals(errorSpoolDir, other.errorSpoolDir)
+            && errorSpoolBatchSize == other.errorSpoolBatchSize
+            && errorSpoolRetryInterval == other.errorSpoolRetryInterval
+            && sameDurability(other);
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    public String toString() {
+        return "Settings[target.mode=" + mode
+            + ", target.pathname=" + pathname
+            + ", target.create.dir=" + createDir
+            + ", target.create.dir.ahead=" + createDirAhead
+            + ", target.overwrite.file=" + overwriteFile
+            + ", target.journal.dir=" + journalDir
+            + ", target.journal.prefix=" + journalPrefix
+            + ", target.journal.roll.size=" + journalRollSize
+            + ", target.journal.roll.count=" + journalRollCount
+            + ", target.journal.roll.age=" + journalRollAge
+            + ", target.durability=" + durability
+            + ", target.durability.interval=" + durabilityInterval
+            + ", target.charset=" + charset.name()
+            + ", target.charset.property=" + charsetProperty
+            + ", target.node.id=" + nodeId
+            + ", target.instance.id=" + instanceId
+            + ", target.buffer.size=" + bufferSize
+            + ", target.mmap.threshold=" + mmapThreshold
+            + ", target.shard.levels=" + shardLevels
+            + ", target.shard.fanout=" + shardFanout
+            + ", target.shard.key=" + shardKey
+            + ", target.atomic.rename=" + atomicRename
+            + ", target.manifest.pathname=" + manifestTemplate
+            + ", target.manifest.buffer.size=" + manifestBufferSize
+            + ", target.pipeline.writers=" + pipelineWriters
+            + ", target.pipeline.capacity=" + pipelineCapacity
+            + ", target.pipeline.batch.size=" + pipelineBatchSize
+            + ", target.compression=" + compression
+            + ", target.compression.level=" + compressionLevel
+            + ", target.compression.threshold=" + compressionThreshold
+            + ", target.compression.block.size=" + compressionBlockSize
+            + ", target.compression.threads=" + compressionThreads
+            + ", config.reload.interval=" + reloadInterval
+            + ", audit.pathname=" + auditTemplate
+            + ", audit.buffer.size=" + auditBufferSize
+            + ", log.sample.rate=" + logSampleRate
+            + ", publisher.pool.size=" + publisherPoolSize
+            + ", publisher.pool.idle.timeout=" + publisherPoolIdleTimeout
+            + ", publisher.pool.wait=" + publisherPoolWait
+            + ", error.spool.dir=" + errorSpoolDir
+            + ", error.spool.batch.size=" + errorSpoolBatchSize
+            + ", error.spool.retry.interval=" + errorSpoolRetryInterval
+            + ", jndi.cache.ttl=" + jndiCacheTtl
+            + ", jndi.cache.negative.ttl=" + jndiCacheNegativeTtl
+            + ", jndi.cache.negative.max=" + jndiCacheNegativeMax
+            + ", inflight.max.bytes=" + inFlightMaxBytes
+            + ", inflight.threshold=" + inFlightThreshold
+            + "]";
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Spreads the target files across levels of hashed subdirectories, so that
+ * no directory collects more than a bounded number of files.
+ * <P>
+ * Properties:
+ * <BR>- <b>target.shard.levels</b>: levels of subdirectories added between the directory and the name of the file (default 0, none; maximum 4);
+ * <BR>- <b>target.shard.fanout</b>: subdirectories per level (default 256, from 2 to 4096);
+ * <BR>- <b>target.shard.key</b>: <i>messageid</i> (default) to hash the JMSMessageID, so that a
+ * redelivered message lands in the same directory, or <i>sequence</i> to hash a counter of the JVM,
+ * separate from the sequence of the file names (see <code>NodeIdentity</code>) so that they stay contiguous.
+ * <BR>The subdirectories are named by their number in hexadecimal, padded to
+ * the width of the largest one: with the defaults and two levels,
+ * <code>/data/in/20101231/msg.xml</code> becomes <code>/data/in/20101231/3f/a0/msg.xml</code>.
+ * <P>
+ * The subdirectories are always created, whatever <b>target.create.dir</b>,
+ * if the directory of the template exists; the ones created, or found,
+ * are remembered by <code>DirectoryCache</code> so that <code>mkdirs</code>
+ * is not called again for them.
+ * @author Marco Ratto
+ */
+public class Sharding {
+
+    public static final String KEY_MESSAGE_ID = "messageid";
+
+    public static final String KEY_SEQUENCE = "sequence";
+
+    public static final int MAX_LEVELS = 4;
+
+    public static final int MAX_FANOUT = 4096;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private Sharding() {
+    }
+
+    /**
+     * Returns <code>f</code> moved to its shard, creating the shard if needed;
+     * <code>f</code> itself if <b>target.shard.levels</b> is 0.
+     * @param f the file named by the template
+     * @param msg the message written to the file
+     * @param settings
+     * @return File
+     * @throws JMSException
+     */
+    public static File shard(File f, Message msg, Settings settings) throws JMSException {
+        int levels = settings.getShardLevels();
+        if (levels == 0) {
+            return f;
+        }
+        int fanout = settings.getShardFanout();
+        String parent = (f.getParent() != null) ? f.getParent() : ".";
+        // positive, so that every level is a digit in base fanout
+        long hash = mix(key(msg, settings.getShardKey())) >>> 1;
+        int width = Integer.toHexString(fanout - 1).length();
+        StringBuilder sb = new StringBuilder(parent.length() + levels * (width + 1));
+        sb.append(parent);
+        for (int i = 0; i < levels; i++) {
+            String digits = Integer.toHexString((int) (hash % fanout));
+            hash /= fanout;
+            sb.append(File.separatorChar);
+            for (int j = digits.length(); j < width; j++) {
+                sb.append('0');
+            }
+            sb.append(digits);
+        }
+        File dir = new File(sb.toString());
+        DirectoryCache.ensure(dir, settings.isCreateDir() || DirectoryCache.ensure(new File(parent), false));
+        return new File(dir, f.getName());
+    }
+
+    private static long key(Message msg, String key) throws JMSException {
+        if (KEY_MESSAGE_ID.equals(key)) {
+            String id = msg.getJMSMessageID();
+            if (id != null) {
+                return id.hashCode();
+            }
+        }
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * Spreads the bits of <code>key</code> (finalizer of MurmurHash3),
+     * so that close keys land in distant shards.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
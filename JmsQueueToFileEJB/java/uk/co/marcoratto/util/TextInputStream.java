@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads a text encoded in a charset, encoding a chunk at a time, so that the
+ * encoded copy of a large text is never held whole.
+ * <P>
+ * Malformed and unmappable characters are replaced, as in <code>String.getBytes</code>.
+ * @author Marco Ratto
+ */
+public class TextInputStream extends InputStream {
+
+    private final CharBuffer in;
+
+    private final CharsetEncoder encoder;
+
+    private final ByteBuffer out;
+
+    private boolean flushed = false;
+
+    /**
+     * @param text
+     * @param charset
+     * @param chunkSize the size of the buffer of encoded bytes
+     */
+    public TextInputStream(CharSequence text, Charset charset, int chunkSize) {
+        this.in = CharBuffer.wrap(text);
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.out = ByteBuffer.allocate(Math.max(chunkSize, 16));
+        this.out.flip();
+    }
+
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return out.get() & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, out.remaining());
+        out.get(b, off, n);
+        return n;
+    }
+
+    public int available() {
+        return out.remaining();
+    }
+
+    /**
+     * Encodes the next chunk if the previous one has been read.
+     * @return <code>false</code> at the end of the text
+     */
+    private boolean fill() throws IOException {
+        while (!out.hasRemaining() && !flushed) {
+            out.clear();
+            CoderResult result;
+            if (in.hasRemaining()) {
+                result = encoder.encode(in, out, true);
+            } else {
+                result = encoder.flush(out);
+                flushed = result.isUnderflow();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            out.flip();
+        }
+        return out.hasRemaining();
+    }
+}
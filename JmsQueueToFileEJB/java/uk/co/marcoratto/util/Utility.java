@@ -24,8 +24,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.Calendar;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,8 +55,29 @@ public class Utility {
     private static Logger logger = Logger.getLogger(CLASS_NAME);
 
     private final static int BUFFER = 10 * 1024;
-    
+
+    /**
+     * Maximum size of a region of the file mapped by <code>writeBodyMapped</code>.
+     */
+    private final static long MAP_REGION = 256L * 1024 * 1024;
+
+    private static final ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>();
+
+    private static final Map<String, Charset> charsets = new ConcurrentHashMap<String, Charset>();
+
+    private static final ThreadLocal<ByteBuffer> channelBuffer = new ThreadLocal<ByteBuffer>();
+
+    private static final Method CLEANER = getCleanerMethod();
+
     public static void copyInputStream(InputStream in, OutputStream out) throws UtilityException {
+        copyInputStream(in, out, true);
+    }
+
+    /**
+     * Copies <code>in</code> to <code>out</code> and closes <code>in</code>.
+     * <code>out</code> is closed only if <code>closeOutput</code> is <code>true</code>.
+     */
+    public static void copyInputStream(InputStream in, OutputStream out, boolean closeOutput) throws UtilityException {
     	final String METHOD_NAME = "copyInputStream";
     	
         byte[] buffer = new byte[BUFFER];
@@ -64,7 +98,7 @@ public class Utility {
             		} catch (IOException ioe) {            			
             		}
             	}
-            	if (out != null) {
+            	if (closeOutput && out != null) {
             		try {
             			out.close();            	            		
 	        		} catch (IOException ioe) {            			
@@ -74,16 +108,28 @@ public class Utility {
     }
     
     
+    /**
+     * Returns the body of the message as a stream.
+     * <BR>A body of at least <b>inflight.threshold</b> bytes is read from the
+     * message in chunks of <b>target.buffer.size</b> bytes while the stream is
+     * read (see <code>BytesMessageInputStream</code> and <code>TextInputStream</code>);
+     * a smaller body is copied to the heap.
+     */
     public static InputStream getInputStream(Message message) throws UtilityException {
     	final String METHOD_NAME = "getInputStream";
  	   
         try {
+            Settings settings = Settings.get();
             // get the incoming msg content into a byte array
             if (message instanceof BytesMessage) {
+                BytesMessage byteMsg = (BytesMessage) message;
+                if (byteMsg.getBodyLength() >= settings.getInFlightThreshold()) {
+                    return new BytesMessageInputStream(byteMsg, settings.getBufferSize());
+                }
+
                 byte[] buffer = new byte[BUFFER];
                 ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-                BytesMessage byteMsg = (BytesMessage) message;
                 for (int bytesRead = byteMsg.readBytes(buffer); bytesRead != -1;
                      bytesRead = byteMsg.readBytes(buffer)) {
                     out.write(buffer, 0, bytesRead);
@@ -92,31 +138,326 @@ public class Utility {
 
             } else if (message instanceof TextMessage) {
                 TextMessage txtMsg = (TextMessage) message;
-                Enumeration propertyNames = txtMsg.getPropertyNames();
-                while (propertyNames.hasMoreElements()) {
-                	String key = (String) propertyNames.nextElement();
-                	String value = txtMsg.getStringProperty(key);           
-                	logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, key + "=" + value);
+                if (AuditLog.isSampled(logger, Level.FINE, message)) {
+                    Enumeration propertyNames = txtMsg.getPropertyNames();
+                    while (propertyNames.hasMoreElements()) {
+                    	String key = (String) propertyNames.nextElement();
+                    	String value = txtMsg.getStringProperty(key);           
+                    	logger.logp(Level.FINE, CLASS_NAME, METHOD_NAME, key + "=" + value);
+                    }
                 }
                 
-                // String contentType = message.getStringProperty(JMSConstants.CONTENT_TYPE);
-                //if (contentType != null) {
-                //    return
-                //            new ByteArrayInputStream(txtMsg.getText().getBytes(BuilderUtil.getCharSetEncoding(contentType)));
-                //} else {
-                    return new ByteArrayInputStream(txtMsg.getText().getBytes());
-                // }
+                String text = txtMsg.getText();
+                if (text.length() >= settings.getInFlightThreshold() / 2) {
+                    return new TextInputStream(text, getCharset(txtMsg), settings.getBufferSize());
+                }
+                return new ByteArrayInputStream(text.getBytes(getCharset(txtMsg).name()));
 
             } else {
 				throw new UtilityException("Unsupported JMS message type : " + message.getClass().getName());
             }
             
+        } catch (UnsupportedEncodingException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        } catch (ConfigException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
         } catch (JMSException e) {
         	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
             throw new UtilityException(e.getMessage(), e);
         }
     }
-    
+
+    /**
+     * Returns the charset used to write the text of <code>message</code>:
+     * <BR>- the value of the JMS property named by <b>target.charset.property</b>, if set on the message and supported;
+     * <BR>- otherwise the value of <b>target.charset</b>;
+     * <BR>- otherwise the default charset of the JVM.
+     */
+    public static Charset getCharset(Message message) throws UtilityException {
+    	final String METHOD_NAME = "getCharset";
+        try {
+            Settings settings = Settings.get();
+            String propertyName = settings.getCharsetProperty();
+            if (propertyName != null) {
+                Charset charset = lookupCharset(message.getStringProperty(propertyName));
+                if (charset != null) {
+                    return charset;
+                }
+            }
+            return settings.getCharset();
+        } catch (ConfigException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        } catch (JMSException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        }
+    }
+
+    private static Charset lookupCharset(String name) {
+    	final String METHOD_NAME = "lookupCharset";
+        if (name == null || name.trim().length() == 0) {
+            return null;
+        }
+        name = name.trim();
+        Charset charset = charsets.get(name);
+        if (charset == null) {
+            try {
+                charset = Charset.forName(name);
+                charsets.put(name, charset);
+            } catch (IllegalArgumentException e) {
+            	logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unsupported charset " + name);
+            }
+        }
+        return charset;
+    }
+
+    /**
+     * Writes the body of the message to <code>channel</code> through a buffer
+     * reused by the calling thread.
+     * <BR>The body of a <code>BytesMessage</code> is read in chunks of
+     * <b>target.buffer.size</b> bytes up to <code>getBodyLength()</code>, so
+     * it is never held whole on the heap; the text of a <code>TextMessage</code>
+     * is encoded in chunks with the charset returned by <code>getCharset</code>.
+     * @return long the number of bytes written
+     */
+    public static long writeBody(Message message, WritableByteChannel channel) throws UtilityException {
+    	final String METHOD_NAME = "writeBody";
+
+        long written = 0;
+        try {
+            ByteBuffer buffer = getChannelBuffer();
+            byte[] array = buffer.array();
+            if (message instanceof BytesMessage) {
+                BytesMessage byteMsg = (BytesMessage) message;
+                byteMsg.reset();
+                long remaining = byteMsg.getBodyLength();
+                while (remaining > 0) {
+                    int bytesRead = byteMsg.readBytes(array, (int) Math.min(array.length, remaining));
+                    if (bytesRead < 0) {
+                        break;
+                    }
+                    buffer.clear();
+                    buffer.limit(bytesRead);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    remaining -= bytesRead;
+                    written += bytesRead;
+                }
+            } else if (message instanceof TextMessage) {
+                String text = ((TextMessage) message).getText();
+                if (text != null) {
+                    written = writeText(text, getCharset(message), channel);
+                }
+            } else {
+                InputStream in = getInputStream(message);
+                try {
+                    int len;
+                    while ((len = in.read(array)) >= 0) {
+                        buffer.clear();
+                        buffer.limit(len);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        written += len;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return written;
+        } catch (JMSException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        } catch (IOException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        } catch (ConfigException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the body of <code>message</code> to <code>channel</code> through
+     * memory mappings of the file, instead of a <code>write</code> per chunk.
+     * <BR>The file is first sized to <code>getBodyLength()</code>, truncated or
+     * extended by writing its last byte, so that the mappings do not grow it
+     * region by region; Java cannot reserve the blocks, which the file system
+     * allocates as the pages are written. The file is mapped in regions of at
+     * most <code>MAP_REGION</code> bytes; the chunks of the body are read into
+     * the buffer of the calling thread and copied to the region, since
+     * <code>BytesMessage</code> can only read into an array. Every region is
+     * unmapped once written, if the JVM allows it (see <code>isUnmapSupported</code>).
+     * If the body turns out shorter, the file is truncated to the bytes written.
+     * @param force <code>true</code> to flush every region to the disk once written
+     * @return long the number of bytes written
+     */
+    public static long writeBodyMapped(BytesMessage message, FileChannel channel, boolean force) throws UtilityException {
+        final String METHOD_NAME = "writeBodyMapped";
+
+        try {
+            byte[] array = getChannelBuffer().array();
+            message.reset();
+            long length = message.getBodyLength();
+            if (channel.size() > length) {
+                channel.truncate(length);
+            } else if (channel.size() < length) {
+                channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+            }
+            long written = 0;
+            boolean eof = false;
+            while (written < length && !eof) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, written, Math.min(MAP_REGION, length - written));
+                while (region.hasRemaining()) {
+                    int bytesRead = message.readBytes(array, Math.min(array.length, region.remaining()));
+                    if (bytesRead < 0) {
+                        eof = true;
+                        break;
+                    }
+                    region.put(array, 0, bytesRead);
+                    written += bytesRead;
+                }
+                if (force) {
+                    region.force();
+                }
+                unmap(region);
+            }
+            if (written < length) {
+                channel.truncate(written);
+            }
+            return written;
+        } catch (JMSException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        } catch (IOException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        } catch (ConfigException e) {
+        	logger.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+            throw new UtilityException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the JVM lets <code>writeBodyMapped</code>
+     * release its mappings at once. Otherwise a mapping lasts until the buffer
+     * is garbage collected and, on Windows, the file cannot be renamed or
+     * deleted until then.
+     * @return boolean
+     */
+    public static boolean isUnmapSupported() {
+        return CLEANER != null;
+    }
+
+    /**
+     * Releases the mapping of <code>buffer</code>, which must not be used
+     * afterwards, through the cleaner of the direct buffers of the JVM.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        final String METHOD_NAME = "unmap";
+        if (CLEANER == null) {
+            return;
+        }
+        try {
+            Object cleaner = CLEANER.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to unmap the file: " + e.getMessage(), e);
+        }
+    }
+
+    private static Method getCleanerMethod() {
+        try {
+            Method cleaner = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            return cleaner;
+        } catch (Throwable t) {
+            // not a Sun JVM, or one that no longer opens its internals
+            return null;
+        }
+    }
+
+    /**
+     * Allocates the buffer and the encoder of the calling thread, so that its
+     * first message does not pay for them.
+     * @throws ConfigException
+     */
+    public static void prepareBuffers() throws ConfigException {
+        getChannelBuffer();
+        getEncoder(Settings.get().getCharset());
+    }
+
+    /**
+     * Returns the buffer of the calling thread, of <b>target.buffer.size</b> bytes.
+     */
+    private static ByteBuffer getChannelBuffer() throws ConfigException {
+        int size = Settings.get().getBufferSize();
+        ByteBuffer buffer = channelBuffer.get();
+        if (buffer == null || buffer.capacity() != size) {
+            buffer = ByteBuffer.allocate(size);
+            channelBuffer.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Encodes <code>text</code> into the buffer of the calling thread and
+     * writes every chunk to <code>channel</code> as soon as the buffer is full.
+     * Malformed and unmappable characters are replaced, as <code>String.getBytes</code> does.
+     */
+    private static long writeText(String text, Charset charset, WritableByteChannel channel) throws IOException, ConfigException {
+        CharsetEncoder encoder = getEncoder(charset);
+        encoder.reset();
+
+        CharBuffer in = CharBuffer.wrap(text);
+        ByteBuffer out = getChannelBuffer();
+        out.clear();
+        long written = 0;
+        CoderResult result;
+        do {
+            result = encoder.encode(in, out, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            written += drain(out, channel);
+        } while (result.isOverflow());
+        do {
+            result = encoder.flush(out);
+            written += drain(out, channel);
+        } while (result.isOverflow());
+        return written;
+    }
+
+    /**
+     * Returns the encoder of the calling thread for <code>charset</code>.
+     */
+    private static CharsetEncoder getEncoder(Charset charset) {
+        CharsetEncoder encoder = encoders.get();
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoders.set(encoder);
+        }
+        return encoder;
+    }
+
+    private static int drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        int len = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return len;
+    }
+
     public static String getYear(Calendar now) {
     	String out = Integer.toString(now.get(Calendar.YEAR));
         return out;
@@ -171,22 +512,17 @@ public class Utility {
     }
 
     
+    /**
+     * Renders the template <code>source</code> at the current time.
+     * @see FilenameTemplate
+     */
     public static String parseStringWithPattern(String source) {
-    	String out = null;
-    	Calendar now = Calendar.getInstance();
-    	
-    	out = source;
-    	out = replaceAll(out, "%Y", getYear(now));
-    	out = replaceAll(out, "%M", getMonth(now));
-    	out = replaceAll(out, "%D", getDay(now));
-    	out = replaceAll(out, "%W", getWeekOfDay(now));
-    	out = replaceAll(out, "%w", getWeekOfYear(now));
-    	out = replaceAll(out, "%h", getHour(now));
-    	out = replaceAll(out, "%m", getMinute(now));
-    	out = replaceAll(out, "%s", getSecond(now));
-    	out = replaceAll(out, "%S", getMillisecond(now));
-    	out = replaceAll(out, "%%", "%");
-    	return out;
+        try {
+            return FilenameTemplate.getTemplate(source).render(null);
+        } catch (JMSException e) {
+            // not thrown without a message
+            throw new IllegalStateException(e.getMessage());
+        }
     }
     
     public static String replaceAll(String in, String oldWord, String newWord) {
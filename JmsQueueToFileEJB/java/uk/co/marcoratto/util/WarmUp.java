@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Initializes, once per JVM, what the processing of the first message
+ * would otherwise initialize, so that after a restart the backlog is not
+ * consumed with a latency spike:
+ * <BR>- <b>config</b>: the properties file, found through JNDI, and <code>Settings</code>;
+ * <BR>- <b>jndi</b>: the connection factory and the error queue;
+ * <BR>- <b>target</b>: the <code>MessageSink</code>, <code>Durability</code> and the directories to write to;
+ * <BR>- <b>errors</b>: the publisher pool, outside the EJB container, and the error spool;
+ * <BR>- <b>audit</b>: the audit log and the metrics MBean;
+ * <BR>- <b>buffers</b>: the buffer, the encoder and the date fields of the filename template of the calling thread.
+ * <P>
+ * A step that fails is logged and skipped: the message processing retries it.
+ * The time spent in every step is logged and published by <code>Metrics</code>.
+ * @author Marco Ratto
+ */
+public class WarmUp {
+
+    private static final String CLASS_NAME = WarmUp.class.getName();
+    private static Logger logger = Logger.getLogger(CLASS_NAME);
+
+    private static boolean done = false;
+
+    private final StringBuilder report = new StringBuilder();
+
+    private long stepStart;
+
+    private WarmUp() {
+    }
+
+    /**
+     * Runs the warm-up the first time it is called; the callers arriving
+     * meanwhile wait for it to complete. The buffers are prepared for every calling thread.
+     */
+    public static void run() {
+        final String METHOD_NAME = "run";
+        synchronized (WarmUp.class) {
+            if (!done) {
+                done = true;
+                long start = System.nanoTime();
+                WarmUp warmUp = new WarmUp();
+                warmUp.warmUp();
+                String report = "total=" + ((System.nanoTime() - start) / 1000000) + " ms, " + warmUp.report;
+                Metrics.getInstance().setWarmUpReport(report);
+                logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Warm-up " + report);
+                return;
+            }
+        }
+        try {
+            prepareBuffers();
+        } catch (Exception e) {
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Lets the next <code>run()</code> warm up again, after the application has been stopped.
+     */
+    static synchronized void reset() {
+        done = false;
+    }
+
+    private void warmUp() {
+        Settings settings = null;
+
+        start();
+        try {
+            settings = Settings.get();
+            end("config", null);
+        } catch (Exception e) {
+            end("config", e);
+            // nothing else can be prepared without the properties
+            return;
+        }
+
+        start();
+        Exception failure = null;
+        if (EtmQueueConnection.getQCF() == null) {
+            failure = new Exception("QueueConnectionFactory not found");
+        }
+        if (EtmQueueLocator.getQueueError() == null) {
+            failure = new Exception("Queue " + EtmQueueLocator.QUEUE_ERROR + " not found");
+        }
+        end("jndi", failure);
+
+        start();
+        try {
+            MessageSinks.getSink();
+            Durability.getInstance();
+            if (MessageSinks.MODE_JOURNAL.equals(settings.getMode())) {
+                mkdirs(new File(settings.getJournalDir()));
+            } else if (settings.isCreateDir() && !settings.getPathnameTemplate().usesMessage()) {
+                // a name depending on the message cannot be known in advance
+                File parent = new File(settings.getPathnameTemplate().render(null)).getParentFile();
+                if (parent != null) {
+                    DirectoryCache.ensure(parent, true);
+                }
+            }
+            end("target", null);
+        } catch (Exception e) {
+            end("target", e);
+        }
+
+        start();
+        try {
+            PublisherPool.getInstance();
+            ErrorSpool.getInstance();
+            end("errors", null);
+        } catch (Exception e) {
+            end("errors", e);
+        }
+
+        start();
+        try {
+            if (settings.getAuditTemplate() != null) {
+                AuditLog.getInstance();
+            }
+            Metrics.register();
+            end("audit", null);
+        } catch (Exception e) {
+            end("audit", e);
+        }
+
+        start();
+        try {
+            prepareBuffers();
+            end("buffers", null);
+        } catch (Exception e) {
+            end("buffers", e);
+        }
+    }
+
+    private static void prepareBuffers() throws Exception {
+        Utility.prepareBuffers();
+        FilenameTemplate template = Settings.get().getPathnameTemplate();
+        if (template != null && !template.usesMessage() && !template.isUnique()) {
+            template.render(null);
+        }
+    }
+
+    private static void mkdirs(File dir) {
+        final String METHOD_NAME = "mkdirs";
+        if (!dir.exists() && dir.mkdirs()) {
+            logger.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Create " + dir.getAbsolutePath());
+        }
+    }
+
+    private void start() {
+        stepStart = System.nanoTime();
+    }
+
+    private void end(String step, Exception failure) {
+        final String METHOD_NAME = "end";
+        if (report.length() > 0) {
+            report.append(", ");
+        }
+        report.append(step).append('=').append((System.nanoTime() - stepStart) / 1000000).append(" ms");
+        if (failure != null) {
+            report.append(" (failed)");
+            logger.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Warm-up of " + step + " failed: " + failure.getMessage(), failure);
+        }
+    }
+}
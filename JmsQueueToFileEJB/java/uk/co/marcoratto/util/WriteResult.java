@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2010 Marco Ratto
+ *
+ * This file is part of the project JmsQueueToFile.
+ *
+ * JmsQueueToFile is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * any later version.
+ *
+ * JmsQueueToFile is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JmsQueueToFile; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package uk.co.marcoratto.util;
+
+/**
+ * Outcome of <code>MessageSink.write</code>: where the message has been stored and its size.
+ * @author Marco Ratto
+ */
+public class WriteResult {
+
+    private final String target;
+    private final long size;
+
+    public WriteResult(String target, long size) {
+        this.target = target;
+        this.size = size;
+    }
+
+    /**
+     * Returns the file written, or the segment for the journal.
+     * @return String
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the number of bytes of the body written.
+     * @return long
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public String toString() {
+        return target + " (" + size + " bytes)";
+    }
+}